@@ -0,0 +1,135 @@
+package nachos.machine;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares two sets of benchmark results saved by JMH with <tt>-rf csv</tt>,
+ * such as those that <tt>bench/run</tt> saves for two commits. For each
+ * benchmark and set of parameters in both files, prints the old and new
+ * scores and the change between them, as a percentage that is positive when
+ * the new score is better.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar nachos.machine.BenchCompare old.csv new.csv
+ * </pre>
+ */
+public final class BenchCompare {
+    /**
+     * Compare entry point.
+     *
+     * @param	args	the old and new result files.
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length != 2) {
+	    System.err.println("usage: java nachos.machine.BenchCompare " +
+			       "<old.csv> <new.csv>");
+	    System.exit(1);
+	}
+
+	Map<String, Result> oldResults = read(args[0]);
+	Map<String, Result> newResults = read(args[1]);
+
+	System.out.printf("%-72s %14s %14s %8s%n", "Benchmark", "Old", "New",
+			  "Change");
+
+	for (Map.Entry<String, Result> entry : newResults.entrySet()) {
+	    Result oldResult = oldResults.get(entry.getKey());
+	    Result newResult = entry.getValue();
+	    if (oldResult == null)
+		continue;
+
+	    double change = (newResult.score - oldResult.score) /
+		oldResult.score * 100;
+	    // for times per operation, lower is better
+	    if (newResult.unit.endsWith("/op"))
+		change = -change;
+
+	    System.out.printf("%-72s %14.3f %14.3f %+7.1f%% %s%n",
+			      entry.getKey(), oldResult.score, newResult.score,
+			      change, newResult.unit);
+	}
+    }
+
+    private static Map<String, Result> read(String fileName)
+	throws IOException {
+	Map<String, Result> results = new LinkedHashMap<String, Result>();
+	BufferedReader in = new BufferedReader(new FileReader(fileName));
+
+	try {
+	    String[] header = split(in.readLine());
+	    int score = indexOf(header, "Score");
+	    int unit = indexOf(header, "Unit");
+
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		String[] fields = split(line);
+
+		StringBuilder key = new StringBuilder(fields[0]);
+		for (int i=0; i<header.length; i++) {
+		    if (header[i].startsWith("Param: ") && fields[i].length() > 0)
+			key.append(' ').append(header[i].substring(7))
+			    .append('=').append(fields[i]);
+		}
+
+		Result result = new Result();
+		result.score = Double.parseDouble(fields[score]);
+		result.unit = fields[unit];
+		results.put(key.toString(), result);
+	    }
+	}
+	finally {
+	    in.close();
+	}
+
+	return results;
+    }
+
+    private static int indexOf(String[] header, String name) {
+	for (int i=0; i<header.length; i++) {
+	    if (header[i].equals(name))
+		return i;
+	}
+
+	throw new IllegalArgumentException("no " + name + " column");
+    }
+
+    /**
+     * Split a line of CSV, in which any field may be quoted.
+     */
+    private static String[] split(String line) {
+	ArrayList<String> fields = new ArrayList<String>();
+	StringBuilder field = new StringBuilder();
+	boolean quoted = false;
+
+	for (int i=0; i<line.length(); i++) {
+	    char c = line.charAt(i);
+
+	    if (c == '"') {
+		if (quoted && i+1 < line.length() && line.charAt(i+1) == '"')
+		    field.append(line.charAt(++i));
+		else
+		    quoted = !quoted;
+	    }
+	    else if (c == ',' && !quoted) {
+		fields.add(field.toString());
+		field.setLength(0);
+	    }
+	    else {
+		field.append(c);
+	    }
+	}
+	fields.add(field.toString());
+
+	return fields.toArray(new String[fields.size()]);
+    }
+
+    private static class Result {
+	double score;
+	String unit;
+    }
+}
@@ -0,0 +1,711 @@
+package nachos.machine;
+
+import nachos.security.*;
+import nachos.ag.AutoGrader;
+import nachos.threads.KThread;
+import nachos.threads.Scheduler;
+import nachos.threads.ThreadedKernel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.SynchronousQueue;
+
+/**
+ * A bare Nachos machine for the benchmarks. It has the interrupt controller,
+ * timer and processor of a real machine, configured by the keys given to
+ * <tt>boot()</tt>, but no kernel, no kernel threads and no security manager,
+ * so a benchmark can call into the hardware directly from its own thread.
+ *
+ * <p>
+ * User programs are loaded from the <tt>test</tt> directory into physical
+ * pages that match their virtual pages, and run until they call
+ * <tt>exit()</tt> or <tt>halt()</tt>. The few syscalls the test programs
+ * make are answered here, against files kept in memory, so a program run
+ * measures the processor and not the host file system. In TLB mode, TLB
+ * misses are refilled from the same page table, round robin within a set.
+ *
+ * <p>
+ * Benchmarks of the thread system run their code as the main kernel thread,
+ * through <tt>runInKernel()</tt>, on a Java thread that the machine starts
+ * for it.
+ *
+ * <p>
+ * <tt>Config</tt> and <tt>Machine</tt> are static, so there can only be one
+ * machine in a JVM. JMH runs each benchmark and each set of parameters in a
+ * fork of its own, which is what makes this work; the benchmarks must not be
+ * run with <tt>-f 0</tt>.
+ */
+final class BenchMachine {
+    /**
+     * Boot the machine with the specified <tt>nachos.conf</tt> keys, or
+     * return the machine already booted with the same keys.
+     *
+     * @param	keys	the configuration, as <tt>key = value</tt> lines.
+     * @return	the machine.
+     */
+    static synchronized BenchMachine boot(String[] keys) {
+	if (machine != null) {
+	    if (!Arrays.equals(machine.keys, keys))
+		throw new IllegalStateException("a different machine is " +
+						"already running in this JVM");
+	    return machine;
+	}
+
+	machine = new BenchMachine(keys);
+	System.out.println("");
+	return machine;
+    }
+
+    private BenchMachine(String[] keys) {
+	this.keys = keys.clone();
+
+	try {
+	    File configFile = File.createTempFile("nachos", ".conf");
+	    configFile.deleteOnExit();
+
+	    FileWriter writer = new FileWriter(configFile);
+	    for (int i=0; i<keys.length; i++)
+		writer.write(keys[i] + "\n");
+	    writer.close();
+
+	    Config.load(configFile.getPath());
+	}
+	catch (IOException e) {
+	    throw new IllegalStateException("could not write configuration: " +
+					    e);
+	}
+
+	Lib.seedRandom(0);
+
+	privilege = new BenchPrivilege();
+	privilege.stats = new Stats();
+
+	AutoGrader grader = new BenchGrader();
+	setField(AutoGrader.class, grader, "privilege", privilege);
+	setMachineField("autoGrader", grader);
+
+	TCB.givePrivilege(privilege);
+
+	setMachineField("interrupt", new Interrupt(privilege));
+
+	if (Config.getBoolean("Machine.processor", false)) {
+	    setMachineField("timer", new Timer(privilege));
+
+	    processor = new Processor(privilege,
+				      Config.getInteger("Processor.numPhysPages"));
+	    setMachineField("processor", processor);
+
+	    processor.setExceptionHandler(new Runnable() {
+		    public void run() { handleException(); }
+		});
+	}
+	else {
+	    processor = null;
+	}
+    }
+
+    /**
+     * Install a device in the <tt>Machine</tt> class, where the rest of the
+     * hardware looks for it.
+     */
+    private static void setMachineField(String name, Object value) {
+	setField(Machine.class, null, name, value);
+    }
+
+    private static void setField(Class<?> cls, Object object, String name,
+				 Object value) {
+	try {
+	    Field field = cls.getDeclaredField(name);
+	    field.setAccessible(true);
+	    field.set(object, value);
+	}
+	catch (Exception e) {
+	    throw new IllegalStateException("cannot set " + cls.getName() +
+					    "." + name + ": " + e);
+	}
+    }
+
+    /**
+     * Return the privilege that the devices of this machine were built with.
+     *
+     * @return	the privilege.
+     */
+    Privilege getPrivilege() {
+	return privilege;
+    }
+
+    /**
+     * Return the processor, if the configuration attached one.
+     *
+     * @return	the processor, or <tt>null</tt>.
+     */
+    Processor getProcessor() {
+	return processor;
+    }
+
+    /**
+     * Add a file to the files that programs can open.
+     *
+     * @param	name	the name of the file.
+     * @param	contents	the contents of the file.
+     */
+    void putFile(String name, byte[] contents) {
+	files.put(name, contents.clone());
+    }
+
+    /**
+     * Return the current contents of a file that programs can open.
+     *
+     * @param	name	the name of the file.
+     * @return	the contents of the file, or <tt>null</tt> if there is no such
+     *		file.
+     */
+    byte[] getFile(String name) {
+	return files.get(name);
+    }
+
+    /**
+     * Load a COFF program from the test directory, with the specified
+     * arguments. The loaded memory is saved, so that each <tt>run()</tt> of
+     * the program starts from exactly the same state.
+     *
+     * @param	name	the name of the executable, such as
+     *			<tt>matmult.coff</tt>.
+     * @param	args	the arguments, including the program name.
+     * @return	the loaded program.
+     */
+    Program load(String name, String[] args) {
+	Lib.assertTrue(processor != null);
+
+	Coff coff;
+	try {
+	    coff = new Coff(new BenchFile(name, readTestFile(name)));
+	}
+	catch (IOException e) {
+	    throw new IllegalStateException("cannot load " + name + ": " + e);
+	}
+
+	int numPages = 0;
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    Lib.assertTrue(section.getFirstVPN() == numPages,
+			   "fragmented executable");
+	    numPages += section.getLength();
+	}
+
+	Program program = new Program();
+	program.entryPoint = coff.getEntryPoint();
+
+	numPages += stackPages;
+	program.initialSP = numPages*pageSize;
+
+	// and one page for the arguments
+	numPages++;
+
+	Lib.assertTrue(numPages <= processor.getNumPhysPages(),
+		       name + " does not fit in physical memory");
+
+	program.pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    program.pageTable[vpn] =
+		new TranslationEntry(vpn, vpn, true, false, false, false);
+	}
+
+	PhysicalMemory memory = processor.getPhysicalMemory();
+	memory.zero(0, numPages*pageSize);
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN() + i;
+		program.pageTable[vpn].readOnly = section.isReadOnly();
+		section.loadPage(i, vpn);
+	    }
+	}
+
+	int entryOffset = (numPages-1)*pageSize;
+	int stringOffset = entryOffset + args.length*4;
+
+	program.argc = args.length;
+	program.argv = entryOffset;
+
+	for (int i=0; i<args.length; i++) {
+	    byte[] string = (args[i] + "\0").getBytes();
+	    Lib.assertTrue(stringOffset + string.length <= numPages*pageSize,
+			   "arguments too long");
+
+	    memory.write(entryOffset, Lib.bytesFromInt(stringOffset), 0, 4);
+	    entryOffset += 4;
+	    memory.write(stringOffset, string, 0, string.length);
+	    stringOffset += string.length;
+	}
+
+	program.image = new byte[numPages*pageSize];
+	memory.read(0, program.image, 0, program.image.length);
+
+	return program;
+    }
+
+    /**
+     * Run a loaded program from the start until it exits.
+     *
+     * @param	program	the program.
+     * @return	the number of user instructions it executed.
+     */
+    long run(Program program) {
+	PhysicalMemory memory = processor.getPhysicalMemory();
+	memory.write(0, program.image, 0, program.image.length);
+
+	pageTable = program.pageTable;
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    pageTable[vpn].used = false;
+	    pageTable[vpn].dirty = false;
+	}
+
+	if (processor.hasTLB()) {
+	    TranslationEntry invalid = new TranslationEntry();
+	    for (int i=0; i<processor.getTLBSize(); i++)
+		processor.writeTLBEntry(i, invalid);
+	}
+	else {
+	    processor.setPageTable(pageTable);
+	}
+
+	Arrays.fill(openFiles, null);
+	console = new BenchFile("console", new byte[0]);
+	openFiles[0] = console;
+	openFiles[1] = console;
+
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    processor.writeRegister(i, 0);
+
+	processor.writeRegister(Processor.regPC, program.entryPoint);
+	processor.writeRegister(Processor.regSP, program.initialSP);
+	processor.writeRegister(Processor.regA0, program.argc);
+	processor.writeRegister(Processor.regA1, program.argv);
+
+	long startTicks = privilege.stats.userTicks;
+
+	try {
+	    processor.run();
+	}
+	catch (ProgramExit e) {
+	}
+
+	return (privilege.stats.userTicks - startTicks) / Stats.UserTick;
+    }
+
+    /**
+     * Run a task as the main kernel thread, and wait for it to return. The
+     * first call starts the thread system, with the scheduler named by
+     * <tt>ThreadedKernel.scheduler</tt>, on a Java thread of its own. The main
+     * kernel thread then stays in the kernel between tasks, so any threads a
+     * task forks are still there for the next one.
+     *
+     * @param	task	the task to run.
+     */
+    void runInKernel(Runnable task) {
+	synchronized (this) {
+	    if (kernelTasks == null)
+		startKernel();
+	}
+
+	Object result;
+	try {
+	    kernelTasks.put(task);
+	    result = kernelResults.take();
+	}
+	catch (InterruptedException e) {
+	    throw new IllegalStateException("interrupted waiting for the " +
+					    "kernel");
+	}
+
+	if (result instanceof RuntimeException)
+	    throw (RuntimeException) result;
+	if (result instanceof Error)
+	    throw (Error) result;
+    }
+
+    private void startKernel() {
+	kernelTasks = new SynchronousQueue<Runnable>();
+	kernelResults = new SynchronousQueue<Object>();
+
+	// the first TCB takes over the Java thread that starts it
+	Thread thread = new Thread(new Runnable() {
+		public void run() {
+		    new TCB().start(new Runnable() {
+			    public void run() { kernelLoop(); }
+			});
+		}
+	    }, "kernel");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    private void kernelLoop() {
+	ThreadedKernel.scheduler = (Scheduler)
+	    Lib.constructObject(Config.getString("ThreadedKernel.scheduler"));
+	new KThread(null);
+	Machine.interrupt().enable();
+
+	while (true) {
+	    Object result = this;
+	    try {
+		Runnable task = kernelTasks.take();
+		try {
+		    task.run();
+		}
+		catch (Throwable e) {
+		    result = e;
+		}
+		kernelResults.put(result);
+	    }
+	    catch (InterruptedException e) {
+	    }
+	}
+    }
+
+    /**
+     * Return the status that the last program run passed to
+     * <tt>exit()</tt>.
+     *
+     * @return	the exit status.
+     */
+    int getExitStatus() {
+	return exitStatus;
+    }
+
+    /**
+     * Return everything that the last program run wrote to the console.
+     *
+     * @return	the console output.
+     */
+    byte[] getConsoleOutput() {
+	return console.contents();
+    }
+
+    /**
+     * Refill the TLB entry for the specified virtual page from the page table
+     * of the running program, replacing the entries of its set in turn.
+     *
+     * @param	vpn	the virtual page that missed.
+     */
+    void refillTLB(int vpn) {
+	int ways = processor.getTLBWays();
+	int set = processor.getTLBSet(vpn);
+
+	processor.writeTLBEntry(set*ways + nextVictim, pageTable[vpn]);
+	nextVictim = (nextVictim+1) % ways;
+    }
+
+    /**
+     * Set the page table that <tt>refillTLB()</tt> refills from.
+     *
+     * @param	pageTable	the page table.
+     */
+    void setPageTable(TranslationEntry[] pageTable) {
+	this.pageTable = pageTable;
+    }
+
+    private void handleException() {
+	int cause = processor.readRegister(Processor.regCause);
+
+	switch (cause) {
+	case Processor.exceptionSyscall:
+	    int result = handleSyscall(processor.readRegister(Processor.regV0),
+				       processor.readRegister(Processor.regA0),
+				       processor.readRegister(Processor.regA1),
+				       processor.readRegister(Processor.regA2));
+	    processor.writeRegister(Processor.regV0, result);
+	    processor.advancePC();
+	    break;
+
+	case Processor.exceptionTLBMiss:
+	    int vaddr = processor.readRegister(Processor.regBadVAddr);
+	    int vpn = Processor.pageFromAddress(vaddr);
+	    Lib.assertTrue(vpn < pageTable.length,
+			   "bad address 0x" + Lib.toHexString(vaddr));
+	    refillTLB(vpn);
+	    break;
+
+	default:
+	    Lib.assertNotReached("unexpected exception: " +
+				 Processor.exceptionNames[cause] + " at 0x" +
+				 Lib.toHexString(processor.readRegister(
+						     Processor.regPC)));
+	}
+    }
+
+    private int handleSyscall(int syscall, int a0, int a1, int a2) {
+	switch (syscall) {
+	case syscallHalt:
+	case syscallExit:
+	    exitStatus = a0;
+	    throw exit;
+
+	case syscallCreate:
+	case syscallOpen: {
+	    String name = readString(a0);
+	    if (syscall == syscallCreate)
+		files.put(name, new byte[0]);
+	    else if (!files.containsKey(name))
+		return -1;
+
+	    for (int fd=2; fd<openFiles.length; fd++) {
+		if (openFiles[fd] == null) {
+		    openFiles[fd] = new BenchFile(name, files.get(name));
+		    return fd;
+		}
+	    }
+	    return -1;
+	}
+
+	case syscallRead:
+	case syscallWrite: {
+	    if (a0 < 0 || a0 >= openFiles.length || openFiles[a0] == null ||
+		a2 < 0)
+		return -1;
+
+	    BenchFile file = openFiles[a0];
+	    byte[] buffer = new byte[a2];
+	    PhysicalMemory memory = processor.getPhysicalMemory();
+
+	    if (syscall == syscallRead) {
+		int amount = file.read(buffer, 0, a2);
+		memory.write(a1, buffer, 0, amount);
+		return amount;
+	    }
+	    else {
+		memory.read(a1, buffer, 0, a2);
+		int amount = file.write(buffer, 0, a2);
+		if (file != console)
+		    files.put(file.getName(), file.contents());
+		return amount;
+	    }
+	}
+
+	case syscallClose:
+	    if (a0 < 0 || a0 >= openFiles.length || openFiles[a0] == null)
+		return -1;
+	    openFiles[a0] = null;
+	    return 0;
+
+	case syscallUnlink:
+	    return files.remove(readString(a0)) != null ? 0 : -1;
+
+	default:
+	    Lib.assertNotReached("unsupported syscall " + syscall);
+	    return -1;
+	}
+    }
+
+    private String readString(int vaddr) {
+	PhysicalMemory memory = processor.getPhysicalMemory();
+	byte[] bytes = new byte[256];
+
+	for (int length=0; length<bytes.length; length++) {
+	    memory.read(vaddr+length, bytes, length, 1);
+	    if (bytes[length] == 0)
+		return new String(bytes, 0, length);
+	}
+
+	return new String(bytes);
+    }
+
+    /**
+     * Read a file from the Nachos test directory: the one named by
+     * <tt>FileSystem.testDirectory</tt>, or else <tt>../test</tt> or
+     * <tt>test</tt>, so the benchmarks can be run from this module or from
+     * the top of the tree.
+     *
+     * @param	name	the name of the file.
+     * @return	the contents of the file.
+     */
+    static byte[] readTestFile(String name) throws IOException {
+	String testDirectoryName = Config.getString("FileSystem.testDirectory");
+
+	File testDirectory;
+	if (testDirectoryName != null)
+	    testDirectory = new File(testDirectoryName);
+	else if (new File("../test").isDirectory())
+	    testDirectory = new File("../test");
+	else
+	    testDirectory = new File("test");
+
+	File file = new File(testDirectory, name);
+	byte[] contents = new byte[(int) file.length()];
+
+	InputStream in = new FileInputStream(file);
+	try {
+	    int offset = 0;
+	    while (offset < contents.length) {
+		int amount = in.read(contents, offset, contents.length-offset);
+		if (amount < 0)
+		    throw new IOException("unexpected end of " + file);
+		offset += amount;
+	    }
+	}
+	finally {
+	    in.close();
+	}
+
+	return contents;
+    }
+
+    /**
+     * A user program loaded into memory, ready to be run.
+     */
+    static final class Program {
+	private byte[] image;
+	private TranslationEntry[] pageTable;
+	private int entryPoint, initialSP, argc, argv;
+    }
+
+    /**
+     * A file kept in memory. Reads and writes take a kernel tick, since
+     * <tt>Lib.strictReadFile()</tt> expects time to pass.
+     */
+    private class BenchFile extends OpenFileWithPosition {
+	BenchFile(String name, byte[] contents) {
+	    super(null, name);
+	    this.contents = contents;
+	    this.length = contents.length;
+	}
+
+	public int length() {
+	    return length;
+	}
+
+	public int read(int position, byte[] buf, int offset, int length) {
+	    privilege.interrupt.tick(true);
+
+	    if (position < 0 || position >= this.length)
+		return 0;
+
+	    int amount = Math.min(length, this.length-position);
+	    System.arraycopy(contents, position, buf, offset, amount);
+	    return amount;
+	}
+
+	public int write(int position, byte[] buf, int offset, int length) {
+	    privilege.interrupt.tick(true);
+
+	    if (position < 0)
+		return -1;
+
+	    if (position+length > contents.length) {
+		contents = Arrays.copyOf(contents,
+					 Math.max(position+length,
+						  contents.length*2));
+	    }
+
+	    System.arraycopy(buf, offset, contents, position, length);
+	    this.length = Math.max(this.length, position+length);
+	    return length;
+	}
+
+	byte[] contents() {
+	    return Arrays.copyOf(contents, length);
+	}
+
+	private byte[] contents;
+	private int length;
+    }
+
+    /**
+     * Thrown through <tt>Processor.run()</tt> when the program exits.
+     */
+    private static class ProgramExit extends RuntimeException {
+	ProgramExit() {
+	    super(null, null, false, false);
+	}
+    }
+
+    /**
+     * Lets every privileged action through, since there is no security
+     * manager to stop them.
+     */
+    private static class BenchPrivilege extends Privilege {
+	public void doPrivileged(Runnable action) {
+	    action.run();
+	}
+
+	public Object doPrivileged(PrivilegedAction action) {
+	    return action.run();
+	}
+
+	public Object doPrivileged(PrivilegedExceptionAction action)
+	    throws PrivilegedActionException {
+	    try {
+		return action.run();
+	    }
+	    catch (Exception e) {
+		throw new PrivilegedActionException(e);
+	    }
+	}
+
+	public void exit(int exitStatus) {
+	    invokeExitNotificationHandlers();
+	    throw new IllegalStateException("machine exited with status " +
+					    exitStatus);
+	}
+    }
+
+    /**
+     * An autograder that stays out of the way.
+     */
+    private static class BenchGrader extends AutoGrader {
+	public void timerInterrupt(Privilege privilege, long time) {
+	}
+
+	public boolean exceptionHandler(Privilege privilege) {
+	    return true;
+	}
+
+	public void runProcessor(Privilege privilege) {
+	}
+    }
+
+    private static final int pageSize = Processor.pageSize;
+    private static final int stackPages = 8;
+    private static final int maxOpenFiles = 16;
+
+    private static final int
+	syscallHalt = 0,
+	syscallExit = 1,
+	syscallCreate = 4,
+	syscallOpen = 5,
+	syscallRead = 6,
+	syscallWrite = 7,
+	syscallClose = 8,
+	syscallUnlink = 9;
+
+    private static BenchMachine machine = null;
+
+    private final String[] keys;
+
+    /** The tasks for the main kernel thread, and what they returned. */
+    private SynchronousQueue<Runnable> kernelTasks = null;
+    private SynchronousQueue<Object> kernelResults = null;
+    private final Privilege privilege;
+    private final Processor processor;
+
+    private final HashMap<String, byte[]> files = new HashMap<String, byte[]>();
+    private final BenchFile[] openFiles = new BenchFile[maxOpenFiles];
+    private BenchFile console;
+
+    private TranslationEntry[] pageTable;
+    private int nextVictim = 0;
+    private int exitStatus;
+
+    private final ProgramExit exit = new ProgramExit();
+}
@@ -0,0 +1,96 @@
+package nachos.machine;
+
+import nachos.threads.KThread;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures context switches between kernel threads, with TCBs on platform
+ * threads, virtual threads or virtual threads that share one carrier thread,
+ * as selected by <tt>TCB.threads</tt>. Besides the main
+ * thread, <tt>runnable</tt> kernel threads do nothing but yield, so each yield
+ * of the main thread switches through all of them and back. JMH reports
+ * context switches per second as the score of <tt>yield:switches</tt>.
+ *
+ * <p>
+ * Virtual and carrier threads need Java 21 or later. Platform threads are
+ * limited to <tt>TCB.maxThreads</tt>, so larger numbers of threads are
+ * measured with virtual threads alone:
+ *
+ * <pre>
+ * ./run ContextSwitchBenchmark -p threads=virtual -p runnable=100000
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextSwitchBenchmark {
+    @Param({"platform", "virtual", "carrier"})
+    public String threads;
+
+    @Param({"1", "200"})
+    public int runnable;
+
+    /**
+     * Counts the context switches made in each iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+	public long switches;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+	    switches = 0;
+	}
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+	machine = BenchMachine.boot(new String[] {
+		"Machine.processor = false",
+		"Kernel.kernel = nachos.threads.ThreadedKernel",
+		"ThreadedKernel.scheduler = nachos.threads.RoundRobinScheduler",
+		"TCB.threads = " + threads });
+
+	// keep each call into the kernel long enough to hide its cost
+	yieldsPerRun = Math.max(1, switchesPerRun / (runnable+1));
+
+	machine.runInKernel(new Runnable() {
+		public void run() {
+		    for (int i=0; i<runnable; i++)
+			new KThread(yielder).setName("yielder").fork();
+		}
+	    });
+    }
+
+    @Benchmark
+    public void yield(Counters counters) {
+	machine.runInKernel(yields);
+	counters.switches += yieldsPerRun * (runnable+1);
+    }
+
+    private static final int switchesPerRun = 1000;
+
+    private BenchMachine machine;
+    private int yieldsPerRun;
+
+    private final Runnable yields = new Runnable() {
+	    public void run() {
+		for (int i=0; i<yieldsPerRun; i++)
+		    KThread.yield();
+	    }
+	};
+
+    private static final Runnable yielder = new Runnable() {
+	    public void run() {
+		while (true)
+		    KThread.yield();
+	    }
+	};
+}
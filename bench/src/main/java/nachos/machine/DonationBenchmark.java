@@ -0,0 +1,109 @@
+package nachos.machine;
+
+import nachos.threads.KThread;
+import nachos.threads.ThreadQueue;
+import nachos.threads.ThreadedKernel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures priority donation through a chain of <tt>depth</tt> locks, each
+ * held by a thread waiting for the next, with <tt>waiters</tt> other threads
+ * of the lowest priority waiting on every lock as well. Each operation raises
+ * or lowers the priority of the thread at the end of the chain, which changes
+ * the effective priority of every thread along it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DonationBenchmark {
+    @Param({"1", "16", "256"})
+    public int depth;
+
+    @Param({"0", "100"})
+    public int waiters;
+
+    @Setup(Level.Trial)
+    public void setup() {
+	machine = BenchMachine.boot(new String[] {
+		"Machine.processor = false",
+		"Kernel.kernel = nachos.threads.ThreadedKernel",
+		"ThreadedKernel.scheduler = nachos.threads.PriorityScheduler" });
+
+	machine.runInKernel(new Runnable() {
+		public void run() {
+		    boolean intStatus = Machine.interrupt().disable();
+
+		    // the queues of the locks, each owned by the thread before
+		    KThread holder = new KThread();
+		    first = holder;
+		    for (int i=0; i<depth; i++) {
+			ThreadQueue lock =
+			    ThreadedKernel.scheduler.newThreadQueue(true);
+			lock.acquire(holder);
+
+			for (int j=0; j<waiters; j++) {
+			    KThread waiter = new KThread();
+			    ThreadedKernel.scheduler.setPriority(waiter, 0);
+			    lock.waitForAccess(waiter);
+			}
+
+			holder = new KThread();
+			lock.waitForAccess(holder);
+		    }
+		    last = holder;
+
+		    Machine.interrupt().restore(intStatus);
+		}
+	    });
+    }
+
+    /**
+     * Make sure the priority of the last thread reaches the first, and
+     * leaves it again.
+     */
+    @TearDown(Level.Trial)
+    public void check() {
+	machine.runInKernel(new Runnable() {
+		public void run() {
+		    boolean intStatus = Machine.interrupt().disable();
+
+		    ThreadedKernel.scheduler.setPriority(last, 7);
+		    Lib.assertTrue(ThreadedKernel.scheduler
+				   .getEffectivePriority(first) == 7);
+		    ThreadedKernel.scheduler.setPriority(last, 0);
+		    Lib.assertTrue(ThreadedKernel.scheduler
+				   .getEffectivePriority(first) == 1);
+
+		    Machine.interrupt().restore(intStatus);
+		}
+	    });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(operationsPerRun)
+    public void setPriority() {
+	machine.runInKernel(setPriority);
+    }
+
+    private static final int operationsPerRun = 1000;
+
+    private BenchMachine machine;
+    private KThread first, last;
+
+    private final Runnable setPriority = new Runnable() {
+	    public void run() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i=0; i<operationsPerRun; i++)
+		    ThreadedKernel.scheduler.setPriority(last, 7 - (i & 1)*7);
+
+		Machine.interrupt().restore(intStatus);
+	    }
+	};
+}
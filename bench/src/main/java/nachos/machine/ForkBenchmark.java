@@ -0,0 +1,60 @@
+package nachos.machine;
+
+import nachos.threads.KThread;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures forking a kernel thread that returns at once, and joining it, as
+ * tests that fork many short-lived threads do. The score is the time per
+ * thread. <tt>poolSize</tt> sets <tt>TCB.poolSize</tt>, the number of
+ * finished threads' Java threads kept for new threads to reuse; with 0,
+ * every fork starts a Java thread and every finished thread's Java thread
+ * exits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForkBenchmark {
+    @Param({"0", "16"})
+    public int poolSize;
+
+    @Setup(Level.Trial)
+    public void setup() {
+	machine = BenchMachine.boot(new String[] {
+		"Machine.processor = false",
+		"Kernel.kernel = nachos.threads.ThreadedKernel",
+		"ThreadedKernel.scheduler = nachos.threads.RoundRobinScheduler",
+		"TCB.poolSize = " + poolSize });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(threadsPerRun)
+    public void forkJoin() {
+	machine.runInKernel(forkJoin);
+    }
+
+    private static final int threadsPerRun = 100;
+
+    private BenchMachine machine;
+
+    private final Runnable forkJoin = new Runnable() {
+	    public void run() {
+		for (int i=0; i<threadsPerRun; i++) {
+		    KThread thread = new KThread(nothing).setName("forked");
+		    thread.fork();
+		    thread.join();
+		}
+	    }
+	};
+
+    private static final Runnable nothing = new Runnable() {
+	    public void run() {
+	    }
+	};
+}
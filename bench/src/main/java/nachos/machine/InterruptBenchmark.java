@@ -0,0 +1,73 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the interrupt controller with <tt>pending</tt> other interrupts
+ * waiting far in the future, as the timer, console and network interrupts of
+ * a busy machine would be.
+ *
+ * <ul>
+ * <li><tt>scheduleCancel</tt> schedules an interrupt and cancels it.
+ * <li><tt>tickIdle</tt> advances the time when nothing is due, which is all
+ * <tt>checkIfDue()</tt> does for almost every tick.
+ * <li><tt>tickDue</tt> schedules an interrupt for the next tick and advances
+ * the time, so <tt>checkIfDue()</tt> takes it off the queue and calls its
+ * handler.
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterruptBenchmark {
+    @Param({"0", "16", "256"})
+    public int pending;
+
+    @Setup(Level.Trial)
+    public void setup() {
+	machine = BenchMachine.boot(new String[] {
+		"Machine.processor = false",
+		"Kernel.kernel = nachos.threads.ThreadedKernel" });
+	interrupt = machine.getPrivilege().interrupt;
+
+	for (int i=0; i<pending; i++)
+	    interrupt.schedule(farFuture + i, "background", handler);
+    }
+
+    @Benchmark
+    public boolean scheduleCancel() {
+	long handle = interrupt.schedule(1 + (next++ & 1023), "bench",
+					 handler);
+	return interrupt.cancel(handle);
+    }
+
+    @Benchmark
+    public void tickIdle() {
+	interrupt.tick(false);
+    }
+
+    @Benchmark
+    public int tickDue() {
+	interrupt.schedule(1, "bench", handler);
+	interrupt.tick(false);
+	return handled;
+    }
+
+    private static final long farFuture = 1L << 50;
+
+    private BenchMachine machine;
+    private Privilege.InterruptPrivilege interrupt;
+    private int next = 0;
+    private int handled = 0;
+
+    private final Runnable handler = new Runnable() {
+	    public void run() { handled++; }
+	};
+}
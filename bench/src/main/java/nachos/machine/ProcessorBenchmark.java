@@ -0,0 +1,144 @@
+package nachos.machine;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Runs the test programs on the simulated processor, from load to
+ * <tt>exit()</tt>. JMH reports programs per second as the score of
+ * <tt>run</tt>, and simulated instructions per second as the score of
+ * <tt>run:instructions</tt>.
+ *
+ * <p>
+ * <tt>engine</tt> selects how instructions are executed: by the plain
+ * interpreter, from the decode cache, with fused pairs, with threaded code,
+ * or as translated blocks. <tt>translation</tt> selects a page table or a
+ * TLB. Each program starts from the same memory image every time, but the
+ * processor's caches are kept warm from one run to the next, as they would be
+ * for a program that the shell runs over and over.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+    @Param({"matmult", "sort", "cat", "cp"})
+    public String program;
+
+    @Param({"pageTable", "tlb"})
+    public String translation;
+
+    @Param({"interpret", "decodeCache", "fused", "threadedCode",
+	    "translateBlocks"})
+    public String engine;
+
+    /**
+     * Counts the simulated instructions executed in each iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+	public long instructions;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+	    instructions = 0;
+	}
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+	machine = BenchMachine.boot(configuration(translation, engine));
+
+	input = new byte[16*1024];
+	for (int i=0; i<input.length; i++)
+	    input[i] = (byte) ((i % 64 == 63) ? '\n' : 'a' + i%26);
+	machine.putFile(inputName, input);
+
+	if (program.equals("cat"))
+	    loaded = machine.load("cat.coff", new String[] { "cat", inputName });
+	else if (program.equals("cp"))
+	    loaded = machine.load("cp.coff",
+				  new String[] { "cp", inputName, copyName });
+	else
+	    loaded = machine.load(program + ".coff", new String[] { program });
+
+	// make sure the program actually works before timing it
+	machine.run(loaded);
+	check();
+    }
+
+    @TearDown(Level.Trial)
+    public void check() {
+	int status = machine.getExitStatus();
+
+	if (program.equals("matmult"))
+	    Lib.assertTrue(status == 7220, "matmult returned " + status);
+	else
+	    Lib.assertTrue(status == 0, program + " returned " + status);
+
+	if (program.equals("cat"))
+	    Lib.assertTrue(Arrays.equals(machine.getConsoleOutput(), input),
+			   "cat printed the wrong output");
+	else if (program.equals("cp"))
+	    Lib.assertTrue(Arrays.equals(machine.getFile(copyName), input),
+			   "cp made the wrong copy");
+    }
+
+    @Benchmark
+    public int run(Counters counters) {
+	counters.instructions += machine.run(loaded);
+	return machine.getExitStatus();
+    }
+
+    /**
+     * Return the configuration of a machine with a processor that uses the
+     * specified kind of translation and execution engine.
+     */
+    static String[] configuration(String translation, String engine) {
+	String kernel;
+	if (translation.equals("pageTable"))
+	    kernel = "nachos.userprog.UserKernel";
+	else if (translation.equals("tlb"))
+	    kernel = "nachos.vm.VMKernel";
+	else
+	    throw new IllegalArgumentException("unknown translation " +
+					       translation);
+
+	String[] engineKeys;
+	if (engine.equals("interpret"))
+	    engineKeys = new String[0];
+	else if (engine.equals("decodeCache"))
+	    engineKeys = new String[] { "Processor.decodeCache = true" };
+	else if (engine.equals("fused"))
+	    engineKeys = new String[] { "Processor.decodeCache = true",
+					"Processor.fuseInstructions = true" };
+	else if (engine.equals("threadedCode"))
+	    engineKeys = new String[] { "Processor.decodeCache = true",
+					"Processor.threadedCode = true" };
+	else if (engine.equals("translateBlocks"))
+	    engineKeys = new String[] { "Processor.translateBlocks = true" };
+	else
+	    throw new IllegalArgumentException("unknown engine " + engine);
+
+	String[] keys = new String[4 + engineKeys.length];
+	keys[0] = "Machine.processor = true";
+	keys[1] = "Processor.numPhysPages = 64";
+	keys[2] = "Kernel.kernel = " + kernel;
+	keys[3] = "Processor.TLBSize = 4";
+	System.arraycopy(engineKeys, 0, keys, 4, engineKeys.length);
+
+	return keys;
+    }
+
+    private static final String inputName = "input.txt";
+    private static final String copyName = "copy.txt";
+
+    private BenchMachine machine;
+    private BenchMachine.Program loaded;
+    private byte[] input;
+}
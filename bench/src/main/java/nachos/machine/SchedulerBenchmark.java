@@ -0,0 +1,79 @@
+package nachos.machine;
+
+import nachos.threads.KThread;
+import nachos.threads.ThreadQueue;
+import nachos.threads.ThreadedKernel;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures a thread queue with <tt>waiters</tt> threads waiting on it, at
+ * random priorities: each operation takes the next thread off the queue and
+ * puts it back, as a ready queue does at every context switch. The round robin
+ * scheduler, which ignores priorities, is the yardstick.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulerBenchmark {
+    @Param({"PriorityScheduler", "RoundRobinScheduler"})
+    public String scheduler;
+
+    @Param({"10", "100", "1000"})
+    public int waiters;
+
+    @Setup(Level.Trial)
+    public void setup() {
+	machine = BenchMachine.boot(new String[] {
+		"Machine.processor = false",
+		"Kernel.kernel = nachos.threads.ThreadedKernel",
+		"ThreadedKernel.scheduler = nachos.threads." + scheduler });
+
+	machine.runInKernel(new Runnable() {
+		public void run() {
+		    boolean intStatus = Machine.interrupt().disable();
+
+		    queue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+		    Random random = new Random(0);
+		    for (int i=0; i<waiters; i++) {
+			KThread thread = new KThread();
+			if (scheduler.equals("PriorityScheduler"))
+			    ThreadedKernel.scheduler.setPriority(thread,
+								 random.nextInt(8));
+			queue.waitForAccess(thread);
+		    }
+
+		    Machine.interrupt().restore(intStatus);
+		}
+	    });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(operationsPerRun)
+    public void nextThread() {
+	machine.runInKernel(nextThread);
+    }
+
+    private static final int operationsPerRun = 10000;
+
+    private BenchMachine machine;
+    private ThreadQueue queue;
+
+    private final Runnable nextThread = new Runnable() {
+	    public void run() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i=0; i<operationsPerRun; i++)
+		    queue.waitForAccess(queue.nextThread());
+
+		Machine.interrupt().restore(intStatus);
+	    }
+	};
+}
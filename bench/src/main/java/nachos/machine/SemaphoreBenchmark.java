@@ -0,0 +1,79 @@
+package nachos.machine;
+
+import nachos.threads.KThread;
+import nachos.threads.Semaphore;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the latency of a context switch with the ping-pong of
+ * <tt>Semaphore.selfTest()</tt>: the main kernel thread signals
+ * <tt>ping</tt> and waits on <tt>pong</tt>, and a second thread waits on
+ * <tt>ping</tt> and signals <tt>pong</tt>, so each round trip is two context
+ * switches. The score is the time per round trip.
+ *
+ * <p>
+ * <tt>spinCount</tt> sets <tt>TCB.spinCount</tt>, the number of times a
+ * waiting TCB checks for its turn before parking its thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SemaphoreBenchmark {
+    @Param({"platform"})
+    public String threads;
+
+    @Param({"0", "1000", "10000"})
+    public int spinCount;
+
+    @Setup(Level.Trial)
+    public void setup() {
+	machine = BenchMachine.boot(new String[] {
+		"Machine.processor = false",
+		"Kernel.kernel = nachos.threads.ThreadedKernel",
+		"ThreadedKernel.scheduler = nachos.threads.RoundRobinScheduler",
+		"TCB.threads = " + threads,
+		"TCB.spinCount = " + spinCount });
+
+	machine.runInKernel(new Runnable() {
+		public void run() {
+		    ping = new Semaphore(0);
+		    pong = new Semaphore(0);
+
+		    new KThread(new Runnable() {
+			    public void run() {
+				while (true) {
+				    ping.P();
+				    pong.V();
+				}
+			    }
+			}).setName("ping").fork();
+		}
+	    });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(roundTrips)
+    public void pingPong() {
+	machine.runInKernel(pingPong);
+    }
+
+    private static final int roundTrips = 1000;
+
+    private BenchMachine machine;
+    private Semaphore ping, pong;
+
+    private final Runnable pingPong = new Runnable() {
+	    public void run() {
+		for (int i=0; i<roundTrips; i++) {
+		    ping.V();
+		    pong.P();
+		}
+	    }
+	};
+}
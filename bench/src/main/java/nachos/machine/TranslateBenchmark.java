@@ -0,0 +1,80 @@
+package nachos.machine;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures <tt>Processor.translate()</tt> on its own, over a stream of word
+ * reads spread across <tt>pages</tt> virtual pages. With a page table every
+ * page is valid, so this measures the remembered translations and the table
+ * lookup. With a TLB, a working set larger than the TLB misses, and each miss
+ * is refilled from the page table and retried, as a kernel would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranslateBenchmark {
+    @Param({"pageTable", "tlb"})
+    public String translation;
+
+    @Param({"1", "4", "16", "64"})
+    public int pages;
+
+    @Setup(Level.Trial)
+    public void setup() {
+	machine = BenchMachine.boot(
+	    ProcessorBenchmark.configuration(translation, "interpret"));
+	processor = machine.getProcessor();
+
+	TranslationEntry[] pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, vpn, true, false,
+						  false, false);
+
+	machine.setPageTable(pageTable);
+	if (!processor.hasTLB())
+	    processor.setPageTable(pageTable);
+
+	Random random = new Random(0);
+	addresses = new int[numAddresses];
+	for (int i=0; i<numAddresses; i++) {
+	    addresses[i] = Processor.makeAddress(random.nextInt(pages),
+						 random.nextInt(pageSize/4)*4);
+	}
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(numAddresses)
+    public int translate() {
+	int sum = 0;
+
+	for (int i=0; i<numAddresses; i++) {
+	    int vaddr = addresses[i];
+
+	    while (true) {
+		try {
+		    sum += processor.translate(vaddr, 4, false);
+		    break;
+		}
+		catch (Processor.MipsException e) {
+		    machine.refillTLB(Processor.pageFromAddress(vaddr));
+		}
+	    }
+	}
+
+	return sum;
+    }
+
+    private static final int numPages = 64;
+    private static final int numAddresses = 1024;
+    private static final int pageSize = Processor.pageSize;
+
+    private BenchMachine machine;
+    private Processor processor;
+    private int[] addresses;
+}
@@ -0,0 +1,447 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many independent Nachos machines in one JVM, so that a batch of test
+ * programs does not pay for starting a JVM each. Each line of the job file
+ * holds the command line arguments of one machine, as they would be given
+ * to <tt>nachos.machine.Machine</tt>; blank lines and lines starting with
+ * <tt>#</tt> are ignored. For example:
+ *
+ * <pre>
+ * java nachos.machine.Batch -j 4 jobs.txt
+ * </pre>
+ *
+ * <p>
+ * Each machine gets its own copy of the Nachos classes, loaded by its own
+ * class loader, so each has its own <tt>Machine</tt>, <tt>Privilege</tt>,
+ * <tt>Stats</tt>, <tt>Interrupt</tt>, <tt>TCB</tt>s and kernel, and nothing
+ * one machine does is seen by another. The machines run on a pool of host
+ * threads, one per host core unless <tt>-j</tt> says otherwise. The output
+ * of each machine is collected and printed as one block when it exits.
+ *
+ * <p>
+ * A JVM has only one security manager, so the batch installs one that
+ * passes each check to the <tt>NachosSecurityManager</tt> of the machine
+ * whose thread asked. When a machine exits, its TCBs stop themselves, so
+ * the other machines run on. All machines share <tt>System.in</tt> and the current directory.
+ */
+public final class Batch {
+    /**
+     * Batch entry point.
+     *
+     * @param	args	the command line arguments.
+     */
+    public static void main(String[] args) {
+	int numThreads = Runtime.getRuntime().availableProcessors();
+	String jobFileName = null;
+
+	for (int i=0; i<args.length; i++) {
+	    if (args[i].equals("-j") && i+1 < args.length) {
+		try {
+		    numThreads = Integer.parseInt(args[++i]);
+		}
+		catch (NumberFormatException e) {
+		    usage();
+		}
+	    }
+	    else if (jobFileName == null) {
+		jobFileName = args[i];
+	    }
+	    else {
+		usage();
+	    }
+	}
+
+	if (jobFileName == null || numThreads < 1)
+	    usage();
+
+	ArrayList<Job> jobs = new ArrayList<Job>();
+	try {
+	    BufferedReader in = new BufferedReader(new FileReader(jobFileName));
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		line = line.trim();
+		if (line.length() == 0 || line.startsWith("#"))
+		    continue;
+
+		StringTokenizer st = new StringTokenizer(line);
+		String[] jobArgs = new String[st.countTokens()];
+		for (int i=0; i<jobArgs.length; i++)
+		    jobArgs[i] = st.nextToken();
+
+		jobs.add(new Job(jobs.size()+1, jobArgs));
+	    }
+	    in.close();
+	}
+	catch (IOException e) {
+	    System.err.println("Could not read " + jobFileName + ": " + e);
+	    System.exit(1);
+	}
+
+	URL[] classPath = getClassPath();
+
+	stdout = System.out;
+	System.setOut(new PrintStream(new Router(System.out)));
+	System.setErr(new PrintStream(new Router(System.err)));
+	System.setSecurityManager(new Dispatcher());
+
+	running = true;
+
+	long start = System.currentTimeMillis();
+
+	ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+	for (int i=0; i<jobs.size(); i++) {
+	    final Job job = jobs.get(i);
+	    job.classPath = classPath;
+	    pool.execute(new Runnable() {
+		    public void run() { job.run(); }
+		});
+	}
+
+	pool.shutdown();
+	try {
+	    while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+		;
+	}
+	catch (InterruptedException e) {
+	}
+
+	int failed = 0;
+	for (int i=0; i<jobs.size(); i++) {
+	    if (jobs.get(i).status != 0)
+		failed++;
+	}
+
+	stdout.println("Batch: " + jobs.size() + " machines, " + failed +
+		       " failed, " + numThreads + " threads, " +
+		       (System.currentTimeMillis() - start) + " ms");
+	stdout.flush();
+
+	System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void usage() {
+	System.err.println("usage: java nachos.machine.Batch " +
+			   "[-j <threads>] <job file>");
+	System.exit(1);
+    }
+
+    private static URL[] getClassPath() {
+	StringTokenizer st =
+	    new StringTokenizer(System.getProperty("java.class.path"),
+				File.pathSeparator);
+
+	URL[] urls = new URL[st.countTokens()];
+	for (int i=0; i<urls.length; i++) {
+	    try {
+		urls[i] = new File(st.nextToken()).toURI().toURL();
+	    }
+	    catch (MalformedURLException e) {
+		throw new IllegalArgumentException(e.toString());
+	    }
+	}
+
+	return urls;
+    }
+
+    /**
+     * Test whether this JVM is running a batch of machines. Called by the
+     * machines' security managers.
+     *
+     * @return	<tt>true</tt> if this JVM is running a batch.
+     */
+    public static boolean isRunning() {
+	return running;
+    }
+
+    /**
+     * Make the specified security manager guard the threads of the calling
+     * machine. Called by <tt>NachosSecurityManager.enable()</tt> instead of
+     * installing itself.
+     *
+     * @param	manager	the machine's security manager.
+     */
+    public static void enableSecurityManager(SecurityManager manager) {
+	Job job = currentJob();
+	if (job == null || job.manager != null)
+	    throw new SecurityException();
+
+	job.manager = manager;
+    }
+
+    /**
+     * Record the exit status of the calling machine, and end the calling
+     * thread. Called by the machine's security manager instead of
+     * <tt>System.exit()</tt>. Never returns.
+     *
+     * @param	exitStatus	the exit status of the machine.
+     */
+    public static void exit(int exitStatus) {
+	Job job = currentJob();
+	if (job != null)
+	    job.finish(exitStatus);
+
+	throw new ThreadDeath();
+    }
+
+    private static Job currentJob() {
+	ThreadGroup group = Thread.currentThread().getThreadGroup();
+
+	Job job = jobsByGroup.get(group);
+	if (job != null)
+	    return job;
+
+	// getParent() asks the security manager, which would call us again
+	for (Iterator<Job> i=jobsByGroup.values().iterator(); i.hasNext(); ) {
+	    job = i.next();
+	    if (job.group.parentOf(group))
+		return job;
+	}
+
+	return null;
+    }
+
+    /** One machine of the batch. */
+    private static class Job {
+	Job(int id, String[] args) {
+	    this.id = id;
+	    this.args = args;
+	}
+
+	void run() {
+	    long start = System.currentTimeMillis();
+
+	    final ClassLoader loader = new MachineLoader(classPath);
+
+	    group = new ThreadGroup("nachos " + id);
+	    jobsByGroup.put(group, this);
+
+	    Thread main = new Thread(group, new Runnable() {
+		    public void run() { runMachine(loader); }
+		}, "nachos " + id + " main");
+	    main.start();
+
+	    try {
+		done.await();
+	    }
+	    catch (InterruptedException e) {
+	    }
+
+	    // wait for the machine's threads to die, so it can be collected
+	    Thread[] threads = new Thread[group.activeCount() + 1];
+	    int count = group.enumerate(threads);
+	    for (int i=0; i<count; i++) {
+		try {
+		    threads[i].join(1000);
+		}
+		catch (InterruptedException e) {
+		}
+	    }
+
+	    // threads that would not die stay under the machine's manager
+	    try {
+		group.destroy();
+		jobsByGroup.remove(group);
+	    }
+	    catch (IllegalThreadStateException e) {
+	    }
+
+	    StringBuffer header = new StringBuffer("=== machine " + id + ":");
+	    for (int i=0; i<args.length; i++)
+		header.append(" " + args[i]);
+	    header.append(" (status " + status + ", " +
+			  (System.currentTimeMillis() - start) + " ms)");
+
+	    synchronized (stdout) {
+		stdout.println(header);
+		stdout.write(output.toByteArray(), 0, output.size());
+		stdout.println();
+		stdout.flush();
+	    }
+
+	    output = null;
+	}
+
+	private void runMachine(ClassLoader loader) {
+	    boolean started = false;
+	    
+	    try {
+		loader.loadClass("nachos.machine.Machine")
+		    .getMethod("main", new Class<?>[] { String[].class })
+		    .invoke(null, new Object[] { args });
+		started = true;
+	    }
+	    catch (InvocationTargetException e) {
+		if (!(e.getCause() instanceof ThreadDeath))
+		    e.getCause().printStackTrace();
+	    }
+	    catch (Throwable e) {
+		if (!(e instanceof ThreadDeath))
+		    e.printStackTrace();
+	    }
+
+	    /* main() returns once the first Nachos thread has finished, while
+	     * the others run on, and the machine's status is only known when
+	     * it exits through exit(). Throwing anything else means the
+	     * machine could not start.
+	     */
+	    if (!started)
+		finish(1);
+	}
+
+	/**
+	 * Record the exit status of the machine. The machine's TCBs end
+	 * themselves when it exits, so nothing here has to stop its threads.
+	 */
+	void finish(int exitStatus) {
+	    synchronized (this) {
+		if (finished)
+		    return;
+
+		finished = true;
+		status = exitStatus;
+	    }
+
+	    done.countDown();
+	}
+
+	synchronized void write(byte[] b, int off, int len) {
+	    if (!finished)
+		output.write(b, off, len);
+	}
+
+	int id;
+	String[] args;
+	URL[] classPath;
+
+	ThreadGroup group;
+	volatile SecurityManager manager = null;
+
+	ByteArrayOutputStream output = new ByteArrayOutputStream();
+	boolean finished = false;
+	int status = 0;
+	CountDownLatch done = new CountDownLatch(1);
+    }
+
+    /**
+     * Loads a private copy of every class on the class path, except this
+     * class, which all machines share.
+     */
+    private static class MachineLoader extends URLClassLoader {
+	MachineLoader(URL[] classPath) {
+	    super(classPath, null);
+	}
+
+	protected Class<?> loadClass(String name, boolean resolve)
+	    throws ClassNotFoundException {
+	    if (name.equals(Batch.class.getName()) ||
+		name.startsWith(Batch.class.getName() + "$"))
+		return Batch.class.getClassLoader().loadClass(name);
+
+	    return super.loadClass(name, resolve);
+	}
+    }
+
+    /** Sends output to the machine whose thread wrote it. */
+    private static class Router extends OutputStream {
+	Router(PrintStream out) {
+	    this.out = out;
+	}
+
+	public void write(int b) {
+	    write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) {
+	    Job job = currentJob();
+	    if (job != null)
+		job.write(b, off, len);
+	    else
+		out.write(b, off, len);
+	}
+
+	public void flush() {
+	    out.flush();
+	}
+
+	private PrintStream out;
+    }
+
+    /**
+     * Passes each check to the security manager of the machine whose thread
+     * asked. Threads that belong to no machine are the batch's own, and may
+     * do anything.
+     */
+    private static class Dispatcher extends SecurityManager {
+	public void checkPermission(Permission perm) {
+	    SecurityManager manager = check(perm);
+	    if (manager != null)
+		manager.checkPermission(perm);
+	}
+
+	public void checkPermission(Permission perm, Object context) {
+	    SecurityManager manager = check(perm);
+	    if (manager != null)
+		manager.checkPermission(perm, context);
+	}
+
+	public ThreadGroup getThreadGroup() {
+	    Job job = currentJob();
+	    if (job != null && job.manager != null) {
+		ThreadGroup group = job.manager.getThreadGroup();
+		if (group != null)
+		    return group;
+	    }
+
+	    return super.getThreadGroup();
+	}
+
+	private SecurityManager check(Permission perm) {
+	    Job job = currentJob();
+	    if (job == null)
+		return null;
+
+	    // a machine must never take the whole JVM down with it
+	    if (perm instanceof RuntimePermission &&
+		perm.getName().startsWith("exitVM"))
+		throw new SecurityException();
+
+	    return job.manager;
+	}
+    }
+
+    private static volatile boolean running = false;
+    private static PrintStream stdout;
+
+    private static ConcurrentHashMap<ThreadGroup,Job> jobsByGroup =
+	new ConcurrentHashMap<ThreadGroup,Job>();
+
+    /**
+     * Prevent instantiation.
+     */
+    private Batch() {
+    }
+}
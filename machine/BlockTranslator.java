@@ -0,0 +1,1164 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compiles hot basic blocks of MIPS code into JVM classes on behalf of a
+ * <tt>Processor</tt>.
+ *
+ * <p>
+ * Blocks are cached by the physical address of their first instruction. A
+ * block only starts where the processor is executing sequentially (that is,
+ * not in a branch delay slot), never crosses a page boundary, and ends either
+ * after a branch and its delay slot, or just before an instruction that is
+ * left to the interpreter: syscalls, unaligned loads and stores, and invalid
+ * or unimplemented instructions. Because all of its instructions are on one
+ * page, a single address translation at the start of a block stands in for
+ * the fetch of every instruction in it.
+ *
+ * <p>
+ * A block is only run if it will finish before the next pending interrupt
+ * falls due, so interrupts are still taken between instructions at exactly
+ * the same ticks as with the interpreter. Blocks remember the instruction
+ * words they were translated from, and are checked against memory before
+ * they are run, so code loaded by the kernel through
+ * <tt>Processor.getMemory()</tt> or <tt>Processor.getPhysicalMemory()</tt> is
+ * never run stale. Memory can only change
+ * under a block when the kernel runs or when a user program stores into a
+ * page holding translated code, so a block is only checked on its first
+ * entry after one of those (an <i>epoch</i>), rather than on every entry.
+ *
+ * <p>
+ * The generated classes are defined through
+ * <tt>java.lang.invoke.MethodHandles.Lookup</tt>, as hidden classes where the
+ * JVM supports them so that discarded blocks can be unloaded. On a JVM that
+ * can do neither, block translation is turned off.
+ */
+final class BlockTranslator {
+    private BlockTranslator(Processor processor, Privilege privilege,
+			    int[] registers, PhysicalMemory memory,
+			    int threshold) {
+	this.processor = processor;
+	this.privilege = privilege;
+	this.registers = registers;
+	this.memory = memory;
+	this.threshold = threshold;
+
+	int numPhysPages = memory.getNumPages();
+	blocks = new TranslatedBlock[numPhysPages][];
+	counts = new int[numPhysPages][];
+    }
+
+    /**
+     * Allocate a new block translator for the specified processor.
+     *
+     * @param	processor	the processor whose code will be translated.
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	registers	the processor's registers.
+     * @param	memory		the processor's main memory.
+     * @param	threshold	the number of times a block must be entered
+     *				before it is translated.
+     * @return	the new translator, or <tt>null</tt> if this JVM cannot
+     *		define classes at run time.
+     */
+    static BlockTranslator create(Processor processor, Privilege privilege,
+				  int[] registers, PhysicalMemory memory,
+				  int threshold) {
+	Lib.assertTrue(threshold > 0);
+
+	final BlockTranslator translator =
+	    new BlockTranslator(processor, privilege, registers, memory,
+				threshold);
+
+	Boolean supported = (Boolean) privilege.doPrivileged(
+	    new PrivilegedAction<Boolean>() {
+		public Boolean run() {
+		    return Boolean.valueOf(translator.findDefiner());
+		}
+	    });
+
+	if (!supported.booleanValue()) {
+	    Lib.debug(dbgTranslate, "block translation is not supported");
+	    return null;
+	}
+
+	return translator;
+    }
+
+    /**
+     * Run the translated block at the current PC, if there is one and it is
+     * no longer than <i>limit</i> instructions. The caller charges the ticks
+     * for the instructions executed.
+     *
+     * <p>
+     * If an instruction in the block raises an exception, the number of
+     * instructions completed before it is available from
+     * <tt>completed()</tt> until the next call.
+     *
+     * @param	limit	the most instructions that may be executed before
+     *			the next interrupt is due.
+     * @return	the number of instructions executed, or 0 if no block was
+     *		run and the next instruction must be interpreted.
+     * @exception	Processor.MipsException	if fetching the first
+     *						instruction, or any instruction
+     *						in the block, raised an
+     *						exception.
+     */
+    int run(int limit) throws Processor.MipsException {
+	completed = 0;
+	declined = -1;
+	
+	int base = registers[Processor.regPC];
+	if (registers[Processor.regNextPC] != base+4)
+	    return 0;
+
+	int paddr = processor.translate(base, 4, false);
+
+	TranslatedBlock block = lookup(paddr);
+	if (block == null || block.length == 0 || block.length > limit) {
+	    declined = paddr;
+	    return 0;
+	}
+
+	runningStart = paddr;
+	runningEnd = paddr + block.length*4;
+
+	try {
+	    return block.run(processor, registers, base);
+	}
+	catch (Processor.MipsException e) {
+	    completed = (registers[Processor.regPC] - base) / 4;
+	    throw e;
+	}
+	finally {
+	    runningStart = runningEnd = -1;
+	    codeModified = false;
+	}
+    }
+
+    /**
+     * Return the number of instructions a block completed before the last
+     * call to <tt>run()</tt> threw an exception.
+     *
+     * @return	the number of instructions to charge before the exception
+     *		is handled.
+     */
+    int completed() {
+	return completed;
+    }
+
+    /**
+     * Return the physical address of the instruction at the PC, if the last
+     * call to <tt>run()</tt> translated it but did not run a block, so that
+     * the interpreter need not translate it again.
+     *
+     * @return	the physical address, or -1 if it was not translated.
+     */
+    int declined() {
+	return declined;
+    }
+
+    /**
+     * Called by the processor after every store. Notes whether the store
+     * changed the block that is running.
+     *
+     * @param	paddr	the physical address that was written.
+     */
+    void stored(int paddr) {
+	if (blocks[paddr / Processor.pageSize] != null)
+	    epoch++;
+	
+	if (paddr >= runningStart && paddr < runningEnd)
+	    codeModified = true;
+    }
+
+    /**
+     * Called by the processor whenever the kernel may have run, and so may
+     * have written to memory. Every block is checked against memory again the
+     * next time it is entered.
+     */
+    void memoryMayHaveChanged() {
+	epoch++;
+    }
+
+    /**
+     * Test and clear the flag set by <tt>stored()</tt>.
+     *
+     * @return	<tt>true</tt> if the running block stored into its own code.
+     */
+    boolean takeCodeModified() {
+	boolean modified = codeModified;
+	codeModified = false;
+	return modified;
+    }
+
+    /**
+     * Find the block starting at physical address <i>paddr</i>, translating
+     * it if it has become hot.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the block, or <tt>null</tt> if it has not been translated yet.
+     */
+    private TranslatedBlock lookup(int paddr) {
+	int ppn = paddr / Processor.pageSize;
+	int index = (paddr % Processor.pageSize) / 4;
+
+	TranslatedBlock[] page = blocks[ppn];
+	if (page == null) {
+	    page = new TranslatedBlock[Processor.pageSize/4];
+	    blocks[ppn] = page;
+	    counts[ppn] = new int[Processor.pageSize/4];
+	}
+
+	TranslatedBlock block = page[index];
+	if (block != null) {
+	    if (block.checked == epoch || block.matches(memory, paddr)) {
+		block.checked = epoch;
+		return block;
+	    }
+
+	    // the code has changed, so it has to become hot all over again
+	    page[index] = null;
+	    counts[ppn][index] = 0;
+	}
+
+	if (++counts[ppn][index] < threshold)
+	    return null;
+
+	block = translate(paddr);
+	page[index] = block;
+	return block;
+    }
+
+    /**
+     * Translate the block starting at physical address <i>paddr</i>.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the translated block. If the first instruction cannot be
+     *		translated, the block is empty.
+     */
+    private TranslatedBlock translate(int paddr) {
+	int maxLength = Math.min(maxBlockLength,
+				 (Processor.pageSize -
+				  paddr % Processor.pageSize) / 4);
+
+	Processor.DecodedInstruction[] insts =
+	    new Processor.DecodedInstruction[maxLength];
+	int length = 0;
+	boolean branch = false;
+
+	while (length < maxLength) {
+	    Processor.DecodedInstruction inst = decode(paddr + length*4);
+	    if (!translatable(inst))
+		break;
+
+	    if (Lib.test(Processor.Mips.BRANCH, inst.flags)) {
+		// the delay slot must be on the same page, and not a branch
+		if (length+1 == maxLength)
+		    break;
+
+		Processor.DecodedInstruction slot =
+		    decode(paddr + (length+1)*4);
+		if (!translatable(slot) ||
+		    Lib.test(Processor.Mips.BRANCH, slot.flags))
+		    break;
+
+		insts[length++] = inst;
+		insts[length++] = slot;
+		branch = true;
+		break;
+	    }
+
+	    insts[length++] = inst;
+	}
+
+	TranslatedBlock block = null;
+	if (length > 0)
+	    block = define(generate(insts, length, branch));
+
+	if (block == null) {
+	    block = new Untranslatable();
+	    length = 0;
+	}
+
+	block.translator = this;
+	block.length = length;
+	block.words = new int[Math.max(length, 1)];
+	for (int i=0; i<block.words.length; i++)
+	    block.words[i] = memory.load(paddr + i*4, 4);
+
+	Lib.debug(dbgTranslate, "translated " + length + " instructions at "
+		  + "paddr=0x" + Lib.toHexString(paddr));
+
+	return block;
+    }
+
+    private Processor.DecodedInstruction decode(int paddr) {
+	Processor.DecodedInstruction inst = new Processor.DecodedInstruction();
+	inst.decode(memory.load(paddr, 4));
+	return inst;
+    }
+
+    private static boolean translatable(Processor.DecodedInstruction inst) {
+	switch (inst.operation) {
+	case Processor.Mips.INVALID:
+	case Processor.Mips.UNIMPL:
+	case Processor.Mips.SYSCALL:
+	case Processor.Mips.LWL:
+	case Processor.Mips.LWR:
+	case Processor.Mips.SWL:
+	case Processor.Mips.SWR:
+	    return false;
+	default:
+	    return true;
+	}
+    }
+
+    /**
+     * Generate a class file for a block. The <tt>run()</tt> method keeps the
+     * branch target in local 4, and uses locals 5 through 7 as scratch
+     * space.
+     *
+     * @param	insts	the instructions in the block.
+     * @param	length	the number of instructions in the block.
+     * @param	branch	<tt>true</tt> if the block ends with a branch and its
+     *			delay slot.
+     * @return	the class file.
+     */
+    private byte[] generate(Processor.DecodedInstruction[] insts, int length,
+			    boolean branch) {
+	Assembler a = new Assembler();
+
+	// the interpreter might have left a load pending
+	boolean pendingLoad = true;
+
+	for (int i=0; i<length; i++) {
+	    Processor.DecodedInstruction inst = insts[i];
+	    int offset = i*4;
+	    boolean delaySlot = branch && i == length-1;
+	    boolean overflow = Lib.test(Processor.Mips.OVERFLOW, inst.flags);
+
+	    if (overflow ||
+		inst.operation == Processor.Mips.LOAD ||
+		inst.operation == Processor.Mips.STORE ||
+		inst.operation == Processor.Mips.DIV)
+		setPC(a, offset, delaySlot);
+
+	    switch (inst.operation) {
+	    case Processor.Mips.MULT:
+	    case Processor.Mips.DIV:
+		a.aload(1);
+		pushRegister(a, inst.rs);
+		pushRegister(a, inst.rt);
+		a.iconst(Lib.test(Processor.Mips.UNSIGNED, inst.flags) ? 1 : 0);
+		a.invoke(INVOKESTATIC, blockClass,
+			 inst.operation == Processor.Mips.MULT ?
+			 "multiply" : "divide",
+			 "(" + processorType + "IIZ)V");
+		break;
+
+	    case Processor.Mips.MTLO:
+	    case Processor.Mips.MTHI:
+		a.aload(2);
+		a.iconst(inst.operation == Processor.Mips.MTLO ?
+			 Processor.regLo : Processor.regHi);
+		pushRegister(a, inst.rs);
+		a.op(IASTORE);
+		break;
+
+	    case Processor.Mips.LOAD:
+		a.aload(1);
+		pushRegister(a, inst.rs);
+		a.iconst(inst.imm);
+		a.op(IADD);
+		a.iconst(inst.size);
+		a.invoke(INVOKEVIRTUAL, processorClass, "readMem", "(II)I");
+
+		// unsigned loads are not zero-extended by the interpreter
+		if (!Lib.test(Processor.Mips.UNSIGNED, inst.flags)) {
+		    if (inst.size == 1)
+			a.op(I2B);
+		    else if (inst.size == 2)
+			a.op(I2S);
+		}
+		a.istore(7);
+		break;
+
+	    case Processor.Mips.STORE:
+		a.aload(0);
+		a.aload(1);
+		pushRegister(a, inst.rs);
+		a.iconst(inst.imm);
+		a.op(IADD);
+		a.iconst(inst.size);
+		pushRegister(a, inst.rt);
+		a.invoke(INVOKEVIRTUAL, blockClass, "store",
+			 "(" + processorType + "III)Z");
+		a.istore(7);
+		break;
+
+	    case Processor.Mips.JUMP:
+		if (inst.format == Processor.Mips.JFMT) {
+		    a.iload(3);
+		    a.iconst(offset+4);
+		    a.op(IADD);
+		    a.iconst(0xF0000000);
+		    a.op(IAND);
+		    a.iconst(inst.target<<2);
+		    a.op(IOR);
+		}
+		else {
+		    pushRegister(a, inst.rs);
+		}
+		a.istore(4);
+		break;
+
+	    case Processor.Mips.BEQ:
+	    case Processor.Mips.BNE:
+	    case Processor.Mips.BLEZ:
+	    case Processor.Mips.BGTZ:
+	    case Processor.Mips.BLTZ:
+	    case Processor.Mips.BGEZ:
+		generateBranch(a, inst, offset);
+		break;
+
+	    default:
+		// don't bother computing a result that would be thrown away
+		if (inst.dstReg != 0 || overflow)
+		    generateArithmetic(a, inst);
+		break;
+	    }
+
+	    // write back, completing the previous delayed load
+	    if (inst.operation == Processor.Mips.LOAD) {
+		a.aload(1);
+		a.iconst(inst.dstReg);
+		a.iload(7);
+		a.iconst(0xFFFFFFFF);
+		a.invoke(INVOKEVIRTUAL, processorClass, "delayedLoad", "(III)V");
+	    }
+	    else if (pendingLoad) {
+		a.aload(1);
+		a.invoke(INVOKEVIRTUAL, processorClass, "finishLoad", "()V");
+	    }
+	    pendingLoad = (inst.operation == Processor.Mips.LOAD &&
+			   inst.dstReg != 0);
+
+	    if (Lib.test(Processor.Mips.LINK, inst.flags)) {
+		if (inst.dstReg != 0) {
+		    a.aload(2);
+		    a.iconst(inst.dstReg);
+		    a.iload(3);
+		    a.iconst(offset+8);
+		    a.op(IADD);
+		    a.op(IASTORE);
+		}
+	    }
+	    else if (Lib.test(Processor.Mips.DST, inst.flags) &&
+		     inst.dstReg != 0) {
+		a.aload(2);
+		a.iconst(inst.dstReg);
+		a.iload(7);
+		a.op(IASTORE);
+	    }
+
+	    // stop if a store changed the code still to come in this block
+	    if (inst.operation == Processor.Mips.STORE && i < length-1) {
+		int next = a.newLabel();
+		a.iload(7);
+		a.branch(IFEQ, next);
+		setNextPC(a, offset+4);
+		a.iconst(i+1);
+		a.op(IRETURN);
+		a.mark(next);
+	    }
+	}
+
+	if (branch) {
+	    a.aload(2);
+	    a.iconst(Processor.regPC);
+	    a.iload(4);
+	    a.op(IASTORE);
+	    a.aload(2);
+	    a.iconst(Processor.regNextPC);
+	    a.iload(4);
+	    a.iconst(4);
+	    a.op(IADD);
+	    a.op(IASTORE);
+	}
+	else {
+	    setNextPC(a, length*4);
+	}
+
+	a.iconst(length);
+	a.op(IRETURN);
+
+	return a.toClassFile("nachos/machine/TranslatedBlock$" + (numClasses++),
+			     blockClass, "run",
+			     "(" + processorType + "[II)I", 8, 8);
+    }
+
+    /**
+     * Generate an ALU instruction, leaving the result in local 7.
+     */
+    private static void generateArithmetic(Assembler a,
+					   Processor.DecodedInstruction inst) {
+	boolean overflow = Lib.test(Processor.Mips.OVERFLOW, inst.flags);
+	boolean unsigned = Lib.test(Processor.Mips.UNSIGNED, inst.flags);
+
+	switch (inst.operation) {
+	case Processor.Mips.ADD:
+	case Processor.Mips.SUB:
+	    pushSource1(a, inst);
+	    pushSource2(a, inst);
+
+	    if (!overflow) {
+		a.op(inst.operation == Processor.Mips.ADD ? IADD : ISUB);
+		break;
+	    }
+
+	    a.istore(6);
+	    a.istore(5);
+	    a.iload(5);
+	    a.iload(6);
+	    a.op(inst.operation == Processor.Mips.ADD ? IADD : ISUB);
+	    a.istore(7);
+
+	    // a+b overflows if the sum's sign differs from both a's and b's;
+	    // a-b overflows if a and b differ in sign, and the sum and a do too
+	    a.iload(5);
+	    a.iload(inst.operation == Processor.Mips.ADD ? 7 : 6);
+	    a.op(IXOR);
+	    a.iload(inst.operation == Processor.Mips.ADD ? 6 : 5);
+	    a.iload(7);
+	    a.op(IXOR);
+	    a.op(IAND);
+
+	    int ok = a.newLabel();
+	    a.branch(IFGE, ok);
+	    a.aload(1);
+	    a.invoke(INVOKESTATIC, blockClass, "overflow",
+		     "(" + processorType + ")V");
+	    a.mark(ok);
+	    return;
+
+	case Processor.Mips.SLL:
+	case Processor.Mips.SRA:
+	case Processor.Mips.SRL:
+	    pushSource2(a, inst);
+	    pushSource1(a, inst);
+	    // the interpreter shifts the sign-extended 64-bit operand, so its
+	    // srl keeps the sign bit just like sra
+	    a.op(inst.operation == Processor.Mips.SLL ? ISHL : ISHR);
+	    break;
+
+	case Processor.Mips.SLT:
+	    pushSource1(a, inst);
+	    if (unsigned) {
+		a.iconst(0x80000000);
+		a.op(IXOR);
+	    }
+	    pushSource2(a, inst);
+	    if (unsigned) {
+		a.iconst(0x80000000);
+		a.op(IXOR);
+	    }
+
+	    int less = a.newLabel(), done = a.newLabel();
+	    a.branch(IF_ICMPLT, less);
+	    a.iconst(0);
+	    a.branch(GOTO, done);
+	    a.mark(less);
+	    a.iconst(1);
+	    a.mark(done);
+	    break;
+
+	case Processor.Mips.AND:
+	case Processor.Mips.OR:
+	case Processor.Mips.NOR:
+	case Processor.Mips.XOR:
+	    pushSource1(a, inst);
+	    pushSource2(a, inst);
+	    switch (inst.operation) {
+	    case Processor.Mips.AND:
+		a.op(IAND);
+		break;
+	    case Processor.Mips.OR:
+		a.op(IOR);
+		break;
+	    case Processor.Mips.NOR:
+		a.op(IOR);
+		a.iconst(0xFFFFFFFF);
+		a.op(IXOR);
+		break;
+	    case Processor.Mips.XOR:
+		a.op(IXOR);
+		break;
+	    }
+	    break;
+
+	case Processor.Mips.LUI:
+	    a.iconst(inst.imm << 16);
+	    break;
+
+	case Processor.Mips.MFLO:
+	    pushRegister(a, Processor.regLo);
+	    break;
+	case Processor.Mips.MFHI:
+	    pushRegister(a, Processor.regHi);
+	    break;
+
+	default:
+	    Lib.assertNotReached();
+	}
+
+	a.istore(7);
+    }
+
+    /**
+     * Generate a conditional branch, leaving the address of the instruction
+     * after the delay slot in local 4.
+     */
+    private static void generateBranch(Assembler a,
+				       Processor.DecodedInstruction inst,
+				       int offset) {
+	int taken = a.newLabel(), done = a.newLabel();
+
+	pushRegister(a, inst.rs);
+
+	switch (inst.operation) {
+	case Processor.Mips.BEQ:
+	    pushRegister(a, inst.rt);
+	    a.branch(IF_ICMPEQ, taken);
+	    break;
+	case Processor.Mips.BNE:
+	    pushRegister(a, inst.rt);
+	    a.branch(IF_ICMPNE, taken);
+	    break;
+	case Processor.Mips.BLEZ:
+	    a.branch(IFLE, taken);
+	    break;
+	case Processor.Mips.BGTZ:
+	    a.branch(IFGT, taken);
+	    break;
+	case Processor.Mips.BLTZ:
+	    a.branch(IFLT, taken);
+	    break;
+	case Processor.Mips.BGEZ:
+	    a.branch(IFGE, taken);
+	    break;
+	}
+
+	a.iload(3);
+	a.iconst(offset+8);
+	a.op(IADD);
+	a.istore(4);
+	a.branch(GOTO, done);
+
+	a.mark(taken);
+	a.iload(3);
+	a.iconst(offset+4 + (inst.imm<<2));
+	a.op(IADD);
+	a.istore(4);
+
+	a.mark(done);
+    }
+
+    /**
+     * Store the address of the instruction at <i>offset</i> in the PC
+     * register, as the interpreter would before executing it.
+     */
+    private static void setPC(Assembler a, int offset, boolean delaySlot) {
+	a.aload(2);
+	a.iconst(Processor.regPC);
+	a.iload(3);
+	a.iconst(offset);
+	a.op(IADD);
+	a.op(IASTORE);
+
+	a.aload(2);
+	a.iconst(Processor.regNextPC);
+	if (delaySlot) {
+	    a.iload(4);
+	}
+	else {
+	    a.iload(3);
+	    a.iconst(offset+4);
+	    a.op(IADD);
+	}
+	a.op(IASTORE);
+    }
+
+    /**
+     * Leave the PC pointing at the instruction at <i>offset</i>, with no
+     * branch pending.
+     */
+    private static void setNextPC(Assembler a, int offset) {
+	setPC(a, offset, false);
+    }
+
+    private static void pushRegister(Assembler a, int number) {
+	// r0 is never written
+	if (number == 0) {
+	    a.iconst(0);
+	}
+	else {
+	    a.aload(2);
+	    a.iconst(number);
+	    a.op(IALOAD);
+	}
+    }
+
+    private static void pushSource1(Assembler a,
+				    Processor.DecodedInstruction inst) {
+	if (Lib.test(Processor.Mips.SRC1SH, inst.flags))
+	    a.iconst(inst.sh);
+	else
+	    pushRegister(a, inst.rs);
+    }
+
+    private static void pushSource2(Assembler a,
+				    Processor.DecodedInstruction inst) {
+	if (Lib.test(Processor.Mips.SRC2IMM, inst.flags))
+	    a.iconst(inst.imm);
+	else
+	    pushRegister(a, inst.rt);
+    }
+
+    /**
+     * Look up the methods needed to define classes at run time. They are
+     * called through method handles rather than reflection, because
+     * reflective calls are eventually compiled into classes with their own
+     * class loaders, which the security manager forbids.
+     *
+     * @return	<tt>true</tt> if this JVM can define classes at run time.
+     */
+    private boolean findDefiner() {
+	definer = MethodHandles.lookup();
+
+	try {
+	    Class<?> optionClass =
+		Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+	    Object noOptions = Array.newInstance(optionClass, 0);
+	    Method method =
+		MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+						     byte[].class, boolean.class,
+						     noOptions.getClass());
+	    defineHidden =
+		MethodHandles.insertArguments(definer.unreflect(method)
+					      .asFixedArity(),
+					      2, Boolean.TRUE, noOptions)
+		.bindTo(definer);
+	    return true;
+	}
+	catch (Exception e) {
+	}
+
+	try {
+	    Method method =
+		MethodHandles.Lookup.class.getMethod("defineClass",
+						     byte[].class);
+	    define = definer.unreflect(method).bindTo(definer);
+	    return true;
+	}
+	catch (Exception e) {
+	}
+
+	return false;
+    }
+
+    /**
+     * Define and instantiate a generated block class.
+     *
+     * @param	classFile	the class file generated for the block.
+     * @return	an instance of the new class, or <tt>null</tt> if it could
+     *		not be defined.
+     */
+    private TranslatedBlock define(final byte[] classFile) {
+	return (TranslatedBlock) privilege.doPrivileged(
+	    new PrivilegedAction<TranslatedBlock>() {
+		public TranslatedBlock run() {
+		    try {
+			MethodHandles.Lookup blockLookup;
+			Class<?> cls;
+			if (defineHidden != null) {
+			    blockLookup =
+				(MethodHandles.Lookup) defineHidden.invoke(classFile);
+			    cls = blockLookup.lookupClass();
+			}
+			else {
+			    blockLookup = definer;
+			    cls = (Class<?>) define.invoke(classFile);
+			}
+
+			MethodHandle constructor =
+			    blockLookup.findConstructor(cls,
+							MethodType.methodType(void.class));
+			return (TranslatedBlock) constructor.invoke();
+		    }
+		    catch (Error e) {
+			throw e;
+		    }
+		    catch (Throwable e) {
+			Lib.debug(dbgTranslate, "could not define block: " + e);
+			return null;
+		    }
+		}
+	    });
+    }
+
+    /**
+     * An entry marking a block whose first instruction must be interpreted.
+     */
+    private static class Untranslatable extends TranslatedBlock {
+	int run(Processor processor, int[] registers, int base) {
+	    Lib.assertNotReached();
+	    return 0;
+	}
+    }
+
+    /**
+     * Just enough of a class file writer to generate blocks: a constant pool,
+     * a single method with forward branches, and a constructor.
+     */
+    private static class Assembler {
+	void op(int opcode) {
+	    code.u1(opcode);
+	}
+
+	void iconst(int value) {
+	    if (value >= -1 && value <= 5) {
+		code.u1(ICONST_0 + value);
+	    }
+	    else if (value == (byte) value) {
+		code.u1(BIPUSH);
+		code.u1(value);
+	    }
+	    else if (value == (short) value) {
+		code.u1(SIPUSH);
+		code.u2(value);
+	    }
+	    else {
+		code.u1(LDC_W);
+		code.u2(integerConstant(value));
+	    }
+	}
+
+	void iload(int local) {
+	    local(ILOAD, local);
+	}
+
+	void istore(int local) {
+	    local(ISTORE, local);
+	}
+
+	void aload(int local) {
+	    local(ALOAD, local);
+	}
+
+	private void local(int opcode, int local) {
+	    Lib.assertTrue(local >= 0 && local < 256);
+	    code.u1(opcode);
+	    code.u1(local);
+	}
+
+	void invoke(int opcode, String owner, String name, String type) {
+	    code.u1(opcode);
+	    code.u2(memberConstant(owner, name, type));
+	}
+
+	int newLabel() {
+	    labels.add(-1);
+	    return labels.size()-1;
+	}
+
+	void mark(int label) {
+	    labels.set(label, code.size);
+	}
+
+	void branch(int opcode, int label) {
+	    fixups.add(code.size);
+	    fixups.add(label);
+	    code.u1(opcode);
+	    code.u2(0);
+	}
+
+	/**
+	 * Return a class file for a public final subclass of <i>superName</i>
+	 * with a no-argument constructor and one method, whose code is
+	 * everything assembled so far.
+	 */
+	byte[] toClassFile(String className, String superName,
+			   String methodName, String methodType,
+			   int maxStack, int maxLocals) {
+	    for (int i=0; i<fixups.size(); i+=2) {
+		int at = fixups.get(i), target = labels.get(fixups.get(i+1));
+		Lib.assertTrue(target >= 0);
+		code.patch2(at+1, target - at);
+	    }
+
+	    int thisIndex = classConstant(className);
+	    int superIndex = classConstant(superName);
+	    int superInit = memberConstant(superName, "<init>", "()V");
+	    int initName = utf8Constant("<init>"), initType = utf8Constant("()V");
+	    int runName = utf8Constant(methodName);
+	    int runType = utf8Constant(methodType);
+	    int codeName = utf8Constant("Code");
+
+	    Buffer init = new Buffer();
+	    init.u1(ALOAD_0);
+	    init.u1(INVOKESPECIAL);
+	    init.u2(superInit);
+	    init.u1(RETURN);
+
+	    Buffer out = new Buffer();
+	    out.u4(0xCAFEBABE);
+	    out.u2(0);
+	    out.u2(49);		// no stack map frames needed
+	    out.u2(constantCount+1);
+	    out.append(constants);
+	    out.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+	    out.u2(thisIndex);
+	    out.u2(superIndex);
+	    out.u2(0);		// interfaces
+	    out.u2(0);		// fields
+	    out.u2(2);		// methods
+	    method(out, ACC_PUBLIC, initName, initType, codeName, 1, 1, init);
+	    method(out, 0, runName, runType, codeName, maxStack, maxLocals,
+		   code);
+	    out.u2(0);		// attributes
+
+	    return out.toByteArray();
+	}
+
+	private void method(Buffer out, int access, int name, int type,
+			    int codeName, int maxStack, int maxLocals,
+			    Buffer body) {
+	    out.u2(access);
+	    out.u2(name);
+	    out.u2(type);
+	    out.u2(1);
+	    out.u2(codeName);
+	    out.u4(12 + body.size);
+	    out.u2(maxStack);
+	    out.u2(maxLocals);
+	    out.u4(body.size);
+	    out.append(body);
+	    out.u2(0);		// exception table
+	    out.u2(0);		// attributes
+	}
+
+	private int utf8Constant(String value) {
+	    Integer index = constantIndex.get("U" + value);
+	    if (index != null)
+		return index.intValue();
+
+	    // class names and descriptors are plain ASCII
+	    constants.u1(CONSTANT_Utf8);
+	    constants.u2(value.length());
+	    for (int i=0; i<value.length(); i++)
+		constants.u1(value.charAt(i));
+
+	    return addConstant("U" + value, 1);
+	}
+
+	private int classConstant(String name) {
+	    Integer index = constantIndex.get("C" + name);
+	    if (index != null)
+		return index.intValue();
+
+	    int nameIndex = utf8Constant(name);
+	    constants.u1(CONSTANT_Class);
+	    constants.u2(nameIndex);
+
+	    return addConstant("C" + name, 1);
+	}
+
+	private int memberConstant(String owner, String name, String type) {
+	    String key = "M" + owner + "." + name + type;
+	    Integer index = constantIndex.get(key);
+	    if (index != null)
+		return index.intValue();
+
+	    int ownerIndex = classConstant(owner);
+	    int nameIndex = utf8Constant(name), typeIndex = utf8Constant(type);
+
+	    constants.u1(CONSTANT_NameAndType);
+	    constants.u2(nameIndex);
+	    constants.u2(typeIndex);
+	    int nameAndType = addConstant("N" + name + type, 1);
+
+	    constants.u1(CONSTANT_Methodref);
+	    constants.u2(ownerIndex);
+	    constants.u2(nameAndType);
+
+	    return addConstant(key, 1);
+	}
+
+	private int integerConstant(int value) {
+	    Integer index = constantIndex.get("I" + value);
+	    if (index != null)
+		return index.intValue();
+
+	    constants.u1(CONSTANT_Integer);
+	    constants.u4(value);
+
+	    return addConstant("I" + value, 1);
+	}
+
+	private int addConstant(String key, int slots) {
+	    int index = constantCount+1;
+	    constantCount += slots;
+	    constantIndex.put(key, Integer.valueOf(index));
+	    return index;
+	}
+
+	private Buffer code = new Buffer();
+	private Buffer constants = new Buffer();
+	private int constantCount = 0;
+	private HashMap<String,Integer> constantIndex =
+	    new HashMap<String,Integer>();
+	private ArrayList<Integer> labels =
+	    new ArrayList<Integer>();
+	private ArrayList<Integer> fixups =
+	    new ArrayList<Integer>();
+    }
+
+    /**
+     * A growable array of big-endian bytes.
+     */
+    private static class Buffer {
+	void u1(int value) {
+	    if (size == data.length) {
+		byte[] larger = new byte[data.length*2];
+		System.arraycopy(data, 0, larger, 0, size);
+		data = larger;
+	    }
+
+	    data[size++] = (byte) value;
+	}
+
+	void u2(int value) {
+	    u1(value >> 8);
+	    u1(value);
+	}
+
+	void u4(int value) {
+	    u2(value >> 16);
+	    u2(value);
+	}
+
+	void patch2(int offset, int value) {
+	    data[offset] = (byte) (value >> 8);
+	    data[offset+1] = (byte) value;
+	}
+
+	void append(Buffer buffer) {
+	    for (int i=0; i<buffer.size; i++)
+		u1(buffer.data[i]);
+	}
+
+	byte[] toByteArray() {
+	    byte[] result = new byte[size];
+	    System.arraycopy(data, 0, result, 0, size);
+	    return result;
+	}
+
+	byte[] data = new byte[256];
+	int size = 0;
+    }
+
+    private Processor processor;
+    private Privilege privilege;
+    private int[] registers;
+    private PhysicalMemory memory;
+    private int threshold;
+
+    /** Translated blocks, by physical page and word offset. */
+    private TranslatedBlock[][] blocks;
+    /** The physical address of the PC that <tt>run()</tt> declined. */
+    private int declined = -1;
+    /** The number of times each untranslated block has been entered. */
+    private int[][] counts;
+
+    /** The physical addresses spanned by the block that is running. */
+    private int runningStart = -1, runningEnd = -1;
+    /** Set when a store writes into the block that is running. */
+    private boolean codeModified = false;
+    /** Incremented whenever memory may have changed under a block. */
+    private long epoch = 0;
+    /** The instructions completed by a block that raised an exception. */
+    private int completed = 0;
+
+    private MethodHandles.Lookup definer;
+    private MethodHandle defineHidden, define;
+    private int numClasses = 0;
+
+    /** The longest block that will be translated, in instructions. */
+    private static final int maxBlockLength = 64;
+
+    private static final String processorClass = "nachos/machine/Processor";
+    private static final String processorType = "L" + processorClass + ";";
+    private static final String blockClass = "nachos/machine/TranslatedBlock";
+
+    private static final int
+	CONSTANT_Utf8		= 1,
+	CONSTANT_Integer	= 3,
+	CONSTANT_Class		= 7,
+	CONSTANT_Methodref	= 10,
+	CONSTANT_NameAndType	= 12;
+
+    private static final int
+	ACC_PUBLIC	= 0x0001,
+	ACC_FINAL	= 0x0010,
+	ACC_SUPER	= 0x0020;
+
+    private static final int
+	ICONST_0	= 0x03,
+	BIPUSH		= 0x10,
+	SIPUSH		= 0x11,
+	LDC_W		= 0x13,
+	ILOAD		= 0x15,
+	ALOAD		= 0x19,
+	ALOAD_0		= 0x2a,
+	IALOAD		= 0x2e,
+	ISTORE		= 0x36,
+	IASTORE		= 0x4f,
+	IADD		= 0x60,
+	ISUB		= 0x64,
+	ISHL		= 0x78,
+	ISHR		= 0x7a,
+	IAND		= 0x7e,
+	IOR		= 0x80,
+	IXOR		= 0x82,
+	I2B		= 0x91,
+	I2S		= 0x93,
+	IFEQ		= 0x99,
+	IFLT		= 0x9b,
+	IFGE		= 0x9c,
+	IFGT		= 0x9d,
+	IFLE		= 0x9e,
+	IF_ICMPEQ	= 0x9f,
+	IF_ICMPNE	= 0xa0,
+	IF_ICMPLT	= 0xa1,
+	GOTO		= 0xa7,
+	IRETURN		= 0xac,
+	RETURN		= 0xb1,
+	INVOKEVIRTUAL	= 0xb6,
+	INVOKESPECIAL	= 0xb7,
+	INVOKESTATIC	= 0xb8;
+
+    private static final char dbgTranslate = 'b';
+}
@@ -90,6 +90,35 @@ public class Coff {
 		}
 	    }
 	}
+
+	// let the profiler name addresses after this executable's sections
+	if (Machine.processor() != null)
+	    Machine.processor().loadedExecutable(file.getName(), sections);
+    }
+
+    /**
+     * Load an executable that has already been loaded by another
+     * <tt>Coff</tt>, from another open file with the same contents. The
+     * headers are shared with the other loader instead of being read again,
+     * but pages are loaded from the new file, which becomes the property of
+     * this loader. A kernel that caches executables can use this to start
+     * another copy of a program without parsing it again.
+     *
+     * @param	file	the file containing the executable.
+     * @param	loaded	a loader for the same executable.
+     */
+    public Coff(OpenFile file, Coff loaded) {
+	Lib.assertTrue(loaded.sections != null);
+
+	this.file = file;
+	this.entryPoint = loaded.entryPoint;
+
+	sections = new CoffSection[loaded.sections.length];
+	for (int s=0; s<sections.length; s++)
+	    sections[s] = new CoffSection(file, this, loaded.sections[s]);
+
+	if (Machine.processor() != null)
+	    Machine.processor().loadedExecutable(file.getName(), sections);
     }
 
     /**
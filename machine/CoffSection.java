@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -110,6 +109,28 @@ public class CoffSection {
 	firstVPN = vaddr / Processor.pageSize;
     }
 
+    /**
+     * Allocate a copy of a COFF section that loads its pages from another
+     * open file of the same executable.
+     *
+     * @param	file	the file containing the executable.
+     * @param	coff	the COFF object to which the copy belongs.
+     * @param	section	the section to copy.
+     */
+    CoffSection(OpenFile file, Coff coff, CoffSection section) {
+	this.file = file;
+	this.coff = coff;
+
+	name = section.name;
+	executable = section.executable;
+	readOnly = section.readOnly;
+	initialized = section.initialized;
+	numPages = section.numPages;
+	firstVPN = section.firstVPN;
+	size = section.size;
+	contentOffset = section.contentOffset;
+    }
+
     /**
      * Return the COFF object used to load this executable instance.
      *
@@ -180,7 +201,7 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -196,10 +217,21 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
-	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	if (initlen > 0) {
+	    byte[] array = memory.getArray();
+
+	    // read straight into memory if it's an array
+	    if (array != null) {
+		Lib.strictReadFile(file, faddr, array, paddr, initlen);
+	    }
+	    else {
+		byte[] buf = new byte[initlen];
+		Lib.strictReadFile(file, faddr, buf, 0, initlen);
+		memory.write(paddr, buf, 0, initlen);
+	    }
+	}
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	memory.zero(paddr+initlen, pageSize-initlen);
     }
 
     /** The COFF object to which this section belongs. */
@@ -0,0 +1,377 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * A log of the inputs that make one Nachos run differ from another, so that
+ * a run can be repeated exactly. Everything else the machine does follows
+ * from these inputs: the seed of the random number generator (which decides
+ * the timer jitter and the packets the network drops), the bytes read from
+ * the console, the packets received by the network link, and the link
+ * address the network link was given.
+ *
+ * <p>
+ * When <tt>Machine.recordLog</tt> names a file, each input is written there
+ * with the value of <tt>Stats.totalTicks</tt> when the machine took it.
+ * When <tt>Machine.replayLog</tt> names a file, the devices take their
+ * inputs from the log instead of from <tt>System.in</tt> and the network,
+ * each at the first time the device looks for input at or after the time
+ * it was recorded. If the kernel has not changed, that is the same time as
+ * in the recorded run.
+ *
+ * <p>
+ * The log is a binary file. After a short header holding the seed, each
+ * event is a kind byte, the ticks since the previous event, and the event's
+ * data, with numbers written in a variable-length encoding so that most
+ * events take two or three bytes.
+ */
+final class EventLog {
+    /**
+     * Open a log that inputs will be recorded to.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the file to record to.
+     * @param	randomSeed	the seed of the random number generator.
+     */
+    static EventLog record(Privilege privilege, final String fileName,
+			   long randomSeed) {
+	EventLog log = new EventLog(privilege, fileName, false);
+
+	try {
+	    log.out = (DataOutputStream) privilege.doPrivileged(
+		new PrivilegedExceptionAction<DataOutputStream>() {
+		    public DataOutputStream run() throws IOException {
+			return new DataOutputStream(new BufferedOutputStream(
+			    new FileOutputStream(fileName)));
+		    }
+		});
+
+	    log.out.writeInt(magic);
+	    log.out.writeInt(version);
+	    log.out.writeLong(randomSeed);
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.assertNotReached("could not record to " + fileName + ": " +
+				 e.getException());
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not record to " + fileName + ": " + e);
+	}
+
+	log.randomSeed = randomSeed;
+	return log;
+    }
+
+    /**
+     * Open a log that inputs will be replayed from. The whole log is read
+     * before the machine starts.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the file to replay from.
+     */
+    static EventLog replay(Privilege privilege, final String fileName) {
+	EventLog log = new EventLog(privilege, fileName, true);
+
+	ByteBuffer buffer = null;
+
+	try {
+	    buffer = (ByteBuffer) privilege.doPrivileged(
+		new PrivilegedExceptionAction<ByteBuffer>() {
+		    public ByteBuffer run() throws IOException {
+			RandomAccessFile file =
+			    new RandomAccessFile(fileName, "r");
+
+			try {
+			    FileChannel channel = file.getChannel();
+			    return channel.map(FileChannel.MapMode.READ_ONLY,
+					       0, channel.size());
+			}
+			finally {
+			    file.close();
+			}
+		    }
+		});
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.assertNotReached("could not replay " + fileName + ": " +
+				 e.getException());
+	}
+
+	try {
+	    log.read(buffer);
+	}
+	catch (BufferUnderflowException e) {
+	    Lib.assertNotReached(fileName + " is truncated");
+	}
+
+	return log;
+    }
+
+    private EventLog(Privilege privilege, String fileName,
+		     boolean replaying) {
+	this.privilege = privilege;
+	this.fileName = fileName;
+	this.replaying = replaying;
+
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { close(); }
+	    });
+    }
+
+    /**
+     * Test whether the devices should take their inputs from this log.
+     *
+     * @return	<tt>true</tt> if this log is being replayed.
+     */
+    boolean isReplaying() {
+	return replaying;
+    }
+
+    /**
+     * Return the seed of the random number generator in the recorded run.
+     *
+     * @return	the random seed.
+     */
+    long getRandomSeed() {
+	return randomSeed;
+    }
+
+    /**
+     * Record a byte read from the console.
+     *
+     * @param	value	the byte read.
+     */
+    void recordConsole(int value) {
+	write(kindConsole);
+	writeNumber(value);
+    }
+
+    /**
+     * Return the next recorded console byte, if it is due.
+     *
+     * @return	the byte, or -1 if no byte is due yet.
+     */
+    int replayConsole() {
+	if (!console.isDue(privilege.stats.totalTicks))
+	    return -1;
+
+	return console.values[console.next++];
+    }
+
+    /**
+     * Record a packet received by the network link.
+     *
+     * @param	packetBytes	the contents of the packet.
+     */
+    void recordPacket(byte[] packetBytes) {
+	write(kindPacket);
+	writeNumber(packetBytes.length);
+	try {
+	    out.write(packetBytes);
+	}
+	catch (IOException e) {
+	    failed(e);
+	}
+    }
+
+    /**
+     * Return the next recorded packet, if it is due.
+     *
+     * @return	the contents of the packet, or <tt>null</tt> if no packet is
+     *		due yet.
+     */
+    byte[] replayPacket() {
+	if (!packets.isDue(privilege.stats.totalTicks))
+	    return null;
+
+	return packets.data[packets.next++];
+    }
+
+    /**
+     * Record the address the network link was given.
+     *
+     * @param	linkAddress	the link address.
+     */
+    void recordLinkAddress(int linkAddress) {
+	write(kindLinkAddress);
+	writeNumber(linkAddress);
+    }
+
+    /**
+     * Return the address the network link was given in the recorded run.
+     *
+     * @return	the link address.
+     */
+    int replayLinkAddress() {
+	Lib.assertTrue(linkAddresses.next < linkAddresses.size,
+		       fileName + " was recorded without a network link");
+
+	return linkAddresses.values[linkAddresses.next++];
+    }
+
+    private void write(int kind) {
+	long time = privilege.stats.totalTicks;
+
+	try {
+	    out.writeByte(kind);
+	}
+	catch (IOException e) {
+	    failed(e);
+	}
+
+	writeNumber(time - lastTime);
+	lastTime = time;
+    }
+
+    /**
+     * Write a non-negative number seven bits at a time, low bits first,
+     * setting the top bit of every byte but the last.
+     */
+    private void writeNumber(long value) {
+	try {
+	    while ((value & ~0x7FL) != 0) {
+		out.writeByte((int) (value & 0x7F) | 0x80);
+		value >>>= 7;
+	    }
+	    out.writeByte((int) value);
+	}
+	catch (IOException e) {
+	    failed(e);
+	}
+    }
+
+    private static long readNumber(ByteBuffer buffer) {
+	long value = 0;
+	for (int shift=0; ; shift+=7) {
+	    int b = buffer.get();
+	    value |= (long) (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	}
+    }
+
+    private void read(ByteBuffer buffer) {
+	Lib.assertTrue(buffer.getInt() == magic && buffer.getInt() == version,
+		       fileName + " is not an event log");
+
+	randomSeed = buffer.getLong();
+
+	long time = 0;
+	while (buffer.hasRemaining()) {
+	    int kind = buffer.get();
+	    time += readNumber(buffer);
+
+	    switch (kind) {
+	    case kindConsole:
+		console.add(time, (int) readNumber(buffer), null);
+		break;
+	    case kindPacket:
+		byte[] packetBytes = new byte[(int) readNumber(buffer)];
+		buffer.get(packetBytes);
+		packets.add(time, 0, packetBytes);
+		break;
+	    case kindLinkAddress:
+		linkAddresses.add(time, (int) readNumber(buffer), null);
+		break;
+	    default:
+		Lib.assertNotReached(fileName + " has an unknown event");
+	    }
+	}
+
+	Lib.debug(dbgEventLog, "Replaying " + console.size +
+		  " console reads and " + packets.size + " packets from " +
+		  fileName);
+    }
+
+    private void failed(IOException e) {
+	Lib.assertNotReached("could not record to " + fileName + ": " + e);
+    }
+
+    private void close() {
+	if (!replaying) {
+	    try {
+		out.close();
+	    }
+	    catch (IOException e) {
+		System.out.println("Could not record to " + fileName + ": " +
+				   e);
+	    }
+	}
+	else {
+	    int left = (console.size - console.next) +
+		(packets.size - packets.next);
+	    if (left > 0) {
+		System.out.println("Replay of " + fileName + " ended with " +
+				   left + " inputs not delivered");
+	    }
+	}
+    }
+
+    /** The recorded events of one kind, in the order they happened. */
+    private static class Events {
+	void add(long time, int value, byte[] data) {
+	    if (size == times.length) {
+		long[] newTimes = new long[size*2];
+		int[] newValues = new int[size*2];
+		byte[][] newData = new byte[size*2][];
+		System.arraycopy(times, 0, newTimes, 0, size);
+		System.arraycopy(values, 0, newValues, 0, size);
+		System.arraycopy(this.data, 0, newData, 0, size);
+		times = newTimes;
+		values = newValues;
+		this.data = newData;
+	    }
+
+	    times[size] = time;
+	    values[size] = value;
+	    this.data[size] = data;
+	    size++;
+	}
+
+	boolean isDue(long time) {
+	    return next < size && times[next] <= time;
+	}
+
+	long[] times = new long[16];
+	int[] values = new int[16];
+	byte[][] data = new byte[16][];
+	int size = 0, next = 0;
+    }
+
+    private Privilege privilege;
+    private String fileName;
+    private boolean replaying;
+    private long randomSeed;
+
+    private DataOutputStream out = null;
+    private long lastTime = 0;
+
+    private Events console = new Events();
+    private Events packets = new Events();
+    private Events linkAddresses = new Events();
+
+    /** The first word of an event log, "NLOG". */
+    private static final int magic = 0x4E4C4F47;
+    private static final int version = 1;
+
+    private static final int kindConsole = 0;
+    private static final int kindPacket = 1;
+    private static final int kindLinkAddress = 2;
+
+    private static final char dbgEventLog = 'r';
+}
@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +52,9 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	allocate(initialCapacity);
+
+	fastForwardIdle = Config.getBoolean("Interrupt.fastForwardIdle", false);
     }
 
     /**
@@ -120,39 +121,189 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
+    /**
+     * Wait for the next interrupt, as an idle processor would. The kernel
+     * calls this when no thread is ready to run, so that nothing can happen
+     * until one of the pending interrupts occurs.
+     *
+     * <p>
+     * If <tt>Interrupt.fastForwardIdle</tt> is set in the configuration, the
+     * simulated time jumps straight to the next pending interrupt, the ticks
+     * skipped are counted as idle ticks, and the interrupt handlers that fall
+     * due are invoked. Otherwise this method does nothing, and the kernel
+     * goes on advancing the time a kernel tick at a time until the interrupt
+     * occurs.
+     */
+    public void idle() {
+	if (!fastForwardIdle || numPending == 0)
+	    return;
+
+	Stats stats = privilege.stats;
+	long skipped = times[heap[0]] - stats.totalTicks;
+
+	if (skipped > 0) {
+	    Trace.record(trcIdle, times[heap[0]]);
+	    
+	    stats.idleTicks += skipped;
+	    stats.totalTicks += skipped;
+	}
+
+	boolean oldStatus = enabled;
+	enabled = false;
+	checkIfDue();
+	enabled = oldStatus;
+    }
+
+    /**
+     * Save the type and time of each pending interrupt to a snapshot, in the
+     * order they will occur.
+     */
+    void saveState(DataOutputStream out) throws IOException {
+	int[] sorted = sortPending();
+
+	out.writeInt(numPending);
+	for (int i=0; i<numPending; i++) {
+	    out.writeUTF(types[sorted[i]]);
+	    out.writeLong(times[sorted[i]]);
+	}
+    }
+
+    /**
+     * Test whether the pending interrupts saved in a snapshot can be
+     * restored, which requires exactly the same types of interrupt to be
+     * pending now.
+     *
+     * @param	savedTypes	the types of the saved interrupts.
+     * @return	<tt>true</tt> if every saved interrupt has a pending
+     *		interrupt of the same type, and vice versa.
+     */
+    boolean canRestore(String[] savedTypes) {
+	return match(savedTypes) != null;
+    }
+
+    /**
+     * Replace the pending interrupts with those saved in a snapshot. Each
+     * saved interrupt calls the handler of a pending interrupt of the same
+     * type, and they are scheduled in their saved order, so interrupts due
+     * at the same time still occur in the same order. Handles returned by
+     * <tt>schedule()</tt> for the replaced interrupts no longer cancel
+     * anything.
+     *
+     * @param	savedTypes	the types of the saved interrupts.
+     * @param	savedTimes	the times the saved interrupts are due.
+     */
+    void restoreState(String[] savedTypes, long[] savedTimes) {
+	Runnable[] savedHandlers = match(savedTypes);
+	Lib.assertTrue(savedHandlers != null);
+
+	while (numPending > 0)
+	    remove(0);
+
+	for (int i=0; i<savedTypes.length; i++)
+	    insert(savedTimes[i], savedTypes[i], savedHandlers[i]);
+    }
+
+    /**
+     * Pair each saved interrupt with a pending interrupt of the same type.
+     *
+     * @return	the handlers of the pending interrupts, in the order of
+     *		<i>savedTypes</i>, or <tt>null</tt> if the types are not the
+     *		same.
+     */
+    private Runnable[] match(String[] savedTypes) {
+	if (savedTypes.length != numPending)
+	    return null;
+
+	int[] sorted = sortPending();
+	boolean[] taken = new boolean[numPending];
+	Runnable[] savedHandlers = new Runnable[numPending];
+
+	for (int i=0; i<savedTypes.length; i++) {
+	    for (int j=0; j<numPending && savedHandlers[i] == null; j++) {
+		if (!taken[j] && types[sorted[j]].equals(savedTypes[i])) {
+		    taken[j] = true;
+		    savedHandlers[i] = handlers[sorted[j]];
+		}
+	    }
+
+	    if (savedHandlers[i] == null)
+		return null;
+	}
+
+	return savedHandlers;
+    }
+
+    private long schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
-	
-	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	return insert(privilege.stats.totalTicks + when, type, handler);
+    }
+
+    private long insert(long time, String type, Runnable handler) {
+	Trace.record(trcSchedule, time, type);
+
+	if (numPending == heap.length)
+	    allocate(heap.length*2);
+
+	// take a free slot off the top of the stack
+	int slot = freeSlots[heap.length - numPending - 1];
+
+	times[slot] = time;
+	ids[slot] = numPendingInterruptsCreated++;
+	types[slot] = type;
+	handlers[slot] = handler;
+
+	siftUp(numPending++, slot);
+
+	return ((long) generations[slot] << 32) | slot;
+    }
+
+    private boolean cancel(long handle) {
+	int slot = (int) handle;
+	int generation = (int) (handle >>> 32);
+
+	if (slot < 0 || slot >= heap.length ||
+	    generations[slot] != generation || positions[slot] < 0)
+	    return false;
 
-	pending.add(toOccur);
+	Trace.record(trcCancel, times[slot], types[slot]);
+	
+	remove(positions[slot]);
+	return true;
     }
 
     private void tick(boolean inKernelMode) {
+	tick(inKernelMode, 1);
+    }
+
+    private void tick(boolean inKernelMode, int count) {
+	Lib.assertTrue(count > 0);
+	
 	Stats stats = privilege.stats;
 
 	if (inKernelMode) {
-	    stats.kernelTicks += Stats.KernelTick;
-	    stats.totalTicks += Stats.KernelTick;
+	    stats.kernelTicks += Stats.KernelTick * count;
+	    stats.totalTicks += Stats.KernelTick * count;
 	}
 	else {
-	    stats.userTicks += Stats.UserTick;
-	    stats.totalTicks += Stats.UserTick;
+	    stats.userTicks += Stats.UserTick * count;
+	    stats.totalTicks += Stats.UserTick * count;
 	}
 
-	if (Lib.test(dbgInt))
-	    System.out.println("== Tick " + stats.totalTicks + " ==");
+	Trace.record(trcTick);
 
 	enabled = false;
 	checkIfDue();
 	enabled = true;
     }
 
+    private long ticksUntilNextInterrupt() {
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	return times[heap[0]] - privilege.stats.totalTicks;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,75 +312,172 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
+	if (numPending == 0)
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (times[heap[0]] > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	Trace.record(trcInvoke);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && times[heap[0]] <= time) {
+	    int next = heap[0];
+	    String type = types[next];
+	    Runnable handler = handlers[next];
 
-	    Lib.assertTrue(next.time <= time);
+	    // free the slot first, since the handler may schedule another
+	    remove(0);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Trace.record(trcHandler, type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
     private void print() {
-	System.out.println("Time: " + privilege.stats.totalTicks
-			   + ", interrupts " + (enabled ? "on" : "off"));
-	System.out.println("Pending interrupts:");
+	Trace.record(trcTime, enabled ? "on" : "off");
+	Lib.debug(dbgInt, "Pending interrupts:");
+
+	int[] sorted = sortPending();
+
+	for (int i=0; i<numPending; i++)
+	    Trace.record(trcPending, times[sorted[i]], types[sorted[i]]);
+
+	Lib.debug(dbgInt, "  (end of list)");
+    }
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+    /**
+     * Return the slots of the pending interrupts, in the order they will
+     * occur. The heap is only partly ordered, so this sorts a copy of it.
+     */
+    private int[] sortPending() {
+	int[] sorted = new int[numPending];
+	for (int i=0; i<numPending; i++) {
+	    int j;
+	    for (j=i; j>0 && earlier(heap[i], sorted[j-1]); j--)
+		sorted[j] = sorted[j-1];
+	    sorted[j] = heap[i];
 	}
 
-	System.out.println("  (end of list)");
+	return sorted;
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Test whether the interrupt in one slot should occur before the
+     * interrupt in another. Interrupts scheduled for the same time occur in
+     * the order they were scheduled.
+     */
+    private boolean earlier(int slot1, int slot2) {
+	if (times[slot1] != times[slot2])
+	    return times[slot1] < times[slot2];
+	else
+	    return ids[slot1] < ids[slot2];
+    }
+
+    private void siftUp(int index, int slot) {
+	while (index > 0) {
+	    int parent = (index-1) / 2;
+	    if (!earlier(slot, heap[parent]))
+		break;
+
+	    heap[index] = heap[parent];
+	    positions[heap[index]] = index;
+	    index = parent;
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	heap[index] = slot;
+	positions[slot] = index;
+    }
+
+    private void siftDown(int index, int slot) {
+	while (true) {
+	    int child = index*2 + 1;
+	    if (child >= numPending)
+		break;
+
+	    if (child+1 < numPending && earlier(heap[child+1], heap[child]))
+		child++;
 
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+	    if (!earlier(heap[child], slot))
+		break;
+
+	    heap[index] = heap[child];
+	    positions[heap[index]] = index;
+	    index = child;
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	heap[index] = slot;
+	positions[slot] = index;
+    }
 
-	private long id;
+    /**
+     * Remove the interrupt at the specified position in the heap, and return
+     * its slot to the free stack.
+     */
+    private void remove(int index) {
+	int slot = heap[index];
+	int last = heap[--numPending];
+
+	if (index < numPending) {
+	    siftDown(index, last);
+	    siftUp(positions[last], last);
+	}
+
+	positions[slot] = -1;
+	types[slot] = null;
+	handlers[slot] = null;
+	// any handle still held for this slot is now stale
+	generations[slot]++;
+
+	freeSlots[heap.length - numPending - 1] = slot;
+    }
+
+    /**
+     * Grow the slot arrays to hold <i>capacity</i> pending interrupts. Only
+     * happens when every slot is in use, so the new slots are all free.
+     */
+    private void allocate(int capacity) {
+	int oldCapacity = (heap == null) ? 0 : heap.length;
+
+	heap = copyOf(heap, capacity);
+	positions = copyOf(positions, capacity);
+	generations = copyOf(generations, capacity);
+	freeSlots = new int[capacity];
+
+	long[] newTimes = new long[capacity];
+	long[] newIds = new long[capacity];
+	String[] newTypes = new String[capacity];
+	Runnable[] newHandlers = new Runnable[capacity];
+
+	if (oldCapacity > 0) {
+	    System.arraycopy(times, 0, newTimes, 0, oldCapacity);
+	    System.arraycopy(ids, 0, newIds, 0, oldCapacity);
+	    System.arraycopy(types, 0, newTypes, 0, oldCapacity);
+	    System.arraycopy(handlers, 0, newHandlers, 0, oldCapacity);
+	}
+
+	times = newTimes;
+	ids = newIds;
+	types = newTypes;
+	handlers = newHandlers;
+
+	// lowest slot on top
+	for (int i=0; i<capacity-oldCapacity; i++) {
+	    freeSlots[i] = capacity-1 - i;
+	    positions[capacity-1 - i] = -1;
+	}
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+	int[] copy = new int[length];
+	if (array != null)
+	    System.arraycopy(array, 0, copy, 0, array.length);
+	return copy;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,17 +485,70 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private boolean fastForwardIdle;
+
+    /**
+     * The pending interrupts, as a binary min-heap of slot numbers ordered by
+     * time and then by id. Each slot's interrupt is held in the parallel
+     * arrays below, and slots are reused once their interrupt occurs or is
+     * cancelled, so scheduling an interrupt allocates nothing.
+     */
+    private int[] heap;
+    private int numPending = 0;
+
+    private long[] times;
+    private long[] ids;
+    private String[] types;
+    private Runnable[] handlers;
+    /** The index of each slot in the heap, or -1 if the slot is free. */
+    private int[] positions;
+    /** Counts the reuses of each slot, so that stale handles are caught. */
+    private int[] generations;
+    /** A stack of the free slots, which are the last ones in the array. */
+    private int[] freeSlots;
+
+    private static final int initialCapacity = 8;
 
     private static final char dbgInt = 'i';
 
+    private static final int trcTick =
+	Trace.define(dbgInt, "== Tick %7$d ==");
+    private static final int trcIdle =
+	Trace.define(dbgInt, "Idling until time = %8$d");
+    private static final int trcSchedule =
+	Trace.define(dbgInt,
+		     "Scheduling the %5$s interrupt handler at time = %8$d");
+    private static final int trcCancel =
+	Trace.define(dbgInt,
+		     "Cancelling the %5$s interrupt handler at time = %8$d");
+    private static final int trcInvoke =
+	Trace.define(dbgInt, "Invoking interrupt handlers at time = %7$d");
+    private static final int trcHandler =
+	Trace.define(dbgInt, "  %5$s");
+    private static final int trcTime =
+	Trace.define(dbgInt, "Time: %7$d, interrupts %5$s");
+    private static final int trcPending =
+	Trace.define(dbgInt, "  %5$s, scheduled at %8$d");
+
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-	public void schedule(long when, String type, Runnable handler) {
-	    Interrupt.this.schedule(when, type, handler);
+	public long schedule(long when, String type, Runnable handler) {
+	    return Interrupt.this.schedule(when, type, handler);
+	}
+
+	public boolean cancel(long handle) {
+	    return Interrupt.this.cancel(handle);
 	}
 
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(boolean inKernelMode, int count) {
+	    Interrupt.this.tick(inKernelMode, count);
+	}
+
+	public long ticksUntilNextInterrupt() {
+	    return Interrupt.this.ticksUntilNextInterrupt();
+	}
     }
 }
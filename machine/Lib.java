@@ -32,7 +32,7 @@ public final class Lib {
     private Lib() {
     }
 
-    private static Random random = null;
+    private static Generator random = null;
 
     /**
      * Seed the random number generater. May only be called once.
@@ -41,7 +41,7 @@ public final class Lib {
      */
     public static void seedRandom(long randomSeed) {
 	assertTrue(random == null);
-	random = new Random(randomSeed);
+	random = new Generator(randomSeed);
     }
     
     /**
@@ -66,6 +66,49 @@ public final class Lib {
 	return random.nextDouble();
     }
 
+    /**
+     * Return the state of the random number generator, so that it can be
+     * saved in a snapshot.
+     */
+    static long getRandomState() {
+	return random.state;
+    }
+
+    /**
+     * Restore the state of the random number generator from a snapshot.
+     */
+    static void setRandomState(long state) {
+	random.state = state;
+    }
+
+    /**
+     * The same linear congruential generator as <tt>java.util.Random</tt>,
+     * which specifies it exactly, so it produces the same numbers from the
+     * same seed. Unlike <tt>Random</tt>, it lets its state be saved and
+     * restored.
+     */
+    private static class Generator extends Random {
+	Generator(long seed) {
+	    super(seed);
+	}
+
+	public synchronized void setSeed(long seed) {
+	    state = (seed ^ multiplier) & mask;
+	}
+
+	protected synchronized int next(int bits) {
+	    state = (state*multiplier + addend) & mask;
+	    return (int) (state >>> (48 - bits));
+	}
+
+	long state;
+
+	private static final long serialVersionUID = 1L;
+	private static final long multiplier = 0x5DEECE66DL;
+	private static final long addend = 0xBL;
+	private static final long mask = (1L << 48) - 1;
+    }
+
     /**
      * Asserts that <i>expression</i> is <tt>true</tt>. If not, then Nachos
      * exits with an error message.
@@ -122,8 +165,12 @@ public final class Lib {
      * @param	message	the debug message.
      */
     public static void debug(char flag, String message) {
-	if (test(flag))
-	    System.out.println(message);
+	if (test(flag)) {
+	    if (Trace.isBuffering())
+		Trace.message(flag, message);
+	    else
+		System.out.println(message);
+	}
     }
 
     /**
@@ -467,7 +514,7 @@ public final class Lib {
      */
     public static Class tryLoadClass(String className) {
 	try {
-	    return ClassLoader.getSystemClassLoader().loadClass(className);
+	    return Lib.class.getClassLoader().loadClass(className);
 	}
 	catch (Throwable e) {
 	    return null;
@@ -482,7 +529,7 @@ public final class Lib {
      */
     public static Class loadClass(String className) {
 	try {
-	    return ClassLoader.getSystemClassLoader().loadClass(className);
+	    return Lib.class.getClassLoader().loadClass(className);
 	}
 	catch (Throwable e) {
 	    Machine.terminate(e);
@@ -51,6 +51,10 @@ public final class Machine {
 
 	TCB.givePrivilege(privilege);
 	privilege.stats = stats;
+	Trace.setStats(stats);
+
+	// the platform MBean server cannot start under the security manager
+	Metrics.enable(privilege);
 
 	securityManager.enable();
 	createDevices();
@@ -97,9 +101,78 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+	if (multiprocessor != null)
+	    multiprocessor.print();
+	if (processor != null)
+	    processor.printProfile();
 	terminate();
     }
 
+    /**
+     * Save a snapshot of the simulated machine to the file named by the
+     * <tt>Machine.snapshot</tt> key, so that a later run can resume from this
+     * point with <tt>openSnapshot()</tt> and <tt>restoreSnapshot()</tt>. Does
+     * nothing if the key is not set.
+     *
+     * <p>
+     * The machine cannot save the kernel's own data structures, so the kernel
+     * passes whatever it needs to rebuild them as <i>kernelState</i>. Kernel
+     * threads cannot be saved either, so the kernel should take a snapshot
+     * when its other threads are in a state it can recreate, such as right
+     * after loading the first program.
+     *
+     * @param	kernelState	the kernel's own state, to be returned by
+     *				<tt>openSnapshot()</tt>.
+     */
+    public static void saveSnapshot(byte[] kernelState) {
+	if (getSnapshot() != null) {
+	    Lib.assertTrue(multiprocessor == null,
+			   "cannot snapshot a multiprocessor");
+
+	    snapshot.save(kernelState);
+	}
+    }
+
+    /**
+     * Open the snapshot named by the <tt>Machine.snapshot</tt> key, and return
+     * the kernel state saved with it. The kernel should rebuild its own
+     * state, and then call <tt>restoreSnapshot()</tt> to restore the
+     * machine.
+     *
+     * @return	the kernel state saved with the snapshot, or <tt>null</tt> if
+     *		the key is not set, or there is no snapshot that fits this
+     *		machine.
+     */
+    public static byte[] openSnapshot() {
+	if (getSnapshot() == null || multiprocessor != null)
+	    return null;
+
+	return snapshot.open();
+    }
+
+    /**
+     * Restore the machine to the state saved in the snapshot opened by
+     * <tt>openSnapshot()</tt>, including the simulated time, the pending
+     * interrupts, the processor, and physical memory.
+     */
+    public static void restoreSnapshot() {
+	Lib.assertTrue(snapshot != null);
+	
+	snapshot.restore();
+    }
+
+    private static Snapshot getSnapshot() {
+	if (snapshot == null) {
+	    String fileName = Config.getString("Machine.snapshot");
+	    if (fileName != null)
+		snapshot = new Snapshot(privilege, fileName);
+	}
+
+	return snapshot;
+    }
+
+    private static Snapshot snapshot = null;
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -162,11 +235,18 @@ public final class Machine {
 		}
 	    }
 	}
-
-	Lib.seedRandom(randomSeed);
     }
 
     private static void createDevices() {
+	openEventLog();
+	Lib.seedRandom(randomSeed);
+
+	String traceFile = Config.getString("Machine.traceFile");
+	if (traceFile != null) {
+	    Trace.enable(privilege, traceFile,
+			 Config.getInteger("Machine.traceSize", 65536));
+	}
+
 	interrupt = new Interrupt(privilege);
 	timer = new Timer(privilege);
 
@@ -177,6 +257,11 @@ public final class Machine {
 	    if (numPhysPages == -1)
 		numPhysPages = Config.getInteger("Processor.numPhysPages");
 	    processor = new Processor(privilege, numPhysPages);
+
+	    int numCPUs = Config.getInteger("Processor.numCPUs", 1);
+	    if (numCPUs > 1)
+		multiprocessor =
+		    new Multiprocessor(privilege, processor, numCPUs);
 	}				      
 
 	if (Config.getBoolean("Machine.console"))
@@ -189,6 +274,34 @@ public final class Machine {
 	    networkLink = new NetworkLink(privilege);
     }
 
+    private static void openEventLog() {
+	String recordLog = Config.getString("Machine.recordLog");
+	String replayLog = Config.getString("Machine.replayLog");
+
+	Lib.assertTrue(recordLog == null || replayLog == null,
+		       "cannot both record and replay an event log");
+
+	if (replayLog != null) {
+	    eventLog = EventLog.replay(privilege, replayLog);
+	    randomSeed = eventLog.getRandomSeed();
+	}
+	else if (recordLog != null) {
+	    eventLog = EventLog.record(privilege, recordLog, randomSeed);
+	}
+    }
+
+    /**
+     * Return the log that device inputs are recorded to or replayed from.
+     *
+     * @return	the event log, or <tt>null</tt> if inputs are neither
+     *		recorded nor replayed.
+     */
+    static EventLog eventLog() {
+	return eventLog;
+    }
+
+    private static EventLog eventLog = null;
+
     private static void checkUserClasses() {
 	System.out.print(" user-check");
 	
@@ -322,6 +435,14 @@ public final class Machine {
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
     public static Processor processor() { return processor; }
+
+    /**
+     * Return the other cores of a multiprocessor.
+     *
+     * @return	the other cores, or <tt>null</tt> if the machine has only one
+     *		processor.
+     */
+    public static Multiprocessor multiprocessor() { return multiprocessor; }
     
     /**
      * Return the hardware console.
@@ -355,6 +476,7 @@ public final class Machine {
     private static Timer timer = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
+    private static Multiprocessor multiprocessor = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
@@ -431,7 +553,7 @@ public final class Machine {
 	"\n" +
 	"\t-s <seed>\n" +
 	"\t\tSpecify the seed for the random number generator (seed is a\n" +
-	"\t\tlong).\n" +
+	"\t\tlong). Ignored when replaying an event log.\n" +
 	"\n" +
 	"\t-x <program>\n" +
 	"\t\tSpecify a program that UserKernel.run() should execute,\n" +
@@ -0,0 +1,521 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Live metrics for a running machine. <tt>Stats</tt> only says how a run
+ * went once it is over; metrics show it while it runs. Every
+ * <tt>Machine.metricsPeriod</tt> milliseconds (1000 by default), a host
+ * thread takes a snapshot of the counters in <tt>Stats</tt>, how fast each
+ * grew since the last snapshot, and the latencies recorded in the
+ * histograms below since the last snapshot.
+ *
+ * <p>
+ * If <tt>Machine.metricsFile</tt> names a file, each snapshot is written
+ * there as a line: a row of comma-separated values if the file name ends in
+ * <tt>.csv</tt>, and otherwise a JSON object. If <tt>Machine.metricsJMX</tt>
+ * is <tt>true</tt>, the latest snapshot can also be read from the
+ * <tt>nachos.machine:type=Metrics</tt> MBean, for example with
+ * <tt>jconsole</tt>. A last snapshot is taken when the machine halts.
+ *
+ * <p>
+ * The histograms are updated from the simulation with atomic instructions
+ * only, and never wait for the thread taking snapshots. Their values are
+ * kept in buckets a quarter of a power of two wide, so percentiles are
+ * accurate to within 25%. Counters are read from <tt>Stats</tt> without
+ * stopping the machine, so the counters in one snapshot may be a few events
+ * apart.
+ */
+public final class Metrics {
+    /**
+     * Test whether metrics are being collected. Code that must do work to
+     * measure a latency should do it only if this returns <tt>true</tt>.
+     *
+     * @return	<tt>true</tt> if metrics are being collected.
+     */
+    public static boolean isEnabled() {
+	return enabled;
+    }
+
+    /**
+     * The real time, in nanoseconds, from a TCB asking to switch to another
+     * TCB until that TCB is running.
+     */
+    public static final Histogram contextSwitch =
+	new Histogram("contextSwitchNanos");
+    /**
+     * The simulated time, in ticks, the kernel takes to handle a system call.
+     */
+    public static final Histogram syscall = new Histogram("syscallTicks");
+    /**
+     * The simulated time, in ticks, the kernel takes to handle a page fault
+     * or a TLB miss.
+     */
+    public static final Histogram pageFault = new Histogram("pageFaultTicks");
+    /**
+     * The simulated time, in ticks, from sending a packet to receiving its
+     * reply. Recorded by the kernel, which knows which packet is a reply.
+     */
+    public static final Histogram packetRTT = new Histogram("packetRTTTicks");
+
+    private static final Histogram[] histograms = {
+	contextSwitch, syscall, pageFault, packetRTT };
+
+    /**
+     * A lock-free histogram of non-negative values.
+     */
+    public static final class Histogram {
+	private Histogram(String name) {
+	    this.name = name;
+	}
+
+	/**
+	 * Record a value. Negative values are recorded as 0.
+	 *
+	 * @param	value	the value to record.
+	 */
+	public void record(long value) {
+	    if (value < 0)
+		value = 0;
+
+	    buckets.incrementAndGet(bucket(value));
+	    count.incrementAndGet();
+	    sum.addAndGet(value);
+
+	    long max;
+	    while (value > (max = intervalMax.get()) &&
+		   !intervalMax.compareAndSet(max, value))
+		;
+	}
+
+	/**
+	 * Return the bucket holding a value. Values below 4 have a bucket
+	 * each; above that, each power of two is split into four buckets.
+	 */
+	private static int bucket(long value) {
+	    if (value < 4)
+		return (int) value;
+
+	    int exp = 63 - Long.numberOfLeadingZeros(value);
+	    int sub = (int) (value >>> (exp-2)) & 3;
+	    return (exp-1)*4 + sub;
+	}
+
+	/** Return the largest value held by a bucket. */
+	private static long bucketLimit(int bucket) {
+	    if (bucket < 4)
+		return bucket;
+
+	    int exp = bucket/4 + 1;
+	    long lower = (long) (4 + bucket%4) << (exp-2);
+	    return lower + (1L << (exp-2)) - 1;
+	}
+
+	/**
+	 * Add the statistics of the values recorded since the last call to a
+	 * snapshot.
+	 */
+	private void snapshot(Snapshot s) {
+	    long newCount = count.get();
+	    long newSum = sum.get();
+	    long max = intervalMax.getAndSet(0);
+
+	    long[] interval = new long[numBuckets];
+	    for (int i=0; i<numBuckets; i++) {
+		long total = buckets.get(i);
+		interval[i] = total - lastBuckets[i];
+		lastBuckets[i] = total;
+	    }
+
+	    long n = newCount - lastCount;
+	    s.add(name + ".count", n);
+	    s.add(name + ".mean",
+		  n == 0 ? 0.0 : (double) (newSum-lastSum) / n);
+	    s.add(name + ".p50", percentile(interval, n, 0.50, max));
+	    s.add(name + ".p90", percentile(interval, n, 0.90, max));
+	    s.add(name + ".p99", percentile(interval, n, 0.99, max));
+	    s.add(name + ".max", max);
+
+	    lastCount = newCount;
+	    lastSum = newSum;
+	}
+
+	private static long percentile(long[] interval, long n, double q,
+				       long max) {
+	    long rank = (long) Math.ceil(q * n);
+	    long seen = 0;
+	    for (int i=0; i<numBuckets; i++) {
+		seen += interval[i];
+		if (seen >= rank && seen > 0)
+		    return Math.min(bucketLimit(i), max);
+	    }
+	    return 0;
+	}
+
+	private String name;
+
+	private AtomicLongArray buckets = new AtomicLongArray(numBuckets);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong sum = new AtomicLong();
+	private AtomicLong intervalMax = new AtomicLong();
+
+	/** Only touched by the thread taking snapshots. */
+	private long[] lastBuckets = new long[numBuckets];
+	private long lastCount = 0, lastSum = 0;
+
+	private static final int numBuckets = 62*4;
+    }
+
+    /**
+     * Start collecting metrics, if the configuration asks for them. Called
+     * by <tt>Machine</tt> before the security manager is enabled.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    static void enable(final Privilege privilege) {
+	final String fileName = Config.getString("Machine.metricsFile");
+	boolean jmx = Config.getBoolean("Machine.metricsJMX", false);
+	if (fileName == null && !jmx)
+	    return;
+
+	Metrics.privilege = privilege;
+	period = Config.getInteger("Machine.metricsPeriod", 1000);
+	Lib.assertTrue(period > 0);
+
+	if (fileName != null) {
+	    csv = fileName.endsWith(".csv");
+	    try {
+		out = new PrintWriter(new OutputStreamWriter(
+		    new FileOutputStream(fileName), "UTF-8"));
+	    }
+	    catch (IOException e) {
+		Lib.assertNotReached("could not write metrics to " + fileName +
+				     ": " + e);
+	    }
+	}
+
+	startTime = lastTime = System.currentTimeMillis();
+
+	if (jmx)
+	    registerMBean();
+
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() {
+		    privilege.doPrivileged(new Runnable() {
+			    public void run() { close(); }
+			});
+		}
+	    });
+
+	enabled = true;
+
+	// not a Nachos thread, so it is always privileged
+	Thread thread = new Thread(new Runnable() {
+		public void run() { sampleLoop(); }
+	    }, "nachos metrics");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    private static void sampleLoop() {
+	while (true) {
+	    try {
+		Thread.sleep(period);
+	    }
+	    catch (InterruptedException e) {
+	    }
+
+	    sample();
+	}
+    }
+
+    /**
+     * Take a snapshot, and publish it.
+     */
+    private static synchronized void sample() {
+	if (closed)
+	    return;
+
+	long time = System.currentTimeMillis();
+	Snapshot s = takeSnapshot(privilege.stats, time - lastTime);
+	for (int i=0; i<histograms.length; i++)
+	    histograms[i].snapshot(s);
+
+	lastTime = time;
+	lastCounters = s.counters;
+	latest = s;
+
+	if (out != null) {
+	    if (csv && !headerWritten) {
+		out.println(s.csvHeader());
+		headerWritten = true;
+	    }
+	    out.println(csv ? s.csvRow() : s.json());
+	    out.flush();
+	}
+    }
+
+    /**
+     * Take a snapshot of the counters, and of how fast they grew since the
+     * last published snapshot.
+     */
+    private static Snapshot takeSnapshot(Stats stats, long interval) {
+	Snapshot s = new Snapshot();
+	s.add("wallMillis", System.currentTimeMillis() - startTime);
+	s.add("intervalMillis", interval);
+
+	long[] counters = {
+	    stats.totalTicks, stats.kernelTicks, stats.userTicks,
+	    stats.idleTicks, stats.numDiskReads, stats.numDiskWrites,
+	    stats.numConsoleReads, stats.numConsoleWrites,
+	    stats.numPageFaults, stats.numTLBMisses, stats.numPacketsSent,
+	    stats.numPacketsReceived };
+
+	for (int i=0; i<counters.length; i++) {
+	    s.add(counterNames[i], counters[i]);
+
+	    long delta = counters[i] - lastCounters[i];
+	    s.add(counterNames[i] + ".rate",
+		  interval == 0 ? 0.0 : delta * 1000.0 / interval);
+	}
+	s.counters = counters;
+
+	return s;
+    }
+
+    private static void close() {
+	synchronized (Metrics.class) {
+	    if (closed)
+		return;
+
+	    sample();
+	    closed = true;
+	}
+
+	if (out != null)
+	    out.close();
+
+	if (mbeanName != null) {
+	    try {
+		ManagementFactory.getPlatformMBeanServer()
+		    .unregisterMBean(mbeanName);
+	    }
+	    catch (Exception e) {
+	    }
+	}
+    }
+
+    private static void registerMBean() {
+	try {
+	    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+	    String name = "nachos.machine:type=Metrics";
+	    // every machine of a batch runs in a thread group of its own
+	    if (Batch.isRunning()) {
+		name += ",machine=" +
+		    ObjectName.quote(Thread.currentThread().getThreadGroup()
+				     .getName());
+	    }
+
+	    mbeanName = new ObjectName(name);
+	    server.registerMBean(new MetricsMBean(), mbeanName);
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("could not register metrics MBean: " + e);
+	}
+    }
+
+    /** A set of named values, in the order they were added. */
+    private static class Snapshot {
+	void add(String name, long value) {
+	    add(name, Long.valueOf(value));
+	}
+
+	void add(String name, double value) {
+	    add(name, Double.valueOf(value));
+	}
+
+	private void add(String name, Object value) {
+	    if (size == names.length) {
+		String[] newNames = new String[size*2];
+		Object[] newValues = new Object[size*2];
+		System.arraycopy(names, 0, newNames, 0, size);
+		System.arraycopy(values, 0, newValues, 0, size);
+		names = newNames;
+		values = newValues;
+	    }
+
+	    names[size] = name;
+	    values[size] = value;
+	    size++;
+	}
+
+	Object get(String name) {
+	    for (int i=0; i<size; i++) {
+		if (names[i].equals(name))
+		    return values[i];
+	    }
+	    return null;
+	}
+
+	String csvHeader() {
+	    StringBuffer line = new StringBuffer();
+	    for (int i=0; i<size; i++)
+		line.append(i == 0 ? "" : ",").append(names[i]);
+	    return line.toString();
+	}
+
+	String csvRow() {
+	    StringBuffer line = new StringBuffer();
+	    for (int i=0; i<size; i++)
+		line.append(i == 0 ? "" : ",").append(format(values[i]));
+	    return line.toString();
+	}
+
+	String json() {
+	    StringBuffer line = new StringBuffer("{");
+	    for (int i=0; i<size; i++) {
+		line.append(i == 0 ? "\"" : ", \"").append(names[i])
+		    .append("\": ").append(format(values[i]));
+	    }
+	    return line.append("}").toString();
+	}
+
+	private static String format(Object value) {
+	    if (value instanceof Double) {
+		double d = Math.round(((Double) value).doubleValue() * 1000) /
+		    1000.0;
+		if (d == Math.rint(d))
+		    return Long.toString((long) d);
+		return Double.toString(d);
+	    }
+	    return value.toString();
+	}
+
+	String[] names = new String[64];
+	Object[] values = new Object[64];
+	int size = 0;
+
+	long[] counters;
+    }
+
+    /**
+     * Shows the latest snapshot as read-only attributes.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+	MetricsMBean() {
+	    // a throwaway snapshot gives the names and types of the values
+	    Snapshot s = takeSnapshot(new Stats(), 0);
+	    for (int i=0; i<histograms.length; i++)
+		new Histogram(histograms[i].name).snapshot(s);
+
+	    MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[s.size];
+	    for (int i=0; i<s.size; i++)
+		attributes[i] = attribute(s.names[i], s.values[i]);
+
+	    info = new MBeanInfo(getClass().getName(),
+				 "Live metrics of a Nachos machine",
+				 attributes, null, null, null);
+	}
+
+	private static MBeanAttributeInfo attribute(String name,
+						    Object value) {
+	    return new MBeanAttributeInfo(name, value.getClass().getName(),
+					  name, true, false, false);
+	}
+
+	public Object getAttribute(String name)
+	    throws AttributeNotFoundException {
+	    Snapshot s = latest;
+	    Object value = (s == null) ? null : s.get(name);
+	    if (value == null) {
+		MBeanAttributeInfo[] attributes = info.getAttributes();
+		for (int i=0; i<attributes.length; i++) {
+		    if (attributes[i].getName().equals(name))
+			return null;
+		}
+		throw new AttributeNotFoundException(name);
+	    }
+	    return value;
+	}
+
+	public AttributeList getAttributes(String[] names) {
+	    AttributeList list = new AttributeList();
+	    for (int i=0; i<names.length; i++) {
+		try {
+		    list.add(new Attribute(names[i], getAttribute(names[i])));
+		}
+		catch (AttributeNotFoundException e) {
+		}
+	    }
+	    return list;
+	}
+
+	public void setAttribute(Attribute attribute)
+	    throws AttributeNotFoundException {
+	    throw new AttributeNotFoundException(attribute.getName() +
+						 " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+	    return new AttributeList();
+	}
+
+	public Object invoke(String action, Object[] params,
+			     String[] signature) throws ReflectionException {
+	    throw new ReflectionException(new NoSuchMethodException(action));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+	    return info;
+	}
+
+	private MBeanInfo info;
+    }
+
+    private static final String[] counterNames = {
+	"totalTicks", "kernelTicks", "userTicks", "idleTicks", "diskReads",
+	"diskWrites", "consoleReads", "consoleWrites", "pageFaults",
+	"tlbMisses", "packetsSent", "packetsReceived" };
+
+    private static volatile boolean enabled = false;
+    private static Privilege privilege;
+    private static int period;
+
+    private static PrintWriter out = null;
+    private static boolean csv, headerWritten = false;
+    private static ObjectName mbeanName = null;
+
+    private static long startTime, lastTime;
+    /** The counters of the last published snapshot. */
+    private static long[] lastCounters = new long[counterNames.length];
+    /** The latest snapshot, shown by the MBean. */
+    private static volatile Snapshot latest = null;
+    private static boolean closed = false;
+
+    /**
+     * Prevent instantiation.
+     */
+    private Metrics() {
+    }
+}
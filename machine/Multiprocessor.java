@@ -0,0 +1,426 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+/**
+ * The other cores of a simulated multiprocessor, present when the
+ * <tt>Processor.numCPUs</tt> key is greater than 1. CPU 0 is the boot
+ * processor, <tt>Machine.processor()</tt>, which runs the kernel and its own
+ * user programs on Nachos threads exactly as on a uniprocessor. CPUs 1 and up
+ * run only user programs, each on its own host thread, in parallel with CPU 0
+ * and with each other. All cores share physical memory; each has its own
+ * registers, delayed load, TLB or page table, interrupt enable state, and
+ * timer.
+ *
+ * <p>
+ * The kernel and the <tt>TCB</tt>s assume that only one Nachos thread runs at
+ * a time, so the kernel stays on CPU 0, and the other cores hand everything
+ * that needs the kernel to it, as in a master/slave multiprocessor. The
+ * kernel sets up a core's registers and address translation with the usual
+ * <tt>Processor</tt> methods, and starts it with <tt>start()</tt>. The core
+ * then runs until it raises an exception, when it stops and the kernel's
+ * exception handler for that core is called on CPU 0. The handler deals with
+ * the exception, and calls <tt>start()</tt> again to resume the core.
+ *
+ * <p>
+ * The cores are kept in step with a conservative synchronization window of
+ * <tt>Processor.syncWindow</tt> ticks (1000 by default). At the start of each
+ * window, every running core is given exactly the instructions that fit in
+ * the window, and CPU 0 goes on with the same window of simulated time. At
+ * the end of the window, CPU 0 waits for the other cores to finish theirs,
+ * and then, in order of CPU number, calls the handlers for the exceptions,
+ * timer interrupts and inter-processor interrupts the cores raised during the
+ * window. So the simulation is deterministic however the host schedules its
+ * threads, and a core's exception reaches the kernel at most one window
+ * after it happened. The handlers are called from an interrupt handler, with
+ * interrupts disabled, while no other core is running, so only they should
+ * change a core's registers or translations.
+ */
+public final class Multiprocessor {
+    /**
+     * Allocate the other cores of a multiprocessor, and start their host
+     * threads.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	boot		the boot processor, CPU 0.
+     * @param	numCPUs		the number of cores, counting CPU 0.
+     */
+    public Multiprocessor(Privilege privilege, Processor boot, int numCPUs) {
+	System.out.print(" smp(" + numCPUs + ")");
+
+	Lib.assertTrue(numCPUs > 1);
+	Lib.assertTrue(boot.getPhysicalMemory().getArray() != null,
+		       "a multiprocessor needs physical memory on the heap");
+
+	this.privilege = privilege;
+
+	window = Config.getInteger("Processor.syncWindow", 1000);
+	Lib.assertTrue(window >= Stats.UserTick);
+
+	cores = new Core[numCPUs];
+	for (int i=1; i<numCPUs; i++) {
+	    final Core core = new Core(i, new Processor(boot));
+	    cores[i] = core;
+
+	    Thread thread = new Thread(new Runnable() {
+		    public void run() { coreLoop(core); }
+		}, "cpu " + i);
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+
+	syncInterrupt = new Runnable() {
+		public void run() { syncInterrupt(); }
+	    };
+    }
+
+    /**
+     * Return the number of cores, counting CPU 0.
+     *
+     * @return	the number of cores.
+     */
+    public int getNumCPUs() {
+	return cores.length;
+    }
+
+    /**
+     * Return the specified core.
+     *
+     * @param	cpu	the core's number.
+     * @return	the core's processor; <tt>Machine.processor()</tt> for CPU 0.
+     */
+    public Processor processor(int cpu) {
+	if (cpu == 0)
+	    return Machine.processor();
+
+	return core(cpu).processor;
+    }
+
+    /**
+     * Set the handlers of a core's interrupts. They are called on CPU 0, at
+     * the end of the window in which the interrupt happened.
+     *
+     * @param	cpu		the core's number.
+     * @param	timerHandler	called when the core's timer goes off, about
+     *				every <tt>Stats.TimerTicks</tt> ticks while
+     *				the core is running.
+     * @param	ipiHandler	called when another core sends the core an
+     *				inter-processor interrupt.
+     */
+    public void setInterruptHandlers(int cpu, Runnable timerHandler,
+				     Runnable ipiHandler) {
+	Core core = core(cpu);
+
+	core.timerHandler = timerHandler;
+	core.ipiHandler = ipiHandler;
+    }
+
+    /**
+     * Start a core executing instructions at its current PC, from the start
+     * of the next window. Unlike <tt>Processor.run()</tt>, this does not set
+     * the <tt>regNextPC</tt> register, so that a core can resume an
+     * instruction in a branch delay slot; the kernel must set it for a new
+     * program.
+     *
+     * @param	cpu	the core's number.
+     */
+    public void start(int cpu) {
+	Core core = core(cpu);
+	Lib.assertTrue(!core.processor.hasTrap());
+
+	core.running = true;
+	scheduleSync();
+    }
+
+    /**
+     * Stop a core at the end of the current window. The core's exception
+     * and interrupts for the window are still handled.
+     *
+     * @param	cpu	the core's number.
+     */
+    public void stop(int cpu) {
+	core(cpu).running = false;
+    }
+
+    /**
+     * Test whether a core has been started, and not stopped since or ended
+     * in an exception.
+     *
+     * @param	cpu	the core's number.
+     * @return	<tt>true</tt> if the core is running.
+     */
+    public boolean isRunning(int cpu) {
+	return core(cpu).running;
+    }
+
+    /**
+     * Send an inter-processor interrupt to a core. The core's IPI handler is
+     * called at the end of the current window, or once the core enables its
+     * interrupts.
+     *
+     * @param	cpu	the core to interrupt.
+     */
+    public void sendIPI(int cpu) {
+	core(cpu).ipiPending = true;
+	scheduleSync();
+    }
+
+    /**
+     * Enable a core's interrupts. Its pending timer interrupt and IPI, if
+     * any, are handled at the end of the current window.
+     *
+     * @param	cpu	the core's number.
+     */
+    public void enable(int cpu) {
+	setStatus(cpu, true);
+    }
+
+    /**
+     * Disable a core's interrupts, and return the old status.
+     *
+     * @param	cpu	the core's number.
+     * @return	<tt>true</tt> if the core's interrupts were enabled.
+     */
+    public boolean disable(int cpu) {
+	return setStatus(cpu, false);
+    }
+
+    /**
+     * Restore a core's interrupts to the specified status.
+     *
+     * @param	cpu	the core's number.
+     * @param	status	<tt>true</tt> to enable the core's interrupts.
+     */
+    public void restore(int cpu, boolean status) {
+	setStatus(cpu, status);
+    }
+
+    /**
+     * Set a core's interrupt status, and return the old status.
+     *
+     * @param	cpu	the core's number.
+     * @param	status	<tt>true</tt> to enable the core's interrupts.
+     * @return	the old status.
+     */
+    public boolean setStatus(int cpu, boolean status) {
+	Core core = core(cpu);
+
+	boolean oldStatus = core.enabled;
+	core.enabled = status;
+
+	if (status && (core.ipiPending || core.timerPending))
+	    scheduleSync();
+
+	return oldStatus;
+    }
+
+    /**
+     * Test whether a core's interrupts are enabled.
+     *
+     * @param	cpu	the core's number.
+     * @return	<tt>true</tt> if the core's interrupts are enabled.
+     */
+    public boolean enabled(int cpu) {
+	return core(cpu).enabled;
+    }
+
+    /**
+     * Print the time each core spent running user programs. Called by
+     * <tt>Machine.halt()</tt>.
+     */
+    void print() {
+	for (int i=1; i<cores.length; i++) {
+	    System.out.println("CPU " + i + ": user ticks " +
+			       cores[i].userTicks + ", exceptions " +
+			       cores[i].numTraps);
+	}
+    }
+
+    private Core core(int cpu) {
+	Lib.assertTrue(cpu >= 1 && cpu < cores.length);
+
+	return cores[cpu];
+    }
+
+    private void scheduleSync() {
+	if (!syncPending) {
+	    syncPending = true;
+	    privilege.interrupt.schedule(window, "cpu sync", syncInterrupt);
+	}
+    }
+
+    /**
+     * The end of a window: wait for the cores, call the handlers for what
+     * happened during the window, and start the next window.
+     */
+    private void syncInterrupt() {
+	syncPending = false;
+
+	synchronized (this) {
+	    while (numBusy > 0) {
+		try {
+		    wait();
+		}
+		catch (InterruptedException e) {
+		}
+	    }
+	}
+
+	long time = privilege.stats.totalTicks;
+
+	for (int i=1; i<cores.length; i++) {
+	    Core core = cores[i];
+	    Stats stats = core.processor.getStats();
+
+	    // the cores count into their own stats, so add them in
+	    privilege.stats.numPageFaults += stats.numPageFaults;
+	    privilege.stats.numTLBMisses += stats.numTLBMisses;
+	    stats.numPageFaults = 0;
+	    stats.numTLBMisses = 0;
+	    for (int j=0; j<Processor.numASIDs; j++) {
+		privilege.stats.numTLBHitsByASID[j] += stats.numTLBHitsByASID[j];
+		privilege.stats.numTLBMissesByASID[j] +=
+		    stats.numTLBMissesByASID[j];
+		privilege.stats.numTLBEvictionsByASID[j] +=
+		    stats.numTLBEvictionsByASID[j];
+		stats.numTLBHitsByASID[j] = 0;
+		stats.numTLBMissesByASID[j] = 0;
+		stats.numTLBEvictionsByASID[j] = 0;
+	    }
+
+	    // a core started since the last window has not run yet
+	    if (core.running && core.lastTimer >= 0 &&
+		time - core.lastTimer >= Stats.TimerTicks) {
+		core.timerPending = true;
+		core.lastTimer = time;
+	    }
+
+	    if (core.processor.hasTrap()) {
+		Lib.debug(dbgSMP, "CPU " + i + " exception");
+
+		core.running = false;
+		core.numTraps++;
+		core.processor.handleTrap();
+	    }
+
+	    if (core.enabled && core.timerPending) {
+		core.timerPending = false;
+		if (core.timerHandler != null)
+		    core.timerHandler.run();
+	    }
+
+	    if (core.enabled && core.ipiPending) {
+		Lib.debug(dbgSMP, "CPU " + i + " IPI");
+
+		core.ipiPending = false;
+		if (core.ipiHandler != null)
+		    core.ipiHandler.run();
+	    }
+	}
+
+	// start the next window
+	int count = window / Stats.UserTick;
+	boolean anyRunning = false;
+
+	synchronized (this) {
+	    for (int i=1; i<cores.length; i++) {
+		Core core = cores[i];
+		if (core.running) {
+		    if (core.lastTimer < 0)
+			core.lastTimer = time;
+
+		    // the core's own clock starts each window at CPU 0's time
+		    core.processor.getStats().totalTicks = time;
+		    core.budget = count;
+		    numBusy++;
+		    anyRunning = true;
+		}
+		else {
+		    core.lastTimer = -1;
+
+		    // a core stopped between instructions may be in the middle
+		    // of a delayed load, which the kernel can't see or move
+		    core.processor.finishLoad();
+		}
+	    }
+
+	    notifyAll();
+	}
+
+	if (anyRunning)
+	    scheduleSync();
+    }
+
+    /** The body of a core's host thread. */
+    private void coreLoop(Core core) {
+	Trace.setCore(core.processor);
+
+	while (true) {
+	    int count;
+
+	    synchronized (this) {
+		while (core.budget == 0) {
+		    try {
+			wait();
+		    }
+		    catch (InterruptedException e) {
+		    }
+		}
+
+		count = core.budget;
+	    }
+
+	    int executed = core.processor.runWindow(count);
+	    core.userTicks += executed * Stats.UserTick;
+
+	    synchronized (this) {
+		core.budget = 0;
+		numBusy--;
+		if (numBusy == 0)
+		    notifyAll();
+	    }
+	}
+    }
+
+    /** One of the other cores. */
+    private static class Core {
+	Core(int cpu, Processor processor) {
+	    this.cpu = cpu;
+	    this.processor = processor;
+	}
+
+	int cpu;
+	Processor processor;
+
+	boolean running = false;
+	boolean enabled = true;
+	boolean timerPending = false;
+	boolean ipiPending = false;
+	/** The time the timer last went off, or -1 if the core is stopped. */
+	long lastTimer = -1;
+
+	Runnable timerHandler = null;
+	Runnable ipiHandler = null;
+
+	/** The instructions the core may run in this window, or 0. */
+	int budget = 0;
+
+	long userTicks = 0;
+	int numTraps = 0;
+    }
+
+    private Privilege privilege;
+    private Core[] cores;
+
+    /** The length of a window, in ticks. */
+    private int window;
+    private Runnable syncInterrupt;
+    private boolean syncPending = false;
+    /** The number of cores still running their window. */
+    private int numBusy = 0;
+
+    private static final char dbgSMP = 'P';
+}
@@ -87,6 +87,26 @@ public class NetworkLink {
 	reliability = Config.getDouble("NetworkLink.reliability");
 	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
 
+	receiveInterrupt = new Runnable() {
+		public void run() { receiveInterrupt(); }
+	    };
+
+	sendInterrupt = new Runnable() {
+		public void run() { sendInterrupt(); }
+	    };		
+
+	// a replayed link takes its packets from the event log, not a socket
+	EventLog log = Machine.eventLog();
+	if (log != null && log.isReplaying()) {
+	    linkAddress = (byte) log.replayLinkAddress();
+	    socket = null;
+
+	    System.out.print("(" + linkAddress + ")");
+
+	    scheduleReceiveInterrupt();
+	    return;
+	}
+
 	socket = null;
 
 	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
@@ -106,14 +126,9 @@ public class NetworkLink {
 
 	System.out.print("(" + linkAddress + ")");
 
-	receiveInterrupt = new Runnable() {
-		public void run() { receiveInterrupt(); }
-	    };
+	if (log != null)
+	    log.recordLinkAddress(linkAddress);
 
-	sendInterrupt = new Runnable() {
-		public void run() { sendInterrupt(); }
-	    };		
-	
 	scheduleReceiveInterrupt();
 
 	Thread receiveThread = new Thread(new Runnable() {
@@ -163,6 +178,14 @@ public class NetworkLink {
     private synchronized void receiveInterrupt() {
 	Lib.assertTrue(incomingPacket == null);
 
+	EventLog log = Machine.eventLog();
+	if (log != null) {
+	    if (log.isReplaying())
+		incomingBytes = log.replayPacket();
+	    else if (incomingBytes != null)
+		log.recordPacket(incomingBytes);
+	}
+
 	if (incomingBytes != null) {
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
@@ -268,8 +291,12 @@ public class NetworkLink {
 	outgoingPacket = null;
 	
 	try {
-	    socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
-					   localHost, portBase+p.dstLink));
+	    // when replaying, the packet has nowhere to go
+	    if (socket != null) {
+		socket.send(new DatagramPacket(p.packetBytes,
+					       p.packetBytes.length,
+					       localHost, portBase+p.dstLink));
+	    }
 
 	    privilege.stats.numPacketsSent++;
 	}
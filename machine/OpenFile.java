@@ -86,6 +86,18 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Get the time this file was last modified, which changes whenever the
+     * file is written, so that a kernel can tell whether what it remembers
+     * about the file is still current.
+     *
+     * @return	the time this file was last modified, in milliseconds since
+     *		the epoch, or -1 if the file system does not record it.
+     */
+    public long lastModified() {
+	return -1;
+    }
+
     /**
      * Close this file and release any associated system resources.
      */
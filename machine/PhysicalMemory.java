@@ -0,0 +1,371 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
+
+/**
+ * The physical memory attached to a <tt>Processor</tt>, made up of
+ * <tt>Processor.pageSize</tt>-byte pages. Multi-byte values are stored
+ * little-endian, as by <tt>Lib.bytesFromInt()</tt>.
+ *
+ * <p>
+ * Normally physical memory is a single byte array on the Java heap, which is
+ * also available from <tt>Processor.getMemory()</tt>. A machine with a great
+ * deal of memory can instead keep it off the heap, in chunks that are only
+ * allocated when they are first written, so that memory nothing has touched
+ * costs nothing. Off-heap memory can also be backed by a memory-mapped file.
+ * Off-heap memory has no array, so the kernel must use the methods of this
+ * class, which work the same way with either kind of memory.
+ */
+public final class PhysicalMemory {
+    /**
+     * Allocate physical memory on the Java heap.
+     *
+     * @param	numPages	the number of pages of memory.
+     */
+    PhysicalMemory(int numPages) {
+	this.numPages = numPages;
+
+	array = new byte[numPages * Processor.pageSize];
+	chunks = null;
+	file = null;
+	privilege = null;
+    }
+
+    /**
+     * Allocate physical memory off the Java heap.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine, needed to map the file.
+     * @param	numPages	the number of pages of memory.
+     * @param	file		the file to map the memory from, or
+     *				<tt>null</tt> to allocate it from the
+     *				operating system. The file should be empty, so
+     *				that memory starts out zeroed.
+     */
+    PhysicalMemory(Privilege privilege, int numPages, FileChannel file) {
+	this.numPages = numPages;
+
+	array = null;
+	chunks = new ByteBuffer[(numPages + pagesPerChunk-1) / pagesPerChunk];
+	this.file = file;
+	this.privilege = privilege;
+    }
+
+    /**
+     * Return the number of pages of physical memory.
+     *
+     * @return	the number of pages of physical memory.
+     */
+    public int getNumPages() {
+	return numPages;
+    }
+
+    /**
+     * Return the array holding this memory, or <tt>null</tt> if it is kept off
+     * the Java heap.
+     *
+     * @return	the memory array, or <tt>null</tt>.
+     */
+    public byte[] getArray() {
+	return array;
+    }
+
+    /**
+     * Copy bytes from physical memory into an array.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void read(int paddr, byte[] data, int offset, int length) {
+	checkRange(paddr, length);
+	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
+
+	if (array != null) {
+	    System.arraycopy(array, paddr, data, offset, length);
+	    return;
+	}
+
+	while (length > 0) {
+	    int amount = Math.min(length, chunkSize - paddr%chunkSize);
+
+	    ByteBuffer chunk = chunks[paddr / chunkSize];
+	    if (chunk == null) {
+		Arrays.fill(data, offset, offset+amount, (byte) 0);
+	    }
+	    else {
+		ByteBuffer source = chunk.duplicate();
+		source.position(paddr % chunkSize);
+		source.get(data, offset, amount);
+	    }
+
+	    paddr += amount;
+	    offset += amount;
+	    length -= amount;
+	}
+    }
+
+    /**
+     * Copy bytes from an array into physical memory.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte to read from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void write(int paddr, byte[] data, int offset, int length) {
+	checkRange(paddr, length);
+	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
+
+	if (array != null) {
+	    System.arraycopy(data, offset, array, paddr, length);
+	    return;
+	}
+
+	while (length > 0) {
+	    int amount = Math.min(length, chunkSize - paddr%chunkSize);
+
+	    ByteBuffer target = getChunk(paddr / chunkSize).duplicate();
+	    target.position(paddr % chunkSize);
+	    target.put(data, offset, amount);
+
+	    paddr += amount;
+	    offset += amount;
+	    length -= amount;
+	}
+    }
+
+    /**
+     * Fill a range of physical memory with zeros.
+     *
+     * @param	paddr	the first physical address to zero.
+     * @param	length	the number of bytes to zero.
+     */
+    public void zero(int paddr, int length) {
+	checkRange(paddr, length);
+
+	if (array != null) {
+	    Arrays.fill(array, paddr, paddr+length, (byte) 0);
+	    return;
+	}
+
+	while (length > 0) {
+	    int amount = Math.min(length, chunkSize - paddr%chunkSize);
+
+	    // a chunk that was never written is already zero
+	    ByteBuffer chunk = chunks[paddr / chunkSize];
+	    if (chunk != null) {
+		for (int i=0; i<amount; i++)
+		    chunk.put(paddr%chunkSize + i, (byte) 0);
+	    }
+
+	    paddr += amount;
+	    length -= amount;
+	}
+    }
+
+    /**
+     * Fill a page of physical memory with zeros.
+     *
+     * @param	ppn	the physical page to zero.
+     */
+    public void zeroPage(int ppn) {
+	zero(ppn*Processor.pageSize, Processor.pageSize);
+    }
+
+    /**
+     * Copy one physical page to another.
+     *
+     * @param	fromPPN	the physical page to copy.
+     * @param	toPPN	the physical page to overwrite.
+     */
+    public void copyPage(int fromPPN, int toPPN) {
+	Lib.assertTrue(fromPPN >= 0 && fromPPN < numPages);
+	Lib.assertTrue(toPPN >= 0 && toPPN < numPages);
+
+	int pageSize = Processor.pageSize;
+
+	if (array != null) {
+	    System.arraycopy(array, fromPPN*pageSize, array, toPPN*pageSize,
+			     pageSize);
+	}
+	else if (chunks[fromPPN / pagesPerChunk] == null) {
+	    zeroPage(toPPN);
+	}
+	else {
+	    writePage(toPPN, getPage(fromPPN));
+	}
+    }
+
+    /**
+     * Copy a physical page into a buffer, such as one about to be written to
+     * a swap file. Exactly <tt>Processor.pageSize</tt> bytes are put into
+     * <i>buffer</i>, starting at its position.
+     *
+     * @param	ppn	the physical page to copy.
+     * @param	buffer	the buffer to copy the page into.
+     */
+    public void readPage(int ppn, ByteBuffer buffer) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPages);
+	Lib.assertTrue(buffer.remaining() >= Processor.pageSize);
+
+	if (array != null) {
+	    buffer.put(array, ppn*Processor.pageSize, Processor.pageSize);
+	}
+	else if (chunks[ppn / pagesPerChunk] == null) {
+	    for (int i=0; i<Processor.pageSize; i++)
+		buffer.put((byte) 0);
+	}
+	else {
+	    buffer.put(getPage(ppn));
+	}
+    }
+
+    /**
+     * Fill a physical page from a buffer, such as one just read from a swap
+     * file. Exactly <tt>Processor.pageSize</tt> bytes are taken from
+     * <i>buffer</i>, starting at its position.
+     *
+     * @param	ppn	the physical page to overwrite.
+     * @param	buffer	the buffer to copy the page from.
+     */
+    public void writePage(int ppn, ByteBuffer buffer) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPages);
+	Lib.assertTrue(buffer.remaining() >= Processor.pageSize);
+
+	if (array != null) {
+	    buffer.get(array, ppn*Processor.pageSize, Processor.pageSize);
+	    return;
+	}
+
+	ByteBuffer source = buffer.duplicate();
+	source.limit(source.position() + Processor.pageSize);
+	buffer.position(buffer.position() + Processor.pageSize);
+
+	ByteBuffer target = getChunk(ppn / pagesPerChunk).duplicate();
+	target.position((ppn % pagesPerChunk) * Processor.pageSize);
+	target.put(source);
+    }
+
+    /**
+     * Read a value of <i>size</i> (1, 2, or 4) bytes, sign-extended, as
+     * <tt>Lib.bytesToInt()</tt> does.
+     */
+    int load(int paddr, int size) {
+	if (array != null)
+	    return Lib.bytesToInt(array, paddr, size);
+
+	ByteBuffer chunk = chunks[paddr / chunkSize];
+	if (chunk == null)
+	    return 0;
+
+	switch (size) {
+	case 1:
+	    return chunk.get(paddr % chunkSize);
+	case 2:
+	    return chunk.getShort(paddr % chunkSize);
+	default:
+	    return chunk.getInt(paddr % chunkSize);
+	}
+    }
+
+    /**
+     * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i>, as
+     * <tt>Lib.bytesFromInt()</tt> does.
+     */
+    void store(int paddr, int size, int value) {
+	if (array != null) {
+	    Lib.bytesFromInt(array, paddr, size, value);
+	    return;
+	}
+
+	ByteBuffer chunk = getChunk(paddr / chunkSize);
+
+	switch (size) {
+	case 1:
+	    chunk.put(paddr % chunkSize, (byte) value);
+	    break;
+	case 2:
+	    chunk.putShort(paddr % chunkSize, (short) value);
+	    break;
+	default:
+	    chunk.putInt(paddr % chunkSize, value);
+	    break;
+	}
+    }
+
+    /**
+     * Return a read-only view of a page that has already been allocated.
+     */
+    private ByteBuffer getPage(int ppn) {
+	ByteBuffer page = chunks[ppn / pagesPerChunk].asReadOnlyBuffer();
+	page.position((ppn % pagesPerChunk) * Processor.pageSize);
+	page.limit(page.position() + Processor.pageSize);
+	return page;
+    }
+
+    /**
+     * Return the specified chunk, allocating or mapping it if this is the
+     * first time it has been written.
+     */
+    private ByteBuffer getChunk(int index) {
+	ByteBuffer chunk = chunks[index];
+	if (chunk != null)
+	    return chunk;
+
+	if (file == null) {
+	    chunk = ByteBuffer.allocateDirect(chunkSize);
+	}
+	else {
+	    final long position = (long) index * chunkSize;
+	    
+	    try {
+		chunk = (ByteBuffer) privilege.doPrivileged(
+		    new PrivilegedExceptionAction<ByteBuffer>() {
+			public ByteBuffer run() throws Exception {
+			    return file.map(FileChannel.MapMode.READ_WRITE,
+					    position, chunkSize);
+			}
+		    });
+	    }
+	    catch (PrivilegedActionException e) {
+		Lib.assertNotReached("could not map physical memory: " +
+				     e.getException());
+	    }
+	}
+
+	chunk.order(ByteOrder.LITTLE_ENDIAN);
+	chunks[index] = chunk;
+	return chunk;
+    }
+
+    private void checkRange(int paddr, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       (long) paddr + length <= (long) numPages*Processor.pageSize);
+    }
+
+    private int numPages;
+
+    /** The memory, if it is kept on the Java heap. */
+    private byte[] array;
+    /** The chunks of off-heap memory, <tt>null</tt> until first written. */
+    private ByteBuffer[] chunks;
+    /** The file off-heap memory is mapped from, if any. */
+    private FileChannel file;
+    private Privilege privilege;
+
+    /** Number of pages allocated together off the heap. */
+    private static final int pagesPerChunk = 64;
+    /** Size of an off-heap chunk, in bytes. */
+    private static final int chunkSize = pagesPerChunk * Processor.pageSize;
+}
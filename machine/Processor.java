@@ -4,6 +4,14 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +26,58 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ * Physical memory is normally a byte array on the Java heap. If the
+ * <tt>Processor.offHeapMemory</tt> key is <tt>true</tt>, it is allocated off
+ * the heap instead, a chunk at a time as it is first written, and if the
+ * <tt>Processor.memoryFile</tt> key names a file, it is mapped from that file.
+ * Either way it can be accessed through <tt>getPhysicalMemory()</tt>, but
+ * only memory on the heap is available as an array from <tt>getMemory()</tt>.
+ *
+ * <p>
+ * A processor with a TLB has <tt>Processor.TLBSize</tt> entries (by default
+ * 4), divided into sets of <tt>Processor.TLBWays</tt> entries each (by
+ * default the whole TLB, which makes it fully associative). Each TLB entry is
+ * tagged with an address space identifier (ASID), and only matches while the
+ * processor's current ASID, set by <tt>setASID()</tt>, is the same, so a
+ * kernel can keep the translations of several processes in the TLB at once.
+ *
+ * <p>
+ * If the <tt>Processor.decodeCache</tt> key in <tt>nachos.conf</tt> is
+ * <tt>true</tt>, decoded instructions are cached by physical page, so that
+ * instructions executed repeatedly are only decoded once. Stores to a page
+ * discard its cached instructions. If the <tt>Processor.fuseInstructions</tt>
+ * key is also <tt>true</tt>, common pairs of cached instructions (such as
+ * <tt>lui</tt> and <tt>ori</tt>, <tt>slt</tt> and <tt>bne</tt>, or a load
+ * and the ALU operation in its delay slot) are executed together by a single
+ * handler, which still charges a tick for each of them. If the
+ * <tt>Processor.threadedCode</tt> key is <tt>true</tt>, each cached
+ * instruction is bound to a handler object with its operands already
+ * resolved, which executes it without going through the interpreter's
+ * decoding (see <tt>ThreadedCode</tt>).
+ *
+ * <p>
+ * If the <tt>Processor.translateBlocks</tt> key is <tt>true</tt>, basic blocks
+ * that are executed often enough (<tt>Processor.translateThreshold</tt> times,
+ * by default 16) are compiled into JVM classes by a
+ * <tt>BlockTranslator</tt>. Translated blocks charge one tick per instruction
+ * and raise exceptions with the same processor state as the interpreter, so
+ * they do not change the simulated behavior of a program.
+ *
+ * <p>
+ * If the <tt>Processor.profile</tt> key is <tt>true</tt>, a <tt>Profiler</tt>
+ * counts the instructions executed at each address, the operations and memory
+ * references they make, and the exceptions they raise, and the counts are
+ * printed when the machine halts. If <tt>Processor.profileStacks</tt> names a
+ * file, the counts are also written there as collapsed stacks. Profiled
+ * programs are always interpreted, one instruction at a time.
+ *
+ * <p>
+ * The processor remembers the most recent translation of each of a few
+ * virtual pages, so most memory references skip the page table or TLB
+ * lookup. A remembered translation has already set the entry's used bit (and
+ * its dirty bit, if it was made by a write), and the kernel can only clear
+ * them or change the entry while it is running, which forgets every
+ * remembered translation.
  */
 public final class Processor {
     /**
@@ -33,6 +93,7 @@ public final class Processor {
 
 	this.privilege = privilege;
 	privilege.processor = new ProcessorPrivilege();
+	stats = privilege.stats;
 
 	Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
 	Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
@@ -45,9 +106,129 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	final String memoryFile = Config.getString("Processor.memoryFile");
+	
+	if (memoryFile != null) {
+	    FileChannel file = null;
+	    try {
+		file = (FileChannel) privilege.doPrivileged(
+		    new PrivilegedExceptionAction<FileChannel>() {
+			public FileChannel run() throws Exception {
+			    RandomAccessFile f =
+				new RandomAccessFile(memoryFile, "rw");
+			    // start with an empty (zeroed) file
+			    f.setLength(0);
+			    return f.getChannel();
+			}
+		    });
+	    }
+	    catch (PrivilegedActionException e) {
+		Lib.assertNotReached("could not open physical memory file " +
+				     memoryFile + ": " + e.getException());
+	    }
+
+	    memory = new PhysicalMemory(privilege, numPhysPages, file);
+	}
+	else if (Config.getBoolean("Processor.offHeapMemory", false)) {
+	    memory = new PhysicalMemory(privilege, numPhysPages, null);
+	}
+	else {
+	    memory = new PhysicalMemory(numPhysPages);
+	}
+
+	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.TLBSize", 4);
+	    tlbWays = Config.getInteger("Processor.TLBWays", tlbSize);
+	    Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0,
+			   "the TLB must be made up of whole sets");
+
+	    translations = new TranslationEntry[tlbSize];
+	    for (int i=0; i<tlbSize; i++)
+		translations[i] = new TranslationEntry();
+	}
+	else {
+	    translations = null;
+	}
+
+	// the processor trace shows every translation too
+	if (!Lib.test(dbgProcessor)) {
+	    recentPages = new int[numRecentPages];
+	    recentWritablePages = new int[numRecentPages];
+	    recentFrames = new int[numRecentPages];
+	    forgetTranslations();
+	}
+
+	// the processor trace shows every fetch, so keep it on the slow path
+	if (Config.getBoolean("Processor.decodeCache", false) &&
+	    !Lib.test(dbgProcessor))
+	    decodeCache = new DecodedInstruction[numPhysPages][];
+	else
+	    decodeCache = null;
+
+	String stacksFileName = Config.getString("Processor.profileStacks", null);
+	if (Config.getBoolean("Processor.profile", false) ||
+	    stacksFileName != null)
+	    profiler = new Profiler(privilege, stacksFileName);
+	else
+	    profiler = null;
+
+	// likewise, traced and profiled instructions must go one at a time
+	fuseInstructions = decodeCache != null &&
+	    Config.getBoolean("Processor.fuseInstructions", false) &&
+	    profiler == null &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble);
+
+	// the trace buffer only takes the disassembly of each instruction
+	traceInstructions = Trace.isBuffering() && Lib.test(dbgDisassemble) &&
+	    !Lib.test(dbgProcessor) && !Lib.test(dbgFullDisassemble);
+
+	if (decodeCache != null &&
+	    Config.getBoolean("Processor.threadedCode", false) &&
+	    profiler == null &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble))
+	    threadedCode = new ThreadedCode(this, registers);
+	else
+	    threadedCode = null;
+
+	if (Config.getBoolean("Processor.translateBlocks", false) &&
+	    profiler == null &&
+	    !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+	    !Lib.test(dbgFullDisassemble) && !Lib.test(dbgInterrupt)) {
+	    int threshold =
+		Config.getInteger("Processor.translateThreshold", 16);
+
+	    translator = BlockTranslator.create(this, privilege, registers,
+						memory, threshold);
+	}
+	else {
+	    translator = null;
+	}
+    }
+
+    /**
+     * Allocate another core of a multiprocessor. The core shares the physical
+     * memory and the kind of address translation of the boot processor, and
+     * has its own registers, TLB or page table, and caches. Its TLB and
+     * exception counts are kept apart until <tt>Multiprocessor</tt> adds them
+     * to the machine's statistics. Its programs are never profiled or
+     * translated to bytecode, since neither can be shared between host
+     * threads.
+     *
+     * @param	boot	the boot processor.
+     */
+    Processor(Processor boot) {
+	privilege = boot.privilege;
+	stats = new Stats();
+	bootProcessor = false;
+
+	usingTLB = boot.usingTLB;
+	numPhysPages = boot.numPhysPages;
+	memory = boot.memory;
 
 	if (usingTLB) {
+	    tlbSize = boot.tlbSize;
+	    tlbWays = boot.tlbWays;
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
@@ -55,6 +236,29 @@ public final class Processor {
 	else {
 	    translations = null;
 	}
+
+	if (boot.recentPages != null) {
+	    recentPages = new int[numRecentPages];
+	    recentWritablePages = new int[numRecentPages];
+	    recentFrames = new int[numRecentPages];
+	    forgetTranslations();
+	}
+
+	if (boot.decodeCache != null)
+	    decodeCache = new DecodedInstruction[numPhysPages][];
+	else
+	    decodeCache = null;
+
+	fuseInstructions = boot.fuseInstructions;
+	traceInstructions = boot.traceInstructions;
+	if (boot.threadedCode != null)
+	    threadedCode = new ThreadedCode(this, registers);
+	else
+	    threadedCode = null;
+	profiler = null;
+	translator = null;
+
+	interpreter = new Instruction();
     }
 
     /**
@@ -83,8 +287,21 @@ public final class Processor {
     
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * Simulated time only matters to the rest of the machine when an
+     * interrupt falls due, or when an exception hands control to the kernel.
+     * So rather than ticking after every instruction, the processor runs up
+     * to the next pending interrupt (the <i>horizon</i>) and then advances
+     * the time for all of those instructions at once. The interrupt is still
+     * taken right after the instruction that reaches it, and an exception is
+     * still handled after exactly the ticks of the instructions before it, so
+     * the simulated timing is the same as ticking one instruction at a time.
      */
     public void run() {
+	Lib.assertTrue(bootProcessor,
+		       "other cores are started by Multiprocessor.start()");
+
 	Lib.debug(dbgProcessor, "starting program in current thread");
 
 	registers[regNextPC] = registers[regPC] + 4;
@@ -94,15 +311,135 @@ public final class Processor {
 	Instruction inst = new Instruction();
 	
 	while (true) {
+	    // the kernel has run since the last horizon, if this isn't the first
+	    if (translator != null)
+		translator.memoryMayHaveChanged();
+
+	    if (recentPages != null)
+		forgetTranslations();
+	    
+	    int horizon = 1;
+
+	    // the interrupt trace prints every tick, so go one at a time
+	    if (!Lib.test(dbgInterrupt)) {
+		horizon = (int) Math.min(maxHorizon,
+					 privilege.interrupt.ticksUntilNextInterrupt()
+					 / Stats.UserTick);
+		horizon = Math.max(horizon, 1);
+	    }
+	    
+	    executed = 0;
+
 	    try {
-		inst.run();
+		runToHorizon(inst, horizon);
 	    }
 	    catch (MipsException e) {
+		if (translator != null)
+		    executed += translator.completed();
+
+		// charge the instructions before the one that faulted
+		if (executed > 0)
+		    privilege.interrupt.tick(false, executed);
+
 		e.handle();
+		executed = 1;
+	    }
+
+	    privilege.interrupt.tick(false, executed);
+	}
+    }
+
+    /**
+     * Execute <i>horizon</i> instructions, counting them in
+     * <tt>executed</tt> as they complete.
+     *
+     * @param	inst	the interpreter.
+     * @param	horizon	the number of instructions to execute.
+     * @exception	MipsException	if an instruction raised an exception.
+     */
+    private void runToHorizon(Instruction inst, int horizon)
+	throws MipsException {
+	while (executed < horizon) {
+	    int count = 0;
+	    if (translator != null)
+		count = translator.run(horizon - executed);
+
+	    if (count == 0) {
+		// don't translate the PC twice, which would count twice
+		if (translator != null)
+		    inst.pretranslated = translator.declined();
+		count = inst.run(horizon - executed);
 	    }
 
-	    privilege.interrupt.tick(false);
+	    executed += count;
+	}
+    }
+
+    /**
+     * Execute up to <i>count</i> instructions on a core of a multiprocessor,
+     * stopping at the first exception, which is kept for
+     * <tt>handleTrap()</tt>. Called on the core's own host thread, while the
+     * kernel leaves the core alone.
+     *
+     * @param	count	the most instructions to execute.
+     * @return	the number of instructions executed, counting one that raised
+     *		an exception.
+     */
+    int runWindow(int count) {
+	// the kernel may have changed the page table since the last window
+	if (recentPages != null)
+	    forgetTranslations();
+
+	executed = 0;
+
+	try {
+	    runToHorizon(interpreter, count);
+	}
+	catch (MipsException e) {
+	    trap = e;
+	    executed++;
 	}
+
+	return executed;
+    }
+
+    /**
+     * Return the time on this core: the time its current window started,
+     * plus the instructions it has executed in the window so far. Only
+     * meaningful on the core's own host thread.
+     *
+     * @return	the current time on this core, in ticks.
+     */
+    long coreTime() {
+	return stats.totalTicks + (long) executed * Stats.UserTick;
+    }
+
+    /**
+     * Test whether the last window ended in an exception.
+     *
+     * @return	<tt>true</tt> if an exception is waiting to be handled.
+     */
+    boolean hasTrap() {
+	return trap != null;
+    }
+
+    /**
+     * Hand the exception that ended the last window to the kernel's
+     * exception handler.
+     */
+    void handleTrap() {
+	MipsException e = trap;
+	trap = null;
+	e.handle();
+    }
+
+    /**
+     * Return the statistics kept by this core.
+     *
+     * @return	the statistics kept by this core.
+     */
+    Stats getStats() {
+	return stats;
     }
 
     /**
@@ -175,6 +512,9 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+
+	if (recentPages != null)
+	    forgetTranslations();
     }
 
     /**
@@ -188,6 +528,65 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of entries in each set of this processor's TLB. A
+     * fully associative TLB has only one set, so this is the same as
+     * <tt>getTLBSize()</tt>.
+     *
+     * @return	the number of entries in each set of this processor's TLB.
+     */
+    public int getTLBWays() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
+    /**
+     * Return the set of TLB entries that can hold a translation for the
+     * specified virtual page. Set <i>n</i> is made up of entries
+     * <tt><i>n</i>*getTLBWays()</tt> through
+     * <tt>(<i>n</i>+1)*getTLBWays() - 1</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the set that must hold any TLB entry for <i>vpn</i>.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(vpn >= 0);
+
+	return vpn % (tlbSize / tlbWays);
+    }
+
+    /**
+     * Set the address space identifier (ASID) of the running process. From
+     * now on, only TLB entries tagged with this ASID will be used to
+     * translate addresses.
+     *
+     * @param	asid	the new ASID. Must be between <tt>0</tt> and
+     *			<tt>numASIDs - 1</tt>.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+	this.asid = asid;
+
+	if (recentPages != null)
+	    forgetTranslations();
+    }
+
+    /**
+     * Get the current address space identifier, set by the last call to
+     * <tt>setASID()</tt>.
+     *
+     * @return	the current ASID.
+     */
+    public int getASID() {
+	Lib.assertTrue(usingTLB);
+
+	return asid;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +604,11 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * A valid entry must be written into the set given by
+     * <tt>getTLBSet(entry.vpn)</tt>, but within that set its location does
+     * not affect anything. If the TLB is fully associative, any location will
+     * do. Replacing a valid entry with one for a different page or address
+     * space counts as an eviction from the old entry's address space.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -215,7 +617,20 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	if (entry.valid) {
+	    Lib.assertTrue(number / tlbWays == getTLBSet(entry.vpn));
+	    Lib.assertTrue(entry.asid >= 0 && entry.asid < numASIDs);
+	}
+
+	TranslationEntry old = translations[number];
+	if (old.valid && entry.valid &&
+	    (old.vpn != entry.vpn || old.asid != entry.asid))
+	    stats.numTLBEvictionsByASID[old.asid]++;
+
 	translations[number] = new TranslationEntry(entry);
+
+	if (recentPages != null)
+	    forgetTranslations();
     }
 
     /**
@@ -230,12 +645,130 @@ public final class Processor {
 
     /**
      * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * is <tt>pageSize * getNumPhysPages()</tt>. Only available if physical
+     * memory is kept on the Java heap; <tt>getPhysicalMemory()</tt> works
+     * either way.
      *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
-	return mainMemory;
+	Lib.assertTrue(memory.getArray() != null,
+		       "physical memory is off the heap; use getPhysicalMemory()");
+	
+	return memory.getArray();
+    }
+
+    /**
+     * Return the physical memory attached to this processor.
+     *
+     * @return	the physical memory.
+     */
+    public PhysicalMemory getPhysicalMemory() {
+	return memory;
+    }
+
+    /**
+     * Called when an executable is loaded, so that the profiler can name
+     * addresses after the executable's sections.
+     *
+     * @param	name		the name of the executable.
+     * @param	sections	the sections of the executable.
+     */
+    void loadedExecutable(String name, CoffSection[] sections) {
+	if (profiler != null)
+	    profiler.loadedExecutable(name, sections);
+    }
+
+    /**
+     * Print the profile of the user programs that have run, if the
+     * <tt>Processor.profile</tt> key is set. Called by
+     * <tt>Machine.halt()</tt>.
+     */
+    void printProfile() {
+	if (profiler != null)
+	    profiler.print();
+    }
+
+    /**
+     * Save the registers, the delayed load in progress, the current ASID, the
+     * TLB, and the nonzero pages of physical memory to a snapshot. The page
+     * table belongs to the kernel, which must save it itself.
+     */
+    void saveState(DataOutputStream out) throws IOException {
+	for (int i=0; i<numUserRegisters; i++)
+	    out.writeInt(registers[i]);
+
+	out.writeInt(loadTarget);
+	out.writeInt(loadMask);
+	out.writeInt(loadValue);
+	out.writeInt(asid);
+
+	if (usingTLB) {
+	    for (int i=0; i<tlbSize; i++) {
+		TranslationEntry entry = translations[i];
+		out.writeInt(entry.vpn);
+		out.writeInt(entry.ppn);
+		out.writeInt(entry.asid);
+		out.writeBoolean(entry.valid);
+		out.writeBoolean(entry.readOnly);
+		out.writeBoolean(entry.used);
+		out.writeBoolean(entry.dirty);
+	    }
+	}
+
+	// each nonzero page, then -1
+	byte[] page = new byte[pageSize];
+	ByteBuffer pageBuffer = ByteBuffer.wrap(page);
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    pageBuffer.clear();
+	    memory.readPage(ppn, pageBuffer);
+
+	    for (int i=0; i<pageSize; i++) {
+		if (page[i] != 0) {
+		    out.writeInt(ppn);
+		    out.write(page);
+		    break;
+		}
+	    }
+	}
+	out.writeInt(-1);
+    }
+
+    /**
+     * Restore the state saved by <tt>saveState()</tt>. Pages of physical
+     * memory are copied straight from the snapshot, and every other page is
+     * zeroed.
+     */
+    void restoreState(ByteBuffer in) {
+	for (int i=0; i<numUserRegisters; i++)
+	    registers[i] = in.getInt();
+
+	loadTarget = in.getInt();
+	loadMask = in.getInt();
+	loadValue = in.getInt();
+	asid = in.getInt();
+
+	if (usingTLB) {
+	    for (int i=0; i<tlbSize; i++) {
+		TranslationEntry entry = translations[i];
+		entry.vpn = in.getInt();
+		entry.ppn = in.getInt();
+		entry.asid = in.getInt();
+		entry.valid = (in.get() != 0);
+		entry.readOnly = (in.get() != 0);
+		entry.used = (in.get() != 0);
+		entry.dirty = (in.get() != 0);
+	    }
+	}
+
+	memory.zero(0, numPhysPages*pageSize);
+	for (int ppn=in.getInt(); ppn != -1; ppn=in.getInt())
+	    memory.writePage(ppn, in);
+
+	// cached decodings and translations check the memory they came from,
+	// but remembered translations must be dropped explicitly
+	if (recentPages != null)
+	    forgetTranslations();
     }
 
     /**
@@ -275,7 +808,7 @@ public final class Processor {
 	return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
     }
 
-    private void finishLoad() {
+    void finishLoad() {
 	delayedLoad(0, 0, 0);
     }
 
@@ -292,8 +825,21 @@ public final class Processor {
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
+	if (recentPages != null && (vaddr & (size-1)) == 0) {
+	    int vpn = pageFromAddress(vaddr);
+	    int index = vpn & (numRecentPages-1);
+
+	    if ((writing ? recentWritablePages[index] : recentPages[index])
+		== vpn) {
+		if (usingTLB)
+		    stats.numTLBHitsByASID[asid]++;
+
+		return recentFrames[index] + offsetFromAddress(vaddr);
+	    }
+	}
+	
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
@@ -315,26 +861,32 @@ public final class Processor {
 	    if (translations == null || vpn >= translations.length ||
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
-		privilege.stats.numPageFaults++;
+		stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
 		throw new MipsException(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB entries in the vpn's set
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
+	    int first = (vpn % (tlbSize / tlbWays)) * tlbWays;
+	    
+	    for (int i=first; i<first+tlbWays; i++) {
+		if (translations[i].valid && translations[i].vpn == vpn &&
+		    translations[i].asid == asid) {
 		    entry = translations[i];
 		    break;
 		}
 	    }
 	    if (entry == null) {
-		privilege.stats.numTLBMisses++;
+		stats.numTLBMisses++;
+		stats.numTLBMissesByASID[asid]++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
+
+	    stats.numTLBHitsByASID[asid]++;
 	}
 
 	// check if trying to write a read-only page
@@ -357,11 +909,47 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
+	if (recentPages != null)
+	    rememberTranslation(vpn, ppn, writing);
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
 
+    /**
+     * Remember a translation that <tt>translate()</tt> has just made, so that
+     * later references to the same page can skip the lookup.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the physical page number it translated to.
+     * @param	writing	<tt>true</tt> if the page may also be written without
+     *			another lookup.
+     */
+    private void rememberTranslation(int vpn, int ppn, boolean writing) {
+	int index = vpn & (numRecentPages-1);
+
+	if (recentPages[index] != vpn) {
+	    recentPages[index] = vpn;
+	    recentWritablePages[index] = -1;
+	    recentFrames[index] = ppn*pageSize;
+	}
+
+	if (writing)
+	    recentWritablePages[index] = vpn;
+    }
+
+    /**
+     * Forget every remembered translation. Called whenever the kernel may have
+     * changed the page table or TLB, or cleared a used or dirty bit.
+     */
+    private void forgetTranslations() {
+	for (int i=0; i<numRecentPages; i++) {
+	    recentPages[i] = -1;
+	    recentWritablePages[i] = -1;
+	}
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -371,15 +959,14 @@ public final class Processor {
      * @return		the value read.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int readMem(int vaddr, int size) throws MipsException {
+    int readMem(int vaddr, int size) throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = memory.load(translate(vaddr, size, false), size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -397,7 +984,7 @@ public final class Processor {
      * @param	value	the value to store.
      * @exception	MipsException	if a translation error occurred.
      */
-    private void writeMem(int vaddr, int size, int value)
+    void writeMem(int vaddr, int size, int value)
 	throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
@@ -405,9 +992,63 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	memory.store(paddr, size, value);
+
+	if (decodeCache != null)
+	    invalidateDecodedPage(paddr / pageSize);
+
+	if (translator != null)
+	    translator.stored(paddr);
+    }
+
+    /**
+     * Return the predecoded form of the instruction word <i>value</i>, which
+     * was fetched from physical address <i>paddr</i>. Each cached entry
+     * remembers the word it was decoded from, so an entry made stale by the
+     * kernel writing to <tt>getMemory()</tt> is simply decoded again.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @param	value	the instruction word stored at <i>paddr</i>.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction predecoded(int paddr, int value) {
+	int ppn = paddr / pageSize;
+
+	DecodedInstruction[] page = decodeCache[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize/4];
+	    decodeCache[ppn] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+
+	DecodedInstruction decoded = page[index];
+	if (decoded == null) {
+	    decoded = new DecodedInstruction();
+	    page[index] = decoded;
+	}
+	else if (decoded.valid && decoded.value == value) {
+	    return decoded;
+	}
+
+	decoded.decode(value);
+	if (threadedCode != null)
+	    decoded.handler = threadedCode.bind(decoded);
+	return decoded;
+    }
+
+    /**
+     * Discard any predecoded instructions cached for the specified physical
+     * page.
+     *
+     * @param	ppn	the physical page that was modified.
+     */
+    private void invalidateDecodedPage(int ppn) {
+	if (decodeCache[ppn] != null)
+	    decodeCache[ppn] = null;
     }
 
     /**
@@ -421,8 +1062,8 @@ public final class Processor {
      *				corresponding bit of register
      *				<tt>nextLoadTarget</tt> will not be written.
      */
-    private void delayedLoad(int nextLoadTarget, int nextLoadValue,
-			     int nextLoadMask) {
+    void delayedLoad(int nextLoadTarget, int nextLoadValue,
+		     int nextLoadMask) {
 	// complete previous delayed load, if not modifying r0
 	if (loadTarget != 0) {
 	    int savedBits = registers[loadTarget] & ~loadMask;
@@ -436,6 +1077,39 @@ public final class Processor {
 	loadMask = nextLoadMask;
     }
 
+    /**
+     * Multiply two operands into the lo and hi registers.
+     *
+     * @param	src1	the first operand.
+     * @param	src2	the second operand.
+     */
+    void multiply(long src1, long src2) {
+	long dst = src1 * src2;
+	registers[regLo] = (int) Lib.extract(dst, 0, 32);
+	registers[regHi] = (int) Lib.extract(dst, 32, 32);
+    }
+
+    /**
+     * Divide two operands, leaving the quotient in the lo register and the
+     * remainder in the hi register.
+     *
+     * @param	src1	the dividend.
+     * @param	src2	the divisor.
+     * @exception	MipsException	if the divisor is zero or the quotient
+     *					overflows.
+     */
+    void divide(long src1, long src2) throws MipsException {
+	try {
+	    registers[regLo] = (int) (src1 / src2);
+	    registers[regHi] = (int) (src1 % src2);
+	    if (registers[regLo]*src2 + registers[regHi] != src1)
+		throw new ArithmeticException();
+	}
+	catch (ArithmeticException e) {
+	    throw new MipsException(exceptionOverflow);
+	}
+    }
+
     /**
      * Advance the PC to the next instruction.
      *
@@ -463,32 +1137,159 @@ public final class Processor {
 	registers[regNextPC] = nextPC;
     }
 
-    /** Caused by a syscall instruction. */
-    public static final int exceptionSyscall = 0;
-    /** Caused by an access to an invalid virtual page. */
-    public static final int exceptionPageFault = 1;
-    /** Caused by an access to a virtual page not mapped by any TLB entry. */
-    public static final int exceptionTLBMiss = 2;
-    /** Caused by a write access to a read-only virtual page. */
-    public static final int exceptionReadOnly = 3;
-    /** Caused by an access to an invalid physical page. */
-    public static final int exceptionBusError = 4;
-    /** Caused by an access to a misaligned virtual address. */
-    public static final int exceptionAddressError = 5;
-    /** Caused by an overflow by a signed operation. */
-    public static final int exceptionOverflow = 6;
-    /** Caused by an attempt to execute an illegal instruction. */
-    public static final int exceptionIllegalInstruction = 7;
+    /**
+     * Disassemble an instruction, as the <tt>m</tt> and <tt>M</tt> debug
+     * flags print it: the mnemonic and operands, padded with tabs to a
+     * fixed width.
+     *
+     * @param	info		the decoded instruction.
+     * @param	jtarget		the address the instruction branches to.
+     * @param	registers	the registers, whose values are shown with
+     *				the operands, or <tt>null</tt>.
+     * @return	the disassembled instruction.
+     */
+    static String disassemble(DecodedInstruction info, int jtarget,
+			      int[] registers) {
+	int rs = info.rs, rt = info.rt, rd = info.rd;
+	StringBuffer out = new StringBuffer();
+
+	if (info.operation == Mips.INVALID) {
+	    return "invalid: op=" + Lib.toHexString(info.op, 2) +
+		" rs=" + Lib.toHexString(rs, 2) +
+		" rt=" + Lib.toHexString(rt, 2) +
+		" rd=" + Lib.toHexString(rd, 2) +
+		" sh=" + Lib.toHexString(info.sh, 2) +
+		" func=" + Lib.toHexString(info.func, 2);
+	}
 
-    /** The names of the CPU exceptions. */
-    public static final String exceptionNames[] = {
-	"syscall      ",
-	"page fault   ",
-	"TLB miss     ",
-	"read-only    ",
-	"bus error    ",
-	"address error",
-	"overflow     ",
+	int spaceIndex = info.name.indexOf(' ');
+	Lib.assertTrue(spaceIndex!=-1 &&
+		       spaceIndex==info.name.lastIndexOf(' '));
+
+	String instname = info.name.substring(0, spaceIndex);
+	char[] args = info.name.substring(spaceIndex+1).toCharArray();
+
+	out.append(instname + "\t");
+
+	int minCharsPrinted = 0, maxCharsPrinted = 0;
+
+	for (int i=0; i<args.length; i++) {
+	    switch (args[i]) {
+	    case Mips.RS:
+		out.append("$" + rs);
+		minCharsPrinted += 2;
+		maxCharsPrinted += 3;
+
+		if (registers != null) {
+		    out.append("#0x" + Lib.toHexString(registers[rs]));
+		    minCharsPrinted += 11;
+		    maxCharsPrinted += 11;
+		}
+		break;
+	    case Mips.RT:
+		out.append("$" + rt);
+		minCharsPrinted += 2;
+		maxCharsPrinted += 3;
+
+		if (registers != null &&
+		    (i!=0 || !Lib.test(Mips.DST, info.flags)) &&
+		    !Lib.test(Mips.DELAYEDLOAD, info.flags)) {
+		    out.append("#0x" + Lib.toHexString(registers[rt]));
+		    minCharsPrinted += 11;
+		    maxCharsPrinted += 11;
+		}
+		break;
+	    case Mips.RETURNADDRESS:
+		if (rd == 31)
+		    continue;
+	    case Mips.RD:
+		out.append("$" + rd);
+		minCharsPrinted += 2;
+		maxCharsPrinted += 3;
+		break;
+	    case Mips.IMM:
+		out.append(info.imm);
+		minCharsPrinted += 1;
+		maxCharsPrinted += 6;
+		break;
+	    case Mips.SHIFTAMOUNT:
+		out.append(info.sh);
+		minCharsPrinted += 1;
+		maxCharsPrinted += 2;
+		break;
+	    case Mips.ADDR:
+		out.append(info.imm + "($" + rs);
+		minCharsPrinted += 4;
+		maxCharsPrinted += 5;
+
+		if (registers != null) {
+		    out.append("#0x" + Lib.toHexString(registers[rs]));
+		    minCharsPrinted += 11;
+		    maxCharsPrinted += 11;
+		}
+
+		out.append(")");
+		break;
+	    case Mips.TARGET:
+		out.append("0x" + Lib.toHexString(jtarget));
+		minCharsPrinted += 10;
+		maxCharsPrinted += 10;
+		break;
+	    default:
+		Lib.assertTrue(false);    
+	    }
+	    if (i+1 < args.length) {
+		out.append(", ");
+		minCharsPrinted += 2;
+		maxCharsPrinted += 2;
+	    }
+	    else {
+		// most separation possible is tsi, 5+1+1=7,
+		// thankfully less than 8 (makes this possible)
+		Lib.assertTrue(maxCharsPrinted-minCharsPrinted < 8);
+		// longest string is stj, which is 40-42 chars w/ -d M;
+		// go for 48
+		while ((minCharsPrinted%8) != 0) {
+		    out.append(" ");
+		    minCharsPrinted++;
+		    maxCharsPrinted++;
+		}
+		while (minCharsPrinted < 48) {
+		    out.append("\t");
+		    minCharsPrinted += 8;
+		}
+	    }
+	}
+
+	return out.toString();
+    }
+
+    /** Caused by a syscall instruction. */
+    public static final int exceptionSyscall = 0;
+    /** Caused by an access to an invalid virtual page. */
+    public static final int exceptionPageFault = 1;
+    /** Caused by an access to a virtual page not mapped by any TLB entry. */
+    public static final int exceptionTLBMiss = 2;
+    /** Caused by a write access to a read-only virtual page. */
+    public static final int exceptionReadOnly = 3;
+    /** Caused by an access to an invalid physical page. */
+    public static final int exceptionBusError = 4;
+    /** Caused by an access to a misaligned virtual address. */
+    public static final int exceptionAddressError = 5;
+    /** Caused by an overflow by a signed operation. */
+    public static final int exceptionOverflow = 6;
+    /** Caused by an attempt to execute an illegal instruction. */
+    public static final int exceptionIllegalInstruction = 7;
+
+    /** The names of the CPU exceptions. */
+    public static final String exceptionNames[] = {
+	"syscall      ",
+	"page fault   ",
+	"TLB miss     ",
+	"read-only    ",
+	"bus error    ",
+	"address error",
+	"overflow     ",
 	"illegal inst "
     };
     
@@ -526,6 +1327,13 @@ public final class Processor {
 
     /** Provides privilege to this processor. */
     private Privilege privilege;
+    /**
+     * Counts TLB misses and page faults. The machine's statistics, except on
+     * the other cores of a multiprocessor.
+     */
+    private Stats stats;
+    /** <tt>false</tt> for the other cores of a multiprocessor. */
+    private boolean bootProcessor = true;
     
     /** MIPS registers accessible to the kernel. */
     private int registers[] = new int[numUserRegisters];
@@ -541,12 +1349,32 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays = 4;
+    /** The address space whose TLB entries are used for translation. */
+    private int asid = 0;
+
+    /** Number of distinct address space identifiers. */
+    public static final int numASIDs = 64;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
 
+    /**
+     * The virtual pages whose translations are remembered, indexed by the low
+     * bits of the page number, or <tt>null</tt> if every reference is looked
+     * up. Unused slots hold -1.
+     */
+    private int[] recentPages;
+    /** The remembered pages that have also been written through. */
+    private int[] recentWritablePages;
+    /** The physical address of the start of each remembered page. */
+    private int[] recentFrames;
+    /** Number of remembered translations. Must be a power of two. */
+    private static final int numRecentPages = 16;
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
@@ -554,22 +1382,76 @@ public final class Processor {
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
-    private byte[] mainMemory;
+    private PhysicalMemory memory;
+
+    /**
+     * Predecoded instructions indexed by physical page, or <tt>null</tt> if
+     * the <tt>Processor.decodeCache</tt> key is not set and every instruction
+     * is decoded from scratch.
+     */
+    private DecodedInstruction[][] decodeCache;
+
+    /**
+     * <tt>true</tt> if pairs of cached instructions may be executed together.
+     * Set by the <tt>Processor.fuseInstructions</tt> key.
+     */
+    private boolean fuseInstructions;
+
+    /**
+     * Binds cached instructions to handlers that execute them, or
+     * <tt>null</tt> if the <tt>Processor.threadedCode</tt> key is not set.
+     */
+    private ThreadedCode threadedCode;
+
+    /**
+     * Compiles and runs hot basic blocks, or <tt>null</tt> if the
+     * <tt>Processor.translateBlocks</tt> key is not set or the JVM cannot
+     * define classes at run time.
+     */
+    private BlockTranslator translator;
+
+    /**
+     * Counts the instructions and exceptions of user programs, or
+     * <tt>null</tt> if the <tt>Processor.profile</tt> key is not set.
+     */
+    private Profiler profiler;
+
+    /** The most instructions to run before advancing the simulated time. */
+    private static final int maxHorizon = 0x10000;
+    /** The instructions completed since the simulated time last advanced. */
+    private int executed;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
+    /** The interpreter of a core of a multiprocessor. */
+    private Instruction interpreter = null;
+    /** The exception that ended a core's last window, if any. */
+    private MipsException trap = null;
+
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
 
+    /**
+     * <tt>true</tt> if each instruction executed is recorded in the trace
+     * buffer, rather than printed.
+     */
+    private boolean traceInstructions = false;
+
+    private static final int trcInstruction =
+	Trace.define(dbgDisassemble, "PC=0x%2$08X\t%9$s");
+    private static final int trcException =
+	Trace.define(dbgDisassemble, "exception: %5$s");
+    private static final char dbgInterrupt = 'i';
+
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
 	}
     }
 
-    private class MipsException extends Exception {
+    class MipsException extends Exception {
 	public MipsException(int cause) {
 	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
@@ -589,9 +1471,14 @@ public final class Processor {
 	    if (hasBadVAddr)
 		writeRegister(regBadVAddr, badVAddr);
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (traceInstructions)
+		Trace.record(trcException, exceptionNames[cause]);
+	    else if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
 		System.out.println("exception: " + exceptionNames[cause]);
 
+	    if (profiler != null)
+		profiler.exception(cause);
+
 	    finishLoad();
 
 	    Lib.assertTrue(exceptionHandler != null);
@@ -599,8 +1486,20 @@ public final class Processor {
 	    // autograder might not want kernel to know about this exception
 	    if (!Machine.autoGrader().exceptionHandler(privilege))
 		return;
-	    
+
+	    if (!Metrics.isEnabled()) {
+		exceptionHandler.run();
+		return;
+	    }
+
+	    long startTime = privilege.stats.totalTicks;
 	    exceptionHandler.run();
+	    long ticks = privilege.stats.totalTicks - startTime;
+
+	    if (cause == exceptionSyscall)
+		Metrics.syscall.record(ticks);
+	    else if (cause == exceptionPageFault || cause == exceptionTLBMiss)
+		Metrics.pageFault.record(ticks);
 	}
 
 	private boolean hasBadVAddr = false;
@@ -608,81 +1507,329 @@ public final class Processor {
     }	
 
     private class Instruction {
-	public void run() throws MipsException {
+	/**
+	 * Execute the next instruction, or the next two if they can be
+	 * executed together and <i>limit</i> allows it.
+	 *
+	 * @param	limit	the most instructions to execute.
+	 * @return	the number of instructions executed.
+	 * @exception	MipsException	if an instruction raised an exception.
+	 */
+	public int run(int limit) throws MipsException {
+	    int pc = registers[regPC];
+	    
 	    // hopefully this looks familiar to 152 students?
 	    fetch();
+
+	    if (fuseInstructions && limit >= 2 && runPair(pc))
+		return 2;
+
+	    if (threadedCode != null && decoded.handler != null)
+		return runThreaded(pc, limit);
+	    
 	    decode();
+
+	    // before execute(), so that syscalls and faults are counted too
+	    if (profiler != null)
+		profiler.retired(pc, operation, size);
+
 	    execute();
 	    writeBack();
-	}	
+
+	    return 1;
+	}
+
+	/**
+	 * Execute the instruction just fetched with its handler, and then
+	 * go on executing the instructions that follow it with theirs, for as
+	 * long as they are on the same page and have handlers. Like the second
+	 * instruction of a fused pair, each is fetched straight from the same
+	 * physical page, and counts as a hit on the translation the first
+	 * fetch made.
+	 *
+	 * @param	pc	the address of the instruction just fetched.
+	 * @param	limit	the most instructions to execute.
+	 * @return	the number of instructions executed.
+	 * @exception	MipsException	if an instruction raised an exception,
+	 *				after adding the instructions completed
+	 *				before it to <tt>executed</tt>.
+	 */
+	private int runThreaded(int pc, int limit) throws MipsException {
+	    int frame = paddr - offsetFromAddress(pc);
+	    int count = 0;
+
+	    // leave the start of each block to the translator, if there is one
+	    if (translator != null)
+		limit = 1;
+
+	    try {
+		decoded.handler.run();
+		count++;
+
+		while (count < limit) {
+		    int nextPC = registers[regPC];
+		    if (pageFromAddress(nextPC) != pageFromAddress(pc) ||
+			(nextPC & 0x3) != 0)
+			break;
+
+		    paddr = frame + offsetFromAddress(nextPC);
+		    decoded = predecoded(paddr, memory.load(paddr, 4));
+		    if (decoded.handler == null)
+			break;
+
+		    if (usingTLB)
+			stats.numTLBHitsByASID[asid]++;
+
+		    if (fuseInstructions && limit-count >= 2 &&
+			runPair(nextPC)) {
+			count += 2;
+			continue;
+		    }
+
+		    decoded.handler.run();
+		    count++;
+		}
+	    }
+	    catch (MipsException e) {
+		executed += count;
+		throw e;
+	    }
+
+	    return count;
+	}
+
+	/**
+	 * Execute the instruction just fetched and the one after it with a
+	 * single handler, if they form one of the pairs in
+	 * <tt>DecodedInstruction.fusible()</tt>. The instruction after it is
+	 * fetched straight from the same physical page, since a fused pair
+	 * never changes the translation.
+	 *
+	 * <p>
+	 * The handler has the same effect as executing the two instructions
+	 * one at a time: each reads its operands after the one before it has
+	 * written back, a delayed load is completed by the instruction after
+	 * it, and a branch is taken after its delay slot. Only a load can
+	 * raise an exception, and it does so before anything has changed, so
+	 * the pair is then simply restarted by the kernel like any other
+	 * faulting instruction.
+	 *
+	 * @param	pc	the address of the instruction just fetched.
+	 * @return	<tt>true</tt> if both instructions were executed.
+	 */
+	private boolean runPair(int pc) throws MipsException {
+	    DecodedInstruction first = decoded;
+	    if (first.fusion == DecodedInstruction.fuseNone ||
+		registers[regNextPC] != pc+4 ||
+		offsetFromAddress(pc) == pageSize-4)
+		return false;
+
+	    int nextValue = memory.load(paddr+4, 4);
+
+	    DecodedInstruction second = first.next;
+	    if (second == null) {
+		second = new DecodedInstruction();
+		first.next = second;
+	    }
+	    if (!second.valid || second.value != nextValue)
+		second.decode(nextValue);
+
+	    if (!first.fusible(second))
+		return false;
+
+	    if (first.fusion == DecodedInstruction.fuseLoad) {
+		int value = readMem(registers[first.rs] + first.imm,
+				    first.size);
+		
+		if (!Lib.test(Mips.UNSIGNED, first.flags))
+		    value = Lib.extend(value, 0, first.size*8);
+
+		delayedLoad(first.dstReg, value, 0xFFFFFFFF);
+	    }
+	    else {
+		int result = alu(first);
+		finishLoad();
+
+		if (first.dstReg != 0)
+		    registers[first.dstReg] = result;
+	    }
+
+	    // the second fetch would have hit the translation the first made
+	    if (usingTLB)
+		stats.numTLBHitsByASID[asid]++;
+
+	    registers[regPC] = pc+8;
+
+	    if (second.fusion == DecodedInstruction.fuseBranch) {
+		boolean taken = taken(second);
+		finishLoad();
+
+		if (taken)
+		    registers[regNextPC] = pc+8 + (second.imm<<2);
+		else
+		    registers[regNextPC] = pc+12;
+	    }
+	    else {
+		int result = alu(second);
+		finishLoad();
+
+		if (second.dstReg != 0)
+		    registers[second.dstReg] = result;
+
+		registers[regNextPC] = pc+12;
+	    }
+
+	    return true;
+	}
+
+	/**
+	 * Return the result of an ALU instruction that cannot overflow,
+	 * computed from the current registers as <tt>execute()</tt> would.
+	 */
+	private int alu(DecodedInstruction info) {
+	    long src1 = source1(info), src2 = source2(info);
+	    
+	    switch (info.operation) {
+	    case Mips.ADD:
+		return (int) (src1 + src2);
+	    case Mips.SUB:
+		return (int) (src1 - src2);
+	    case Mips.SLL:
+		return (int) (src2 << (src1&0x1F));
+	    case Mips.SRA:
+		return (int) (src2 >> (src1&0x1F));
+	    case Mips.SRL:
+		return (int) (src2 >>> (src1&0x1F));
+	    case Mips.SLT:
+		return (src1<src2) ? 1 : 0;
+	    case Mips.AND:
+		return (int) (src1 & src2);
+	    case Mips.OR:
+		return (int) (src1 | src2);
+	    case Mips.NOR:
+		return (int) ~(src1 | src2);
+	    case Mips.XOR:
+		return (int) (src1 ^ src2);
+	    case Mips.LUI:
+		return info.imm << 16;
+	    default:
+		Lib.assertNotReached();
+		return 0;
+	    }
+	}
+
+	/**
+	 * Return whether a conditional branch is taken, given the current
+	 * registers.
+	 */
+	private boolean taken(DecodedInstruction info) {
+	    long src1 = source1(info), src2 = source2(info);
+	    
+	    switch (info.operation) {
+	    case Mips.BEQ:
+		return (src1 == src2);
+	    case Mips.BNE:
+		return (src1 != src2);
+	    case Mips.BGEZ:
+		return (src1 >= 0);
+	    case Mips.BGTZ:
+		return (src1 > 0);
+	    case Mips.BLEZ:
+		return (src1 <= 0);
+	    case Mips.BLTZ:
+		return (src1 < 0);
+	    default:
+		Lib.assertNotReached();
+		return false;
+	    }
+	}
+
+	private long source1(DecodedInstruction info) {
+	    long src1;
+	    if (Lib.test(Mips.SRC1SH, info.flags))
+		src1 = info.sh;
+	    else
+		src1 = registers[info.rs];
+
+	    if (Lib.test(Mips.UNSIGNED, info.flags))
+		src1 &= 0xFFFFFFFFL;
+
+	    return src1;
+	}
+
+	private long source2(DecodedInstruction info) {
+	    long src2;
+	    if (Lib.test(Mips.SRC2IMM, info.flags))
+		src2 = info.imm;
+	    else
+		src2 = registers[info.rt];
+
+	    if (Lib.test(Mips.UNSIGNED, info.flags))
+		src2 &= 0xFFFFFFFFL;
+
+	    return src2;
+	}
 
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
 	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if (((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		 Lib.test(dbgFullDisassemble)) && !traceInstructions)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (pretranslated != -1) {
+		paddr = pretranslated;
+		pretranslated = -1;
+		value = memory.load(paddr, 4);
+		if (decodeCache != null)
+		    decoded = predecoded(paddr, value);
+	    }
+	    else if (decodeCache == null) {
+		value = readMem(registers[regPC], 4);
+	    }
+	    else {
+		paddr = translate(registers[regPC], 4, false);
+		value = memory.load(paddr, 4);
+		decoded = predecoded(paddr, value);
+	    }
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
+	    DecodedInstruction info;
+	    if (decodeCache == null) {
+		info = scratch;
+		info.decode(value);
 	    }
+	    else {
+		info = decoded;
+	    }
+
+	    op = info.op;
+	    rs = info.rs;
+	    rt = info.rt;
+	    rd = info.rd;
+	    sh = info.sh;
+	    func = info.func;
+	    target = info.target;
+	    imm = info.imm;
 
 	    operation = info.operation;
 	    name = info.name;
 	    format = info.format;
 	    flags = info.flags;
 
+	    size = info.size;
+	    dstReg = info.dstReg;
+
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -693,11 +1840,6 @@ public final class Processor {
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -718,126 +1860,26 @@ public final class Processor {
 		src2 &= 0xFFFFFFFFL;
 	    }	    
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		print();	    
+	    if (traceInstructions)
+		Trace.record(trcInstruction, value, registers[regPC], jtarget,
+			     0, null);
+	    else if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+		print(info);
 	}
 
-	private void print() {
+	private void print(DecodedInstruction info) {
 	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
 		!Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
-	    
-	    if (operation == Mips.INVALID) {
-		System.out.print("invalid: op=" + Lib.toHexString(op, 2) +
-				 " rs=" + Lib.toHexString(rs, 2) +
-				 " rt=" + Lib.toHexString(rt, 2) +
-				 " rd=" + Lib.toHexString(rd, 2) +
-				 " sh=" + Lib.toHexString(sh, 2) +
-				 " func=" + Lib.toHexString(func, 2) +
-				 "\n");
-		return;
-	    }
-
-	    int spaceIndex = name.indexOf(' ');
-	    Lib.assertTrue(spaceIndex!=-1 && spaceIndex==name.lastIndexOf(' '));
-
-	    String instname = name.substring(0, spaceIndex);
-	    char[] args = name.substring(spaceIndex+1).toCharArray();
 
-	    System.out.print(instname + "\t");
+	    System.out.print(disassemble(info, jtarget,
+					 Lib.test(dbgFullDisassemble) ?
+					 registers : null));
 
-	    int minCharsPrinted = 0, maxCharsPrinted = 0;
-
-	    for (int i=0; i<args.length; i++) {
-		switch (args[i]) {
-		case Mips.RS:
-		    System.out.print("$" + rs);
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 3;
-		    
-		    if (Lib.test(dbgFullDisassemble)) {
-			System.out.print("#0x" +
-					 Lib.toHexString(registers[rs]));
-			minCharsPrinted += 11;
-			maxCharsPrinted += 11;
-		    }
-		    break;
-		case Mips.RT:
-		    System.out.print("$" + rt);
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 3;
-
-		    if (Lib.test(dbgFullDisassemble) &&
-			(i!=0 || !test(Mips.DST)) &&
-			!test(Mips.DELAYEDLOAD)) {
-			System.out.print("#0x" +
-					 Lib.toHexString(registers[rt]));
-			minCharsPrinted += 11;
-			maxCharsPrinted += 11;
-		    }
-		    break;
-		case Mips.RETURNADDRESS:
-		    if (rd == 31)
-			continue;
-		case Mips.RD:
-		    System.out.print("$" + rd);
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 3;
-		    break;
-		case Mips.IMM:
-		    System.out.print(imm);
-		    minCharsPrinted += 1;
-		    maxCharsPrinted += 6;
-		    break;
-		case Mips.SHIFTAMOUNT:
-		    System.out.print(sh);
-		    minCharsPrinted += 1;
-		    maxCharsPrinted += 2;
-		    break;
-		case Mips.ADDR:
-		    System.out.print(imm + "($" + rs);
-		    minCharsPrinted += 4;
-		    maxCharsPrinted += 5;
-
-		    if (Lib.test(dbgFullDisassemble)) {
-			System.out.print("#0x" +
-					 Lib.toHexString(registers[rs]));
-			minCharsPrinted += 11;
-			maxCharsPrinted += 11;
-		    }
-		    
-		    System.out.print(")");
-		    break;
-		case Mips.TARGET:
-		    System.out.print("0x" + Lib.toHexString(jtarget));
-		    minCharsPrinted += 10;
-		    maxCharsPrinted += 10;
-		    break;
-		default:
-		    Lib.assertTrue(false);    
-		}
-		if (i+1 < args.length) {
-		    System.out.print(", ");
-		    minCharsPrinted += 2;
-		    maxCharsPrinted += 2;
-		}
-		else {
-		    // most separation possible is tsi, 5+1+1=7,
-		    // thankfully less than 8 (makes this possible)
-		    Lib.assertTrue(maxCharsPrinted-minCharsPrinted < 8);
-		    // longest string is stj, which is 40-42 chars w/ -d M;
-		    // go for 48
-		    while ((minCharsPrinted%8) != 0) {
-			System.out.print(" ");
-			minCharsPrinted++;
-			maxCharsPrinted++;
-		    }
-		    while (minCharsPrinted < 48) {
-			System.out.print("\t");
-			minCharsPrinted += 8;
-		    }
-		}
+	    if (operation == Mips.INVALID) {
+		System.out.print("\n");
+		return;
 	    }
 
 	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
@@ -857,20 +1899,10 @@ public final class Processor {
 		dst = src1 - src2;
 		break;
 	    case Mips.MULT:
-		dst = src1 * src2;
-		registers[regLo] = (int) Lib.extract(dst, 0, 32);
-		registers[regHi] = (int) Lib.extract(dst, 32, 32);
+		multiply(src1, src2);
 		break;
 	    case Mips.DIV:
-		try {
-		    registers[regLo] = (int) (src1 / src2);
-		    registers[regHi] = (int) (src1 % src2);
-		    if (registers[regLo]*src2 + registers[regHi] != src1)
-			throw new ArithmeticException();
-		}
-		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
-		}
+		divide(src1, src2);
 		break;
 
 	    case Mips.SLL:
@@ -1046,8 +2078,8 @@ public final class Processor {
 
 	    advancePC(nextPC);
 
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if (((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+		 Lib.test(dbgFullDisassemble)) && !traceInstructions)
 		System.out.print("\n");
 	}
     
@@ -1057,13 +2089,146 @@ public final class Processor {
 	String name;
 
 	int size;
-	int addr, nextPC, jtarget, dstReg;
+	int paddr, addr, nextPC, jtarget, dstReg;
 	long src1, src2, dst;
 	int mask;	
 	boolean branch;
+
+	/** Decoding scratch space used when there is no decode cache. */
+	private DecodedInstruction scratch = new DecodedInstruction();
+	/** The cached decoding of the instruction just fetched. */
+	private DecodedInstruction decoded;
+	/** The physical address of the next instruction, if already known. */
+	int pretranslated = -1;
+    }
+
+    /**
+     * The fields of an instruction that depend only on the instruction word,
+     * and not on the register file. These are what the decode cache saves.
+     */
+    static class DecodedInstruction {
+	void decode(int value) {
+	    this.value = value;
+	    valid = true;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm; branch targets are computed from the sign-extended
+	    // immediate, but no branch is unsigned
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm &= 0xFFFF;
+
+	    // classify the instruction for fusion with its neighbours
+	    if (operation >= Mips.ADD && operation <= Mips.LUI &&
+		operation != Mips.MULT && operation != Mips.DIV &&
+		Lib.test(Mips.DST, flags) && !Lib.test(Mips.OVERFLOW, flags))
+		fusion = fuseALU;
+	    else if (operation == Mips.LOAD)
+		fusion = fuseLoad;
+	    else if (operation >= Mips.BEQ && operation <= Mips.BGEZ &&
+		     !Lib.test(Mips.LINK, flags))
+		fusion = fuseBranch;
+	    else
+		fusion = fuseNone;
+	}
+
+	/**
+	 * Test whether this instruction and <i>second</i>, the instruction
+	 * after it, can be executed together. The fused pairs are an ALU
+	 * operation followed by another or by a conditional branch, and a load
+	 * followed by an ALU operation in its delay slot. None of these
+	 * operations can raise an exception except the load.
+	 *
+	 * @param	second	the instruction after this one.
+	 * @return	<tt>true</tt> if the two instructions can be fused.
+	 */
+	boolean fusible(DecodedInstruction second) {
+	    switch (fusion) {
+	    case fuseALU:
+		return second.fusion == fuseALU || second.fusion == fuseBranch;
+	    case fuseLoad:
+		return second.fusion == fuseALU;
+	    default:
+		return false;
+	    }
+	}
+
+	/** <tt>true</tt> once this entry holds a decoded instruction. */
+	boolean valid = false;
+	/** The instruction word this entry was decoded from. */
+	int value;
+
+	int op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+	int size, dstReg;
+
+	/** How this instruction can be fused with its neighbours. */
+	int fusion;
+	/**
+	 * The decoding of the instruction that last followed this one, for
+	 * fusion.
+	 */
+	DecodedInstruction next = null;
+	/**
+	 * The handler that executes this instruction, or <tt>null</tt> if it
+	 * is interpreted.
+	 */
+	ThreadedCode.Handler handler = null;
+
+	static final int
+	    fuseNone	= 0,
+	    fuseALU	= 1,
+	    fuseLoad	= 2,
+	    fuseBranch	= 3;
     }
 
-    private static class Mips {
+    static class Mips {
 	Mips() {
 	}
 
@@ -0,0 +1,316 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Counts what user programs do on a <tt>Processor</tt>: how many times each
+ * instruction address was executed, the mix of operations, the loads and
+ * stores by size, and the exceptions by cause. Enabled by setting the
+ * <tt>Processor.profile</tt> key in <tt>nachos.conf</tt>; the report is
+ * printed when the machine halts.
+ *
+ * <p>
+ * Addresses are named after the sections of the executables that were loaded
+ * (the COFF format keeps no function names), as in
+ * <tt>sort.coff:.text+0x1a4</tt>. Programs loaded at the same virtual
+ * addresses share counts, and an address is named after the last executable
+ * loaded that covers it.
+ *
+ * <p>
+ * If <tt>Processor.profileStacks</tt> names a file, the per-address counts
+ * are also written there as collapsed stacks (one
+ * <tt>executable;section;address count</tt> line per address), which
+ * flamegraph tools can read.
+ */
+final class Profiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine, needed to write the stacks file.
+     * @param	stacksFileName	the file to write collapsed stacks to, or
+     *				<tt>null</tt>.
+     */
+    Profiler(Privilege privilege, String stacksFileName) {
+	this.privilege = privilege;
+	this.stacksFileName = stacksFileName;
+    }
+
+    /**
+     * Called by the processor as it executes each instruction. Instructions
+     * that raise an exception, such as <tt>syscall</tt>, are counted too, and
+     * an instruction that is restarted after a fault is counted each time.
+     *
+     * @param	pc		the virtual address of the instruction.
+     * @param	operation	the instruction's <tt>Mips.operation</tt>.
+     * @param	size		the size of the memory reference, for loads
+     *				and stores.
+     */
+    void retired(int pc, int operation, int size) {
+	int vpn = Processor.pageFromAddress(pc);
+	if (vpn != lastPage) {
+	    lastCounts = pages.get(vpn);
+	    if (lastCounts == null) {
+		lastCounts = new long[Processor.pageSize / 4];
+		pages.put(vpn, lastCounts);
+	    }
+	    lastPage = vpn;
+	}
+
+	lastCounts[Processor.offsetFromAddress(pc) / 4]++;
+	operations[operation]++;
+
+	switch (operation) {
+	case Processor.Mips.LOAD:
+	case Processor.Mips.LWL:
+	case Processor.Mips.LWR:
+	    loads[size]++;
+	    break;
+	case Processor.Mips.STORE:
+	case Processor.Mips.SWL:
+	case Processor.Mips.SWR:
+	    stores[size]++;
+	    break;
+	}
+    }
+
+    /**
+     * Called by the processor whenever a user exception is handled.
+     *
+     * @param	cause	the cause of the exception.
+     */
+    void exception(int cause) {
+	exceptions[cause]++;
+    }
+
+    /**
+     * Called when an executable is loaded, so that its addresses can be
+     * named after its sections.
+     *
+     * @param	name		the name of the executable.
+     * @param	sections	the sections of the executable.
+     */
+    void loadedExecutable(String name, CoffSection[] sections) {
+	for (int s=0; s<sections.length; s++)
+	    executables.add(0, new Region(name, sections[s]));
+    }
+
+    /**
+     * Print the report, and write the collapsed stacks if a file was
+     * given.
+     */
+    void print() {
+	long total = 0;
+	for (int i=0; i<operations.length; i++)
+	    total += operations[i];
+
+	System.out.println("Profile: " + total + " instructions executed");
+
+	if (total == 0)
+	    return;
+
+	// operation mix, most frequent first
+	Integer[] order = new Integer[operations.length];
+	for (int i=0; i<order.length; i++)
+	    order[i] = Integer.valueOf(i);
+	Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    return Long.compare(operations[b.intValue()],
+					operations[a.intValue()]);
+		}
+	    });
+
+	System.out.print("Operations:");
+	for (int i=0; i<order.length; i++) {
+	    int operation = order[i].intValue();
+	    if (operations[operation] > 0)
+		System.out.print(" " + operationNames[operation] + " " +
+				 operations[operation]);
+	}
+	System.out.println();
+
+	System.out.println("Loads: bytes " + loads[1] + ", halfwords " +
+			   loads[2] + ", words " + loads[4]);
+	System.out.println("Stores: bytes " + stores[1] + ", halfwords " +
+			   stores[2] + ", words " + stores[4]);
+
+	System.out.print("Exceptions:");
+	for (int i=0; i<exceptions.length; i++)
+	    System.out.print(" " + Processor.exceptionNames[i].trim() + " " +
+			     exceptions[i]);
+	System.out.println();
+
+	// hottest instructions
+	final ArrayList<long[]> counts = new ArrayList<long[]>();
+	for (Iterator<Map.Entry<Integer,long[]>> i=pages.entrySet().iterator();
+	     i.hasNext(); ) {
+	    Map.Entry<Integer,long[]> entry = i.next();
+	    int vpn = entry.getKey().intValue();
+	    long[] page = entry.getValue();
+
+	    for (int j=0; j<page.length; j++) {
+		if (page[j] > 0) {
+		    int pc = Processor.makeAddress(vpn, j*4);
+		    counts.add(new long[] { pc & 0xFFFFFFFFL, page[j] });
+		}
+	    }
+	}
+	Collections.sort(counts, new Comparator<long[]>() {
+		public int compare(long[] a, long[] b) {
+		    if (a[1] != b[1])
+			return Long.compare(b[1], a[1]);
+		    else
+			return Long.compare(a[0], b[0]);
+		}
+	    });
+
+	System.out.println("Hottest instructions:");
+	for (int i=0; i<counts.size() && i<numHottest; i++) {
+	    long[] count = counts.get(i);
+	    System.out.println("  0x" + Lib.toHexString((int) count[0]) + " " +
+			       name((int) count[0]) + ": " + count[1] + " (" +
+			       (count[1]*1000/total)/10.0 + "%)");
+	}
+
+	if (stacksFileName != null)
+	    writeStacks(counts);
+    }
+
+    private void writeStacks(final ArrayList<long[]> counts) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			PrintWriter out =
+			    new PrintWriter(new FileWriter(stacksFileName));
+
+			for (int i=0; i<counts.size(); i++) {
+			    long[] count = counts.get(i);
+			    int pc = (int) count[0];
+
+			    Region region = find(pc);
+			    String stack = (region == null) ?
+				"[unknown]" :
+				region.executable + ";" + region.section;
+
+			    out.println(stack + ";0x" + Lib.toHexString(pc) +
+					" " + count[1]);
+			}
+
+			out.close();
+		    }
+		    catch (IOException e) {
+			System.out.println("Could not write profile to " +
+					   stacksFileName + ": " + e);
+		    }
+		}
+	    });
+    }
+
+    private String name(int pc) {
+	Region region = find(pc);
+	if (region == null)
+	    return "[unknown]";
+
+	return region.executable + ":" + region.section + "+0x" +
+	    Integer.toHexString(pc - region.start);
+    }
+
+    private Region find(int pc) {
+	int vpn = Processor.pageFromAddress(pc);
+
+	for (int i=0; i<executables.size(); i++) {
+	    Region region = executables.get(i);
+	    if (vpn >= region.firstVPN && vpn < region.firstVPN+region.numPages)
+		return region;
+	}
+
+	return null;
+    }
+
+    /** The virtual pages occupied by one section of an executable. */
+    private static class Region {
+	Region(String executable, CoffSection section) {
+	    this.executable = executable;
+	    this.section = section.getName();
+	    firstVPN = section.getFirstVPN();
+	    numPages = section.getLength();
+	    start = Processor.makeAddress(firstVPN, 0);
+	}
+
+	String executable, section;
+	int firstVPN, numPages, start;
+    }
+
+    private Privilege privilege;
+    private String stacksFileName;
+
+    /** Execution counts for each word of each virtual page executed. */
+    private HashMap<Integer,long[]> pages = new HashMap<Integer,long[]>();
+    private int lastPage = -1;
+    private long[] lastCounts = null;
+
+    private long[] operations = new long[Processor.Mips.MAX+1];
+    private long[] loads = new long[5];
+    private long[] stores = new long[5];
+    private long[] exceptions = new long[Processor.exceptionNames.length];
+
+    /** Loaded sections, the most recently loaded first. */
+    private ArrayList<Region> executables = new ArrayList<Region>();
+
+    /** Number of instructions listed in the report. */
+    private static final int numHottest = 20;
+
+    private static final String[] operationNames =
+	new String[Processor.Mips.MAX+1];
+
+    static {
+	Arrays.fill(operationNames, "?");
+
+	operationNames[Processor.Mips.INVALID] = "invalid";
+	operationNames[Processor.Mips.UNIMPL] = "unimpl";
+	operationNames[Processor.Mips.ADD] = "add";
+	operationNames[Processor.Mips.SUB] = "sub";
+	operationNames[Processor.Mips.MULT] = "mult";
+	operationNames[Processor.Mips.DIV] = "div";
+	operationNames[Processor.Mips.SLL] = "sll";
+	operationNames[Processor.Mips.SRA] = "sra";
+	operationNames[Processor.Mips.SRL] = "srl";
+	operationNames[Processor.Mips.SLT] = "slt";
+	operationNames[Processor.Mips.AND] = "and";
+	operationNames[Processor.Mips.OR] = "or";
+	operationNames[Processor.Mips.NOR] = "nor";
+	operationNames[Processor.Mips.XOR] = "xor";
+	operationNames[Processor.Mips.LUI] = "lui";
+	operationNames[Processor.Mips.MFLO] = "mflo";
+	operationNames[Processor.Mips.MFHI] = "mfhi";
+	operationNames[Processor.Mips.MTLO] = "mtlo";
+	operationNames[Processor.Mips.MTHI] = "mthi";
+	operationNames[Processor.Mips.JUMP] = "jump";
+	operationNames[Processor.Mips.BEQ] = "beq";
+	operationNames[Processor.Mips.BNE] = "bne";
+	operationNames[Processor.Mips.BLEZ] = "blez";
+	operationNames[Processor.Mips.BGTZ] = "bgtz";
+	operationNames[Processor.Mips.BLTZ] = "bltz";
+	operationNames[Processor.Mips.BGEZ] = "bgez";
+	operationNames[Processor.Mips.SYSCALL] = "syscall";
+	operationNames[Processor.Mips.LOAD] = "load";
+	operationNames[Processor.Mips.LWL] = "lwl";
+	operationNames[Processor.Mips.LWR] = "lwr";
+	operationNames[Processor.Mips.STORE] = "store";
+	operationNames[Processor.Mips.SWL] = "swl";
+	operationNames[Processor.Mips.SWR] = "swr";
+    }
+}
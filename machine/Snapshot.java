@@ -0,0 +1,314 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * A snapshot of the simulated machine, kept in a binary file so that a later
+ * run can resume from the same point instead of starting cold. A snapshot
+ * holds everything the machine simulates: the simulated time and other
+ * statistics, the random number generator, the pending interrupts, the
+ * processor's registers, delayed load and TLB, and the nonzero pages of
+ * physical memory. It also holds an opaque block of kernel state, since the
+ * kernel's own bookkeeping (such as its page tables) lives in Java objects
+ * that the machine knows nothing about.
+ *
+ * <p>
+ * The handlers of pending interrupts are code, not data, so only the type and
+ * time of each pending interrupt is saved. A snapshot can only be restored
+ * when the same types of interrupt are pending, and each restored interrupt
+ * calls the handler of the pending interrupt of the same type.
+ *
+ * <p>
+ * Restoring a snapshot takes two steps. <tt>open()</tt> maps the file, checks
+ * that it fits this machine, and returns the kernel state, which the kernel
+ * uses to rebuild its bookkeeping. <tt>restore()</tt> then restores the
+ * machine itself, so that nothing the kernel does in between can disturb the
+ * simulated time.
+ *
+ * @see	nachos.machine.Machine#saveSnapshot
+ * @see	nachos.machine.Machine#openSnapshot
+ * @see	nachos.machine.Machine#restoreSnapshot
+ */
+final class Snapshot {
+    /**
+     * Allocate a new snapshot, kept in the specified file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the name of the snapshot file.
+     */
+    Snapshot(Privilege privilege, String fileName) {
+	this.privilege = privilege;
+	this.fileName = fileName;
+    }
+
+    /**
+     * Save the current state of the machine to the snapshot file, replacing
+     * any snapshot already there.
+     *
+     * @param	kernelState	the kernel's own state, to be returned by
+     *				<tt>open()</tt>.
+     */
+    void save(final byte[] kernelState) {
+	Lib.debug(dbgSnapshot, "Saving snapshot to " + fileName);
+
+	try {
+	    privilege.doPrivileged(new PrivilegedExceptionAction<Object>() {
+		    public Object run() throws IOException {
+			DataOutputStream out =
+			    new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(fileName)));
+
+			try {
+			    write(out, kernelState);
+			}
+			finally {
+			    out.close();
+			}
+
+			return null;
+		    }
+		});
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.assertNotReached("could not save snapshot to " + fileName +
+				 ": " + e.getException());
+	}
+    }
+
+    /**
+     * Map the snapshot file and check that it can be restored to this
+     * machine.
+     *
+     * @return	the kernel state saved with the snapshot, or <tt>null</tt> if
+     *		there is no snapshot file or it does not fit this machine.
+     */
+    byte[] open() {
+	buffer = null;
+
+	try {
+	    buffer = (ByteBuffer) privilege.doPrivileged(
+		new PrivilegedExceptionAction<ByteBuffer>() {
+		    public ByteBuffer run() throws IOException {
+			if (!new File(fileName).isFile())
+			    return null;
+
+			RandomAccessFile file =
+			    new RandomAccessFile(fileName, "r");
+
+			try {
+			    FileChannel channel = file.getChannel();
+			    return channel.map(FileChannel.MapMode.READ_ONLY,
+					       0, channel.size());
+			}
+			finally {
+			    file.close();
+			}
+		    }
+		});
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.debug(dbgSnapshot, "Could not map snapshot " + fileName + ": " +
+		      e.getException());
+	    return null;
+	}
+
+	if (buffer == null) {
+	    Lib.debug(dbgSnapshot, "No snapshot at " + fileName);
+	    return null;
+	}
+
+	try {
+	    byte[] kernelState = readHeader();
+	    if (kernelState != null)
+		return kernelState;
+	}
+	catch (BufferUnderflowException e) {
+	    Lib.debug(dbgSnapshot, "Snapshot " + fileName + " is truncated");
+	}
+
+	buffer = null;
+	return null;
+    }
+
+    /**
+     * Restore the machine to the state saved in the snapshot last opened by
+     * <tt>open()</tt>.
+     */
+    void restore() {
+	Lib.assertTrue(buffer != null, "no snapshot has been opened");
+
+	Lib.debug(dbgSnapshot, "Restoring snapshot from " + fileName);
+
+	Stats stats = privilege.stats;
+
+	stats.totalTicks = buffer.getLong();
+	stats.kernelTicks = buffer.getLong();
+	stats.userTicks = buffer.getLong();
+	stats.idleTicks = buffer.getLong();
+	stats.numDiskReads = buffer.getInt();
+	stats.numDiskWrites = buffer.getInt();
+	stats.numConsoleReads = buffer.getInt();
+	stats.numConsoleWrites = buffer.getInt();
+	stats.numPageFaults = buffer.getInt();
+	stats.numTLBMisses = buffer.getInt();
+	for (int i=0; i<Processor.numASIDs; i++) {
+	    stats.numTLBHitsByASID[i] = buffer.getLong();
+	    stats.numTLBMissesByASID[i] = buffer.getInt();
+	    stats.numTLBEvictionsByASID[i] = buffer.getInt();
+	}
+	stats.numPacketsSent = buffer.getInt();
+	stats.numPacketsReceived = buffer.getInt();
+
+	// pending interrupts are scheduled at absolute times, so after the time
+	Machine.interrupt().restoreState(pendingTypes, pendingTimes);
+
+	Lib.setRandomState(buffer.getLong());
+
+	Machine.timer().restoreState(buffer);
+
+	if (Machine.processor() != null)
+	    Machine.processor().restoreState(buffer);
+
+	buffer = null;
+	pendingTypes = null;
+	pendingTimes = null;
+    }
+
+    private void write(DataOutputStream out, byte[] kernelState)
+	throws IOException {
+	Processor processor = Machine.processor();
+
+	out.writeInt(magic);
+	out.writeInt(version);
+	out.writeInt(Processor.pageSize);
+	if (processor == null) {
+	    out.writeInt(-1);
+	}
+	else {
+	    out.writeInt(processor.getNumPhysPages());
+	    out.writeBoolean(processor.hasTLB());
+	    if (processor.hasTLB()) {
+		out.writeInt(processor.getTLBSize());
+		out.writeInt(processor.getTLBWays());
+	    }
+	}
+
+	out.writeInt(kernelState.length);
+	out.write(kernelState);
+
+	Machine.interrupt().saveState(out);
+
+	Stats stats = privilege.stats;
+
+	out.writeLong(stats.totalTicks);
+	out.writeLong(stats.kernelTicks);
+	out.writeLong(stats.userTicks);
+	out.writeLong(stats.idleTicks);
+	out.writeInt(stats.numDiskReads);
+	out.writeInt(stats.numDiskWrites);
+	out.writeInt(stats.numConsoleReads);
+	out.writeInt(stats.numConsoleWrites);
+	out.writeInt(stats.numPageFaults);
+	out.writeInt(stats.numTLBMisses);
+	for (int i=0; i<Processor.numASIDs; i++) {
+	    out.writeLong(stats.numTLBHitsByASID[i]);
+	    out.writeInt(stats.numTLBMissesByASID[i]);
+	    out.writeInt(stats.numTLBEvictionsByASID[i]);
+	}
+	out.writeInt(stats.numPacketsSent);
+	out.writeInt(stats.numPacketsReceived);
+
+	out.writeLong(Lib.getRandomState());
+
+	Machine.timer().saveState(out);
+
+	if (processor != null)
+	    processor.saveState(out);
+    }
+
+    /**
+     * Read the parts of the snapshot that can be checked before anything is
+     * restored: the machine configuration, the kernel state, and the types of
+     * the pending interrupts.
+     */
+    private byte[] readHeader() {
+	Processor processor = Machine.processor();
+
+	if (buffer.getInt() != magic || buffer.getInt() != version ||
+	    buffer.getInt() != Processor.pageSize) {
+	    Lib.debug(dbgSnapshot, fileName + " is not a snapshot");
+	    return null;
+	}
+
+	boolean fits;
+	int numPhysPages = buffer.getInt();
+	if (processor == null) {
+	    fits = (numPhysPages == -1);
+	}
+	else {
+	    fits = (numPhysPages == processor.getNumPhysPages() &&
+		    (buffer.get() != 0) == processor.hasTLB());
+
+	    if (fits && processor.hasTLB()) {
+		fits = (buffer.getInt() == processor.getTLBSize() &&
+			buffer.getInt() == processor.getTLBWays());
+	    }
+	}
+
+	if (!fits) {
+	    Lib.debug(dbgSnapshot, "Snapshot " + fileName +
+		      " is of a different machine");
+	    return null;
+	}
+
+	byte[] kernelState = new byte[buffer.getInt()];
+	buffer.get(kernelState);
+
+	int numPending = buffer.getInt();
+	pendingTypes = new String[numPending];
+	pendingTimes = new long[numPending];
+	for (int i=0; i<numPending; i++) {
+	    byte[] type = new byte[buffer.getShort() & 0xFFFF];
+	    buffer.get(type);
+	    pendingTypes[i] = new String(type);
+	    pendingTimes[i] = buffer.getLong();
+	}
+
+	if (!Machine.interrupt().canRestore(pendingTypes)) {
+	    Lib.debug(dbgSnapshot, "Snapshot " + fileName +
+		      " has different interrupts pending");
+	    return null;
+	}
+
+	return kernelState;
+    }
+
+    private Privilege privilege;
+    private String fileName;
+
+    /** The mapped snapshot file, once it has been opened. */
+    private ByteBuffer buffer = null;
+    private String[] pendingTypes;
+    private long[] pendingTimes;
+
+    /** The first word of a snapshot file, "NSNP". */
+    private static final int magic = 0x4E534E50;
+    private static final int version = 1;
+
+    private static final char dbgSnapshot = 's';
+}
@@ -60,6 +60,25 @@ public class StandardConsole implements SerialConsole {
 	}
     }
 
+    /**
+     * Read the next byte from the object backing this console, or from the
+     * event log when a run is being replayed.
+     */
+    private int nextByte() {
+	EventLog log = Machine.eventLog();
+	if (log == null)
+	    return in();
+
+	if (log.isReplaying())
+	    return log.replayConsole();
+
+	int c = in();
+	if (c != -1)
+	    log.recordConsole(c);
+
+	return c;
+    }
+
     private int translateCharacter(int c) {
 	// translate win32 0x0D 0x0A sequence to single newline
 	if (c == 0x0A && prevCarriageReturn) {
@@ -89,7 +108,7 @@ public class StandardConsole implements SerialConsole {
     private void receiveInterrupt() {
 	Lib.assertTrue(incomingKey == -1);
 
-	incomingKey = translateCharacter(in());
+	incomingKey = translateCharacter(nextByte());
 	if (incomingKey == -1) {
 	    scheduleReceiveInterrupt();
 	}
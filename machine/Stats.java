@@ -18,15 +18,32 @@ public final class Stats {
      * Print out the statistics in this object.
      */
     public void print() {
-	System.out.println("Ticks: total " + totalTicks
-			   + ", kernel " + kernelTicks
-			   + ", user " + userTicks);
+	// idle time is only skipped if Interrupt.fastForwardIdle is set
+	if (idleTicks > 0 ||
+	    Config.getBoolean("Interrupt.fastForwardIdle", false))
+	    System.out.println("Ticks: total " + totalTicks
+			       + ", kernel " + kernelTicks
+			       + ", user " + userTicks
+			       + ", idle " + idleTicks);
+	else
+	    System.out.println("Ticks: total " + totalTicks
+			       + ", kernel " + kernelTicks
+			       + ", user " + userTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	for (int asid=0; asid<Processor.numASIDs; asid++) {
+	    // only address spaces that have used the TLB
+	    if (numTLBHitsByASID[asid] > 0 || numTLBMissesByASID[asid] > 0)
+		System.out.println("TLB ASID " + asid
+				   + ": hits " + numTLBHitsByASID[asid]
+				   + ", misses " + numTLBMissesByASID[asid]
+				   + ", evictions "
+				   + numTLBEvictionsByASID[asid]);
+	}
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
@@ -44,6 +61,11 @@ public final class Stats {
      * The total amount of simulated time that Nachos has spent in user mode.
      */
     public long userTicks = 0;
+    /**
+     * The total amount of simulated time that Nachos skipped over while no
+     * thread was ready to run.
+     */
+    public long idleTicks = 0;
 
     /** The total number of sectors Nachos has read from the simulated disk.*/
     public int numDiskReads = 0;
@@ -57,6 +79,15 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The number of TLB hits in each address space, indexed by ASID. */
+    public long[] numTLBHitsByASID = new long[Processor.numASIDs];
+    /** The number of TLB misses in each address space, indexed by ASID. */
+    public int[] numTLBMissesByASID = new int[Processor.numASIDs];
+    /**
+     * The number of TLB entries of each address space that were replaced by
+     * another translation, indexed by ASID.
+     */
+    public int[] numTLBEvictionsByASID = new int[Processor.numASIDs];
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
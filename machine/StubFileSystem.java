@@ -8,6 +8,7 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.security.PrivilegedAction;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -76,7 +77,7 @@ public class StubFileSystem implements FileSystem {
 	    throws IOException {
 	    super(StubFileSystem.this, name);
 
-	    final File f = new File(directory, name);
+	    f = new File(directory, name);
 
 	    if (openCount == maxOpenFiles)
 		throw new IOException();
@@ -146,6 +147,19 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	public long lastModified() {
+	    if (!open)
+		return -1;
+
+	    Long time = (Long) privilege.doPrivileged(
+		new PrivilegedAction<Long>() {
+		    public Long run() { return Long.valueOf(f.lastModified()); }
+		});
+
+	    // zero means the file no longer exists
+	    return time.longValue() != 0 ? time.longValue() : -1;
+	}
+
 	public void close() {
 	    if (open) {
 		open = false;
@@ -159,6 +173,7 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	private File f;
 	private RandomAccessFile file = null;
 	private boolean open = false;
     }
@@ -5,7 +5,14 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
+import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +21,39 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * The <tt>TCB.threads</tt> key selects the kind of JVM thread. With
+ * <tt>platform</tt>, the default, each TCB has an operating system thread of
+ * its own, and no more than <tt>maxThreads</tt> can exist at once. With
+ * <tt>virtual</tt>, which needs a JVM with virtual threads (Java 21 or
+ * later), TCBs are cheap enough that there is no limit on their number. Only
+ * the first TCB keeps the platform thread that started it, and the rest
+ * share a single carrier thread. Either
+ * way, only one TCB runs at a time: whichever holds the owner token, which
+ * each TCB hands directly to the next. A TCB waiting for the token parks, and
+ * on platform threads it can first spin for <tt>TCB.spinCount</tt> checks,
+ * which saves parking when the token comes back quickly.
+ *
+ * <p>
+ * Starting and stopping platform threads is slow, so when a TCB on a platform
+ * thread is destroyed, its thread waits to run the next TCB started instead
+ * of exiting. Up to <tt>TCB.poolSize</tt> threads (16 by default) wait at
+ * once.
+ *
+ * <p>
+ * <tt>carrier</tt> is an experimental kind of virtual thread: every TCB, the
+ * first one included, runs on the same single carrier thread, so a context
+ * switch just unmounts the stack of one TCB and mounts the next on the same
+ * operating system thread.
+ *
+ * <p>
+ * Either kind of virtual thread takes over the JVM's virtual thread
+ * scheduler, which must not have been used before Nachos starts. Only one
+ * TCB runs at a time, so the scheduler is limited to one carrier thread,
+ * which is started before the security manager is enabled. The scheduler
+ * would otherwise start carrier threads whenever it found the others busy,
+ * and that takes privilege the waking TCB does not hold.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +80,93 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	String threads = Config.getString("TCB.threads", "platform");
+	if (threads.equals("carrier") || threads.equals("virtual")) {
+	    oneCarrier = threads.equals("carrier");
+	    findVirtualThreads();
+	    startScheduler();
+	}
+	else {
+	    Lib.assertTrue(threads.equals("platform"),
+			   "TCB.threads must be platform, virtual or carrier");
+
+	    // spinning only makes sense with a processor for each thread
+	    spinCount = Config.getInteger("TCB.spinCount", 0);
+	    Lib.assertTrue(spinCount >= 0);
+
+	    poolSize = Config.getInteger("TCB.poolSize", 16);
+	    Lib.assertTrue(poolSize >= 0);
+	}
+
+	// in a batch the JVM outlives the machine, so its threads must end
+	// themselves when it exits
+	if (Batch.isRunning()) {
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() { stopAll(); }
+		});
+	}
+    }
+
+    /**
+     * Wake every TCB and idle worker, so that their Java threads see that
+     * the machine is exiting and end.
+     */
+    private static void stopAll() {
+	exiting = true;
+
+	TCB[] tcbs = runningThreads.toArray(new TCB[0]);
+	for (int i=0; i<tcbs.length; i++) {
+	    if (tcbs[i].javaThread != null)
+		LockSupport.unpark(tcbs[i].javaThread);
+	}
+
+	for (Iterator<Worker> i=idleWorkers.iterator(); i.hasNext(); )
+	    LockSupport.unpark(i.next().thread);
+    }
+
+    /**
+     * Limit the JDK's virtual thread scheduler to one carrier thread, and
+     * start it by running one virtual thread to completion. The scheduler,
+     * the thread group of its carrier threads, and each carrier thread all
+     * need permissions that are only granted with privilege, so this is done
+     * before the security manager is enabled.
+     */
+    private static void startScheduler() {
+	// must be set before the first virtual thread is created
+	System.setProperty("jdk.virtualThreadScheduler.parallelism", "1");
+	System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", "1");
+
+	Thread thread = newJavaThread(new Runnable() {
+		public void run() { }
+	    });
+	thread.start();
+
+	while (true) {
+	    try {
+		thread.join();
+		break;
+	    }
+	    catch (InterruptedException e) {
+	    }
+	}
+    }
+
+    /**
+     * Look up the JDK's virtual thread builder, which cannot be named
+     * directly when compiling for older JVMs.
+     */
+    private static void findVirtualThreads() {
+	try {
+	    virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    newVirtualThread = Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("TCB.threads = " +
+				 (oneCarrier ? "carrier" : "virtual") +
+				 " needs a JVM with virtual threads");
+	}
     }
     
     /**
@@ -64,9 +191,11 @@ public final class TCB {
 	Lib.assertTrue(javaThread == null && !done);
 
 	/* Make sure there aren't too many running TCBs already. This
-	 * limitation exists in an effort to prevent wild thread usage.
+	 * limitation exists in an effort to prevent wild thread usage, and
+	 * only matters for platform threads.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(virtualThreadBuilder != null ||
+		       runningThreads.size() < maxThreads);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,34 +215,84 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we have to find a Java thread to
+	     * run it: one left over from a destroyed TCB if there is one,
+	     * otherwise a new one. Creating Java threads is a privileged
+	     * operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    final Worker worker = idleWorkers.poll();
+	    if (worker != null) {
+		numIdleWorkers.decrementAndGet();
+		javaThread = worker.thread;
+	    }
+	    else {
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    Worker worker = new Worker(TCB.this);
+			    javaThread = newJavaThread(worker);
+			    worker.thread = javaThread;
+			}
+		    });
+	    }
 
 	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	     * blocking in yield(). We do this by temporarily taking the owner
+	     * token from the current TCB, starting the new Java thread, and
+	     * waiting for it to hand the token back from threadroot(). Once
+	     * the new TCB does, it's safe to context switch to the new TCB.
 	     */
-	    currentTCB.running = false;
+	    owner.set(null);
 	    
-	    this.javaThread.start();
+	    /* Starting a virtual thread from the first TCB's platform thread
+	     * can start a carrier thread for it (see interrupt()), which is
+	     * also privileged.
+	     */
+	    if (worker != null)
+		worker.resume(this);
+	    else
+		privilege.doPrivileged(new Runnable() {
+			public void run() { javaThread.start(); }
+		    });
 	    currentTCB.waitForInterrupt();
 	}
+	else if (oneCarrier) {
+	    /* This is the first TCB, but it has to run on the carrier like
+	     * the rest, so it gets a virtual thread of its own. Virtual
+	     * threads don't keep the JVM running, so the current Java thread
+	     * has to, until the machine exits. The first TCB can finish while
+	     * others still run, so waiting for it alone is not enough.
+	     */
+	    final CountDownLatch exited = new CountDownLatch(1);
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() { exited.countDown(); }
+		});
+
+	    final Thread thread = newJavaThread(new Runnable() {
+		    public void run() { threadroot(); }
+		});
+	    javaThread = thread;
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { thread.start(); }
+		});
+
+	    while (true) {
+		try {
+		    exited.await();
+		    break;
+		}
+		catch (InterruptedException e) {
+		}
+	    }
+	}
 	else {
 	    /* This is the first TCB, so we don't need to make a new Java
 	     * thread to run it; we just steal the current Java thread.
 	     */
 	    javaThread = Thread.currentThread();
 
+	    if (virtualThreadBuilder != null)
+		launcher = javaThread;
+
 	    /* All we have to do now is invoke threadroot() directly. */
 	    threadroot();
 	}
@@ -149,14 +328,15 @@ public final class TCB {
 	/* There are some synchronization concerns here. As soon as we wake up
 	 * the next thread, we cannot assume anything about static variables,
 	 * or about any TCB's state. Therefore, before waking up the next
-	 * thread, we must latch the value of currentTCB, and set its running
-	 * flag to false (so that, in case we get interrupted before we call
-	 * yield(), the interrupt will set the running flag and yield() won't
-	 * block).
+	 * thread, we must latch the value of currentTCB. Handing the owner
+	 * token to the next thread takes it from this one, so if the token
+	 * comes back before we call yield(), yield() won't block.
 	 */
 
 	TCB previous = currentTCB;
-	previous.running = false;
+
+	if (Metrics.isEnabled())
+	    switchTime = System.nanoTime();
 	
 	this.interrupt();
 	previous.yield();
@@ -181,7 +361,6 @@ public final class TCB {
 	toBeDestroyed = null;
 
 	this.done = true;
-	currentTCB.running = false;
 
 	this.interrupt();
 	currentTCB.waitForInterrupt();
@@ -207,16 +386,83 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Create an unstarted JVM thread of the kind selected by
+     * <tt>TCB.threads</tt>.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreadBuilder == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) newVirtualThread.invoke(virtualThreadBuilder, target);
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("cannot create a virtual thread: " + e);
+	    return null;
+	}
+    }
+
+    /**
+     * Runs TCBs on a Java thread, one after another. After each TCB is
+     * destroyed, the thread waits in <tt>idleWorkers</tt> for
+     * <tt>start()</tt> to give it the next one, unless the pool is full.
+     */
+    private static class Worker implements Runnable {
+	Worker(TCB tcb) {
+	    this.tcb = tcb;
+	}
+
+	public void run() {
+	    while (tcb != null) {
+		tcb.threadroot();
+
+		// only reuse a thread that left its TCB in the usual way
+		if (!tcb.done)
+		    break;
+		tcb = nextTCB();
+	    }
+	}
+
+	private TCB nextTCB() {
+	    if (numIdleWorkers.incrementAndGet() > poolSize) {
+		numIdleWorkers.decrementAndGet();
+		return null;
+	    }
+
+	    idleWorkers.add(this);
+
+	    TCB next;
+	    while ((next = this.next) == null) {
+		if (exiting)
+		    return null;
+		LockSupport.park(this);
+	    }
+
+	    this.next = null;
+	    return next;
+	}
+
+	void resume(TCB tcb) {
+	    next = tcb;
+	    LockSupport.unpark(thread);
+	}
+
+	Thread thread;
+	private TCB tcb;
+	private volatile TCB next = null;
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
 
 	if (!isFirstTCB) {
 	    /* start() is waiting for us to wake it up, signalling that it's OK
-	     * to context switch to us. We leave the running flag false so that
-	     * we'll still run if a context switch happens before we go to
-	     * sleep. All we have to do is wake up the current TCB and then
-	     * wait to get woken up by contextSwitch() or destroy().
+	     * to context switch to us. If a context switch hands us the token
+	     * before we go to sleep, we'll still run. All we have to do is
+	     * wake up the current TCB and then wait to get woken up by
+	     * contextSwitch() or destroy().
 	     */
 	    
 	    currentTCB.interrupt();
@@ -228,7 +474,7 @@ public final class TCB {
 	     */
 	    
 	    currentTCB = this;
-	    running = true;
+	    owner.set(this);
 	}
 
 	try {
@@ -238,6 +484,10 @@ public final class TCB {
 	    Lib.assertNotReached();
 	}
 	catch (ThreadDeath e) {
+	    // stopAll() woke us because the machine is exiting
+	    if (exiting)
+		return;
+	    
 	    // make sure this TCB is being destroyed properly
 	    if (!done) {
 		System.out.print("\nTCB terminated improperly!\n");
@@ -276,33 +526,54 @@ public final class TCB {
 	    throw new ThreadDeath();
 	}
 
+	if (Metrics.isEnabled())
+	    Metrics.contextSwitch.record(System.nanoTime() - switchTime);
+
 	currentTCB = this;
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * Waits until this TCB holds the owner token, spinning for up to
+     * <tt>spinCount</tt> checks and then parking. <tt>waitForInterrupt()</tt>
+     * is used whenever a TCB needs to go to wait for its turn to run. This
+     * includes the ping-pong process of starting and destroying TCBs, as well
+     * as in context switching from this TCB to another. We don't rely on
+     * <tt>currentTCB</tt>, since it is updated by <tt>contextSwitch()</tt>
+     * before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	for (int i=0; i<spinCount && owner.get() != this; i++)
+	    ;
+
+	// park can return for no reason, so check again each time
+	while (owner.get() != this) {
+	    if (exiting)
+		throw new ThreadDeath();
+	    LockSupport.park(this);
 	}
     }
 
     /**
-     * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * Wake up this TCB by handing it the owner token and unparking its
+     * thread. Used in the ping-pong process of starting and destroying TCBs,
+     * as well as in context switching to this TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	/* The carrier thread ends once the scheduler has been idle for a
+	 * while, which only happens while the first TCB runs on its platform
+	 * thread. Waking a virtual thread from there then starts a new
+	 * carrier, so it is woken once with privilege first. It doesn't hold
+	 * the token yet, so it only parks again, and can't use privilege
+	 * while this thread holds it.
+	 */
+	if (Thread.currentThread() == launcher && javaThread != launcher) {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { LockSupport.unpark(javaThread); }
+		});
+	}
+	
+	owner.set(this);
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -328,10 +599,55 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, when they run on platform threads.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The JDK's <tt>Thread.Builder.OfVirtual</tt>, or <tt>null</tt> if TCBs
+     * run on platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    /** <tt>Thread.Builder.unstarted(Runnable)</tt>. */
+    private static Method newVirtualThread = null;
+    /** <tt>true</tt> if the first TCB runs on the carrier thread too. */
+    private static boolean oneCarrier = false;
+    /**
+     * The platform thread of the first TCB, when the other TCBs run on
+     * virtual threads, or <tt>null</tt>.
+     */
+    private static Thread launcher = null;
+
+    /**
+     * The TCB whose Java thread ought to be running. This is an entirely
+     * different condition from membership in <tt>runningThreads</tt>, which
+     * contains all TCB objects that have started and have not terminated.
+     * When starting or destroying a TCB, the owner is temporarily a TCB
+     * other than the current TCB, or no TCB at all.
+     */
+    private static final AtomicReference<TCB> owner =
+	new AtomicReference<TCB>();
+
+    /**
+     * How many times a TCB on a platform thread checks for the owner token
+     * before parking.
+     */
+    private static int spinCount = 0;
+
+    /**
+     * The most Java threads that can wait in <tt>idleWorkers</tt>. Virtual
+     * threads are cheap to start, so they are never kept.
+     */
+    private static int poolSize = 0;
+
+    /** Java threads waiting for a TCB to run. */
+    private static final ConcurrentLinkedQueue<Worker> idleWorkers =
+	new ConcurrentLinkedQueue<Worker>();
+    private static final AtomicInteger numIdleWorkers = new AtomicInteger();
+
+    /** Set by <tt>stopAll()</tt> when a machine in a batch exits. */
+    private static volatile boolean exiting = false;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -360,6 +676,13 @@ public final class TCB {
      * the first TCB is created, this vector is basically never empty.
      */
     private static Vector<TCB> runningThreads = new Vector<TCB>();
+
+    /**
+     * The real time at which the last context switch began, if metrics are
+     * being collected. Written before waking the next TCB, so that TCB sees
+     * it.
+     */
+    private static long switchTime;
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -379,16 +702,6 @@ public final class TCB {
      */
     private Thread javaThread = null;
 
-    /**
-     * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-     * be running. This is an entirely different condition from membership in
-     * <tt>runningThreads</tt>, which contains all TCB objects that have
-     * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
-     * when the associated Java thread ought to run ASAP. When starting or
-     * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
-     */
-    private boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +713,6 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -0,0 +1,714 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * Binds each instruction in a <tt>Processor</tt>'s decode cache to a handler
+ * object that executes it, so that the interpreter dispatches on the handler
+ * instead of switching on the operation and the instruction's flags.
+ *
+ * <p>
+ * A handler is made when an instruction is decoded, with its register
+ * numbers, immediate, and shift amount already in final fields, and with the
+ * form of the instruction (register or immediate operand, signed or unsigned,
+ * whether it can overflow, whether it writes <tt>$0</tt>) chosen by its
+ * class. It does the same work as <tt>execute()</tt> and <tt>writeBack()</tt>,
+ * in the same order: it reads its operands, raises any exception before it
+ * changes anything, completes the delayed load in progress, and then writes
+ * its result and advances the PC. Except for multiplication and division, it
+ * computes with 32-bit <tt>int</tt>s rather than the interpreter's
+ * sign-extended <tt>long</tt>s, which give the same 32-bit results.
+ *
+ * <p>
+ * Syscalls, unaligned loads and stores, branches that link, and invalid or
+ * unimplemented instructions get no handler, and are left to the
+ * interpreter, as are all instructions when there is no decode cache.
+ */
+final class ThreadedCode {
+    /**
+     * Allocate a new binder of handlers for the specified processor.
+     *
+     * @param	processor	the processor whose instructions will be bound.
+     * @param	registers	the processor's registers.
+     */
+    ThreadedCode(Processor processor, int[] registers) {
+	this.processor = processor;
+	this.registers = registers;
+    }
+
+    /**
+     * Return a handler that executes the specified instruction.
+     *
+     * @param	inst	the decoded instruction.
+     * @return	the handler, or <tt>null</tt> if the instruction must be
+     *		interpreted.
+     */
+    Handler bind(Processor.DecodedInstruction inst) {
+	int flags = inst.flags;
+	boolean unsigned = Lib.test(Processor.Mips.UNSIGNED, flags);
+	boolean immediate = Lib.test(Processor.Mips.SRC2IMM, flags);
+	boolean overflow = Lib.test(Processor.Mips.OVERFLOW, flags);
+	int rs = inst.rs, rt = inst.rt, dst = inst.dstReg, imm = inst.imm;
+
+	// an ALU operation on $0 only completes the delayed load, unless it
+	// can overflow
+	if (inst.operation >= Processor.Mips.ADD &&
+	    inst.operation <= Processor.Mips.LUI &&
+	    inst.operation != Processor.Mips.MULT &&
+	    inst.operation != Processor.Mips.DIV && dst == 0)
+	    return overflow ? null : new Nop();
+
+	switch (inst.operation) {
+	case Processor.Mips.ADD:
+	    if (overflow)
+		return immediate ? (Handler) new AddImmediateOverflow(dst, rs, imm)
+		    : new AddOverflow(dst, rs, rt);
+	    return immediate ? (Handler) new AddImmediate(dst, rs, imm)
+		: new Add(dst, rs, rt);
+	case Processor.Mips.SUB:
+	    return overflow ? (Handler) new SubOverflow(dst, rs, rt)
+		: new Sub(dst, rs, rt);
+	case Processor.Mips.MULT:
+	    return new Multiply(rs, rt, unsigned);
+	case Processor.Mips.DIV:
+	    return new Divide(rs, rt, unsigned);
+
+	case Processor.Mips.SLL:
+	    if (Lib.test(Processor.Mips.SRC1SH, flags))
+		return new ShiftLeft(dst, rt, inst.sh);
+	    return new ShiftLeftVariable(dst, rt, rs);
+	case Processor.Mips.SRA:
+	case Processor.Mips.SRL:
+	    // the interpreter shifts the sign-extended 64-bit operand, so its
+	    // srl keeps the sign bit just like sra
+	    if (Lib.test(Processor.Mips.SRC1SH, flags))
+		return new ShiftRight(dst, rt, inst.sh);
+	    return new ShiftRightVariable(dst, rt, rs);
+
+	case Processor.Mips.SLT:
+	    if (immediate)
+		return unsigned ? (Handler) new SetLessThanImmediateUnsigned(dst, rs, imm)
+		    : new SetLessThanImmediate(dst, rs, imm);
+	    return unsigned ? (Handler) new SetLessThanUnsigned(dst, rs, rt)
+		: new SetLessThan(dst, rs, rt);
+
+	case Processor.Mips.AND:
+	    return immediate ? (Handler) new AndImmediate(dst, rs, imm)
+		: new And(dst, rs, rt);
+	case Processor.Mips.OR:
+	    return immediate ? (Handler) new OrImmediate(dst, rs, imm)
+		: new Or(dst, rs, rt);
+	case Processor.Mips.XOR:
+	    return immediate ? (Handler) new XorImmediate(dst, rs, imm)
+		: new Xor(dst, rs, rt);
+	case Processor.Mips.NOR:
+	    return new Nor(dst, rs, rt);
+	case Processor.Mips.LUI:
+	    return new LoadUpperImmediate(dst, imm << 16);
+
+	case Processor.Mips.MFLO:
+	    return dst == 0 ? (Handler) new Nop()
+		: new MoveFrom(dst, Processor.regLo);
+	case Processor.Mips.MFHI:
+	    return dst == 0 ? (Handler) new Nop()
+		: new MoveFrom(dst, Processor.regHi);
+	case Processor.Mips.MTLO:
+	    return new MoveTo(Processor.regLo, rs);
+	case Processor.Mips.MTHI:
+	    return new MoveTo(Processor.regHi, rs);
+
+	case Processor.Mips.JUMP:
+	    if (inst.format == Processor.Mips.JFMT) {
+		if (Lib.test(Processor.Mips.LINK, flags))
+		    return new JumpAndLink(inst.target << 2);
+		return new Jump(inst.target << 2);
+	    }
+	    if (Lib.test(Processor.Mips.LINK, flags) && dst != 0)
+		return new JumpAndLinkRegister(dst, rs);
+	    return new JumpRegister(rs);
+
+	case Processor.Mips.BEQ:
+	case Processor.Mips.BNE:
+	case Processor.Mips.BLEZ:
+	case Processor.Mips.BGTZ:
+	case Processor.Mips.BLTZ:
+	case Processor.Mips.BGEZ:
+	    if (Lib.test(Processor.Mips.LINK, flags))
+		return null;
+	    return new Branch(inst.operation, rs, rt, imm << 2);
+
+	case Processor.Mips.LOAD:
+	    if (inst.size == 4)
+		return new LoadWord(dst, rs, imm);
+	    return new Load(dst, rs, imm, inst.size, unsigned);
+	case Processor.Mips.STORE:
+	    return new Store(rt, rs, imm, inst.size);
+
+	default:
+	    return null;
+	}
+    }
+
+    /** Move on to the instruction after the one just executed. */
+    private void next() {
+	int nextPC = registers[Processor.regNextPC];
+	registers[Processor.regPC] = nextPC;
+	registers[Processor.regNextPC] = nextPC+4;
+    }
+
+    /** Branch to <i>target</i> after the delay slot. */
+    private void jump(int target) {
+	registers[Processor.regPC] = registers[Processor.regNextPC];
+	registers[Processor.regNextPC] = target;
+    }
+
+    private Processor.MipsException overflow() {
+	return processor.new MipsException(Processor.exceptionOverflow);
+    }
+
+    /** Executes one decoded instruction. */
+    abstract class Handler {
+	/**
+	 * Execute the instruction at the current PC.
+	 *
+	 * @exception	Processor.MipsException	if the instruction raised an
+	 *					exception, before changing
+	 *					anything.
+	 */
+	abstract void run() throws Processor.MipsException;
+    }
+
+    /** An instruction with no effect but completing the delayed load. */
+    private class Nop extends Handler {
+	void run() {
+	    processor.finishLoad();
+	    next();
+	}
+    }
+
+    /** An operation on two registers that writes a third. */
+    private abstract class RegisterHandler extends Handler {
+	RegisterHandler(int dst, int rs, int rt) {
+	    this.dst = dst;
+	    this.rs = rs;
+	    this.rt = rt;
+	}
+
+	final int dst, rs, rt;
+    }
+
+    /** An operation on a register and an immediate that writes a register. */
+    private abstract class ImmediateHandler extends Handler {
+	ImmediateHandler(int dst, int rs, int imm) {
+	    this.dst = dst;
+	    this.rs = rs;
+	    this.imm = imm;
+	}
+
+	final int dst, rs, imm;
+    }
+
+    private class Add extends RegisterHandler {
+	Add(int dst, int rs, int rt) { super(dst, rs, rt); }
+
+	void run() {
+	    int result = registers[rs] + registers[rt];
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class AddOverflow extends RegisterHandler {
+	AddOverflow(int dst, int rs, int rt) { super(dst, rs, rt); }
+
+	void run() throws Processor.MipsException {
+	    int src1 = registers[rs], src2 = registers[rt];
+	    int result = src1 + src2;
+	    // overflow if both operands have a different sign to the result
+	    if (((src1 ^ result) & (src2 ^ result)) < 0)
+		throw overflow();
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class AddImmediate extends ImmediateHandler {
+	AddImmediate(int dst, int rs, int imm) { super(dst, rs, imm); }
+
+	void run() {
+	    int result = registers[rs] + imm;
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class AddImmediateOverflow extends ImmediateHandler {
+	AddImmediateOverflow(int dst, int rs, int imm) { super(dst, rs, imm); }
+
+	void run() throws Processor.MipsException {
+	    int src1 = registers[rs];
+	    int result = src1 + imm;
+	    if (((src1 ^ result) & (imm ^ result)) < 0)
+		throw overflow();
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class Sub extends RegisterHandler {
+	Sub(int dst, int rs, int rt) { super(dst, rs, rt); }
+
+	void run() {
+	    int result = registers[rs] - registers[rt];
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class SubOverflow extends RegisterHandler {
+	SubOverflow(int dst, int rs, int rt) { super(dst, rs, rt); }
+
+	void run() throws Processor.MipsException {
+	    int src1 = registers[rs], src2 = registers[rt];
+	    int result = src1 - src2;
+	    // overflow if the operands differ in sign, and the result has the
+	    // sign of the second
+	    if (((src1 ^ src2) & (src1 ^ result)) < 0)
+		throw overflow();
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class Multiply extends Handler {
+	Multiply(int rs, int rt, boolean unsigned) {
+	    this.rs = rs;
+	    this.rt = rt;
+	    this.unsigned = unsigned;
+	}
+
+	void run() {
+	    long product;
+	    if (unsigned)
+		product = (registers[rs] & 0xFFFFFFFFL) *
+		    (registers[rt] & 0xFFFFFFFFL);
+	    else
+		product = (long) registers[rs] * registers[rt];
+	    registers[Processor.regLo] = (int) product;
+	    registers[Processor.regHi] = (int) (product >>> 32);
+	    processor.finishLoad();
+	    next();
+	}
+
+	final int rs, rt;
+	final boolean unsigned;
+    }
+
+    private class Divide extends Handler {
+	Divide(int rs, int rt, boolean unsigned) {
+	    this.rs = rs;
+	    this.rt = rt;
+	    this.unsigned = unsigned;
+	}
+
+	void run() throws Processor.MipsException {
+	    if (unsigned)
+		processor.divide(registers[rs] & 0xFFFFFFFFL,
+				 registers[rt] & 0xFFFFFFFFL);
+	    else
+		processor.divide(registers[rs], registers[rt]);
+	    processor.finishLoad();
+	    next();
+	}
+
+	final int rs, rt;
+	final boolean unsigned;
+    }
+
+    private class ShiftLeft extends Handler {
+	ShiftLeft(int dst, int rt, int sh) {
+	    this.dst = dst;
+	    this.rt = rt;
+	    this.sh = sh;
+	}
+
+	void run() {
+	    int result = registers[rt] << sh;
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+
+	final int dst, rt, sh;
+    }
+
+    private class ShiftLeftVariable extends RegisterHandler {
+	ShiftLeftVariable(int dst, int rt, int rs) { super(dst, rs, rt); }
+
+	void run() {
+	    int result = registers[rt] << (registers[rs] & 0x1F);
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class ShiftRight extends Handler {
+	ShiftRight(int dst, int rt, int sh) {
+	    this.dst = dst;
+	    this.rt = rt;
+	    this.sh = sh;
+	}
+
+	void run() {
+	    int result = registers[rt] >> sh;
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+
+	final int dst, rt, sh;
+    }
+
+    private class ShiftRightVariable extends RegisterHandler {
+	ShiftRightVariable(int dst, int rt, int rs) { super(dst, rs, rt); }
+
+	void run() {
+	    int result = registers[rt] >> (registers[rs] & 0x1F);
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class SetLessThan extends RegisterHandler {
+	SetLessThan(int dst, int rs, int rt) { super(dst, rs, rt); }
+
+	void run() {
+	    int result = (registers[rs] < registers[rt]) ? 1 : 0;
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class SetLessThanUnsigned extends RegisterHandler {
+	SetLessThanUnsigned(int dst, int rs, int rt) { super(dst, rs, rt); }
+
+	void run() {
+	    // flipping the sign bits makes a signed compare an unsigned one
+	    int result = ((registers[rs] ^ 0x80000000) <
+			  (registers[rt] ^ 0x80000000)) ? 1 : 0;
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class SetLessThanImmediate extends ImmediateHandler {
+	SetLessThanImmediate(int dst, int rs, int imm) { super(dst, rs, imm); }
+
+	void run() {
+	    int result = (registers[rs] < imm) ? 1 : 0;
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class SetLessThanImmediateUnsigned extends ImmediateHandler {
+	SetLessThanImmediateUnsigned(int dst, int rs, int imm) {
+	    super(dst, rs, imm ^ 0x80000000);
+	}
+
+	void run() {
+	    int result = ((registers[rs] ^ 0x80000000) < imm) ? 1 : 0;
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class And extends RegisterHandler {
+	And(int dst, int rs, int rt) { super(dst, rs, rt); }
+
+	void run() {
+	    int result = registers[rs] & registers[rt];
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class AndImmediate extends ImmediateHandler {
+	AndImmediate(int dst, int rs, int imm) { super(dst, rs, imm); }
+
+	void run() {
+	    int result = registers[rs] & imm;
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class Or extends RegisterHandler {
+	Or(int dst, int rs, int rt) { super(dst, rs, rt); }
+
+	void run() {
+	    int result = registers[rs] | registers[rt];
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class OrImmediate extends ImmediateHandler {
+	OrImmediate(int dst, int rs, int imm) { super(dst, rs, imm); }
+
+	void run() {
+	    int result = registers[rs] | imm;
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class Xor extends RegisterHandler {
+	Xor(int dst, int rs, int rt) { super(dst, rs, rt); }
+
+	void run() {
+	    int result = registers[rs] ^ registers[rt];
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class XorImmediate extends ImmediateHandler {
+	XorImmediate(int dst, int rs, int imm) { super(dst, rs, imm); }
+
+	void run() {
+	    int result = registers[rs] ^ imm;
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class Nor extends RegisterHandler {
+	Nor(int dst, int rs, int rt) { super(dst, rs, rt); }
+
+	void run() {
+	    int result = ~(registers[rs] | registers[rt]);
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+    }
+
+    private class LoadUpperImmediate extends Handler {
+	LoadUpperImmediate(int dst, int value) {
+	    this.dst = dst;
+	    this.value = value;
+	}
+
+	void run() {
+	    processor.finishLoad();
+	    registers[dst] = value;
+	    next();
+	}
+
+	final int dst, value;
+    }
+
+    /** <tt>mflo</tt> or <tt>mfhi</tt>. */
+    private class MoveFrom extends Handler {
+	MoveFrom(int dst, int src) {
+	    this.dst = dst;
+	    this.src = src;
+	}
+
+	void run() {
+	    int result = registers[src];
+	    processor.finishLoad();
+	    registers[dst] = result;
+	    next();
+	}
+
+	final int dst, src;
+    }
+
+    /** <tt>mtlo</tt> or <tt>mthi</tt>. */
+    private class MoveTo extends Handler {
+	MoveTo(int dst, int src) {
+	    this.dst = dst;
+	    this.src = src;
+	}
+
+	void run() {
+	    registers[dst] = registers[src];
+	    processor.finishLoad();
+	    next();
+	}
+
+	final int dst, src;
+    }
+
+    private class Jump extends Handler {
+	Jump(int target) {
+	    this.target = target;
+	}
+
+	void run() {
+	    int dest = (registers[Processor.regNextPC] & 0xF0000000) | target;
+	    processor.finishLoad();
+	    jump(dest);
+	}
+
+	final int target;
+    }
+
+    private class JumpAndLink extends Handler {
+	JumpAndLink(int target) {
+	    this.target = target;
+	}
+
+	void run() {
+	    int nextPC = registers[Processor.regNextPC];
+	    processor.finishLoad();
+	    registers[Processor.regRA] = nextPC+4;
+	    jump((nextPC & 0xF0000000) | target);
+	}
+
+	final int target;
+    }
+
+    private class JumpRegister extends Handler {
+	JumpRegister(int rs) {
+	    this.rs = rs;
+	}
+
+	void run() {
+	    int dest = registers[rs];
+	    processor.finishLoad();
+	    jump(dest);
+	}
+
+	final int rs;
+    }
+
+    private class JumpAndLinkRegister extends Handler {
+	JumpAndLinkRegister(int dst, int rs) {
+	    this.dst = dst;
+	    this.rs = rs;
+	}
+
+	void run() {
+	    int dest = registers[rs];
+	    processor.finishLoad();
+	    registers[dst] = registers[Processor.regNextPC]+4;
+	    jump(dest);
+	}
+
+	final int dst, rs;
+    }
+
+    /** A conditional branch that does not link. */
+    private class Branch extends Handler {
+	Branch(int operation, int rs, int rt, int offset) {
+	    this.operation = operation;
+	    this.rs = rs;
+	    this.rt = rt;
+	    this.offset = offset;
+	}
+
+	void run() {
+	    int src1 = registers[rs];
+	    boolean taken;
+	    switch (operation) {
+	    case Processor.Mips.BEQ:
+		taken = (src1 == registers[rt]);
+		break;
+	    case Processor.Mips.BNE:
+		taken = (src1 != registers[rt]);
+		break;
+	    case Processor.Mips.BLEZ:
+		taken = (src1 <= 0);
+		break;
+	    case Processor.Mips.BGTZ:
+		taken = (src1 > 0);
+		break;
+	    case Processor.Mips.BLTZ:
+		taken = (src1 < 0);
+		break;
+	    default:
+		taken = (src1 >= 0);
+		break;
+	    }
+
+	    processor.finishLoad();
+
+	    int nextPC = registers[Processor.regNextPC];
+	    jump(taken ? nextPC + offset : nextPC+4);
+	}
+
+	final int operation, rs, rt, offset;
+    }
+
+    private class LoadWord extends ImmediateHandler {
+	LoadWord(int dst, int rs, int imm) { super(dst, rs, imm); }
+
+	void run() throws Processor.MipsException {
+	    int value = processor.readMem(registers[rs] + imm, 4);
+	    processor.delayedLoad(dst, value, 0xFFFFFFFF);
+	    next();
+	}
+    }
+
+    /** A byte or halfword load. */
+    private class Load extends ImmediateHandler {
+	Load(int dst, int rs, int imm, int size, boolean unsigned) {
+	    super(dst, rs, imm);
+	    this.size = size;
+	    this.unsigned = unsigned;
+	    shift = 32 - size*8;
+	}
+
+	void run() throws Processor.MipsException {
+	    int value = processor.readMem(registers[rs] + imm, size);
+	    if (!unsigned)
+		value = (value << shift) >> shift;
+	    processor.delayedLoad(dst, value, 0xFFFFFFFF);
+	    next();
+	}
+
+	final int size, shift;
+	final boolean unsigned;
+    }
+
+    private class Store extends Handler {
+	Store(int rt, int rs, int imm, int size) {
+	    this.rt = rt;
+	    this.rs = rs;
+	    this.imm = imm;
+	    this.size = size;
+	}
+
+	void run() throws Processor.MipsException {
+	    processor.writeMem(registers[rs] + imm, size, registers[rt]);
+	    processor.finishLoad();
+	    next();
+	}
+
+	final int rt, rs, imm, size;
+    }
+
+    private Processor processor;
+    private int[] registers;
+}
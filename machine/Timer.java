@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * A hardware timer generates a CPU timer interrupt approximately every 500
  * clock ticks. This means that it can be used for implementing time-slicing,
@@ -80,6 +84,21 @@ public final class Timer {
 	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
     }
 
+    /**
+     * Save the time of the last timer interrupt to a snapshot. The timer's
+     * pending interrupts are saved by the interrupt controller.
+     */
+    void saveState(DataOutputStream out) throws IOException {
+	out.writeLong(lastTimerInterrupt);
+    }
+
+    /**
+     * Restore the time of the last timer interrupt from a snapshot.
+     */
+    void restoreState(ByteBuffer in) {
+	lastTimerInterrupt = in.getLong();
+    }
+
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
@@ -0,0 +1,574 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Structured debug tracing. Each kind of trace event is defined once, with
+ * the debug flag that enables it and a format that renders it as a line of
+ * text, and each event is recorded with the current time, the current
+ * thread, and up to four <tt>int</tt>s and a string that the code recording
+ * it already has. So recording an event builds no strings, and costs
+ * nothing but the test of its flag when the flag is off.
+ *
+ * <p>
+ * Normally each event is printed as soon as it is recorded, just as
+ * <tt>Lib.debug()</tt> prints its messages. If the <tt>Machine.traceFile</tt>
+ * key names a file, events are instead kept in a preallocated ring buffer of
+ * fixed-size binary records, holding the last <tt>Machine.traceSize</tt>
+ * events (by default 65536), along with the messages of <tt>Lib.debug()</tt>.
+ * The buffer is written to the file when the machine halts, or when the JVM
+ * is interrupted or killed. On a multiprocessor, the cores record events on
+ * their own host threads, at their own time, and each event takes the next
+ * record in the buffer as it is recorded. The file holds the formats too, so
+ *
+ * <pre>
+ * java nachos.machine.Trace <i>file</i>
+ * </pre>
+ *
+ * prints the events in it as they would have been printed at the time.
+ *
+ * <p>
+ * A format is text in which <tt>%<i>n</i>$s</tt>, <tt>%<i>n</i>$d</tt> and
+ * <tt>%<i>n</i>$0<i>w</i>X</tt> stand for argument <i>n</i> as a string, in
+ * decimal, or in hexadecimal padded to <i>w</i> digits, and <tt>%%</tt>
+ * stands for <tt>%</tt>. The arguments are:
+ *
+ * <ol>
+ * <li>-4. the four <tt>int</tt>s of the event,
+ * <li value=5>the string of the event,
+ * <li>the current thread, as <tt>"<i>name</i> (#<i>id</i>)"</tt>,
+ * <li>the time of the event, in ticks,
+ * <li>the first two <tt>int</tt>s, as the high and low halves of a
+ *	<tt>long</tt>, and
+ * <li>the instruction word in the first <tt>int</tt>, disassembled as if it
+ *	were at the address in the second <tt>int</tt> and branched to the
+ *	address in the third.
+ * </ol>
+ */
+public final class Trace {
+    /**
+     * Define a kind of trace event.
+     *
+     * @param	flag	the debug flag that enables the event.
+     * @param	format	the format that renders the event as text.
+     * @return	the identifier of the event, for <tt>record()</tt>.
+     */
+    public static synchronized int define(char flag, String format) {
+	if (numEvents == flags.length) {
+	    char[] newFlags = new char[numEvents*2];
+	    String[] newFormats = new String[numEvents*2];
+	    System.arraycopy(flags, 0, newFlags, 0, numEvents);
+	    System.arraycopy(formats, 0, newFormats, 0, numEvents);
+	    flags = newFlags;
+	    formats = newFormats;
+	}
+
+	flags[numEvents] = flag;
+	formats[numEvents] = format;
+	return numEvents++;
+    }
+
+    /**
+     * Test whether events are being kept in the ring buffer, rather than
+     * printed.
+     *
+     * @return	<tt>true</tt> if events are being buffered.
+     */
+    public static boolean isBuffering() {
+	return buffer != null;
+    }
+
+    /**
+     * Record an event with no arguments.
+     *
+     * @param	event	the event, returned by <tt>define()</tt>.
+     */
+    public static void record(int event) {
+	record(event, 0, 0, 0, 0, null);
+    }
+
+    /**
+     * Record an event with an <tt>int</tt> argument.
+     *
+     * @param	event	the event, returned by <tt>define()</tt>.
+     * @param	a	the first argument.
+     */
+    public static void record(int event, int a) {
+	record(event, a, 0, 0, 0, null);
+    }
+
+    /**
+     * Record an event with a string argument.
+     *
+     * @param	event	the event, returned by <tt>define()</tt>.
+     * @param	s	the string argument.
+     */
+    public static void record(int event, String s) {
+	record(event, 0, 0, 0, 0, s);
+    }
+
+    /**
+     * Record an event with an <tt>int</tt> and a string argument.
+     *
+     * @param	event	the event, returned by <tt>define()</tt>.
+     * @param	a	the first argument.
+     * @param	s	the string argument.
+     */
+    public static void record(int event, int a, String s) {
+	record(event, a, 0, 0, 0, s);
+    }
+
+    /**
+     * Record an event with a <tt>long</tt> argument, which is kept in the
+     * first two <tt>int</tt>s.
+     *
+     * @param	event	the event, returned by <tt>define()</tt>.
+     * @param	value	the argument.
+     */
+    public static void record(int event, long value) {
+	record(event, (int) (value >>> 32), (int) value, 0, 0, null);
+    }
+
+    /**
+     * Record an event with a <tt>long</tt> and a string argument.
+     *
+     * @param	event	the event, returned by <tt>define()</tt>.
+     * @param	value	the argument, kept in the first two <tt>int</tt>s.
+     * @param	s	the string argument.
+     */
+    public static void record(int event, long value, String s) {
+	record(event, (int) (value >>> 32), (int) value, 0, 0, s);
+    }
+
+    /**
+     * Record an event, if its debug flag is enabled.
+     *
+     * @param	event	the event, returned by <tt>define()</tt>.
+     * @param	a	the first argument.
+     * @param	b	the second argument.
+     * @param	c	the third argument.
+     * @param	d	the fourth argument.
+     * @param	s	the string argument, or <tt>null</tt>.
+     */
+    public static void record(int event, int a, int b, int c, int d,
+			      String s) {
+	if (Lib.test(flags[event]))
+	    write(event, a, b, c, d, s);
+    }
+
+    /**
+     * Set the thread that the events recorded from now on belong to. Called
+     * by the kernel whenever it switches threads.
+     *
+     * @param	id	a number that identifies the thread.
+     * @param	name	the name of the thread.
+     */
+    public static void setThread(int id, String name) {
+	if (buffer != null && id >= 0) {
+	    if (id >= threadNames.length) {
+		String[] newNames = new String[Math.max(id+1,
+							threadNames.length*2)];
+		System.arraycopy(threadNames, 0, newNames, 0,
+				 threadNames.length);
+		threadNames = newNames;
+	    }
+	    threadNames[id] = name;
+	}
+
+	threadID = id;
+	threadName = name;
+    }
+
+    /**
+     * Set the core whose time the events recorded by the current Java thread
+     * are recorded at. Called by <tt>Multiprocessor</tt> on each core's host
+     * thread.
+     *
+     * @param	processor	the core.
+     */
+    static void setCore(Processor processor) {
+	core.set(processor);
+    }
+
+    /**
+     * Keep a message of <tt>Lib.debug()</tt> in the ring buffer.
+     *
+     * @param	flag	the debug flag of the message, already enabled.
+     * @param	message	the message.
+     */
+    static void message(char flag, String message) {
+	write(messageEvent, flag, 0, 0, 0, message);
+    }
+
+    /** Print an event, or add it to the ring buffer. */
+    private static void write(int event, int a, int b, int c, int d,
+			      String s) {
+	Processor processor = core.get();
+	long time;
+	if (processor != null)
+	    time = processor.coreTime();
+	else
+	    time = (stats == null) ? 0 : stats.totalTicks;
+
+	if (buffer == null) {
+	    String thread = (threadID < 0) ? null :
+		threadName + " (#" + threadID + ")";
+	    System.out.println(format(formats[event], a, b, c, d, s, thread,
+				      time));
+	    return;
+	}
+
+	// the cores record at the same time as CPU 0, so each claims a record
+	int slot = (int) (written.getAndIncrement() % capacity);
+
+	int i = slot * recordSize;
+	buffer[i] = event;
+	buffer[i+1] = threadID;
+	buffer[i+2] = (int) (time >>> 32);
+	buffer[i+3] = (int) time;
+	buffer[i+4] = a;
+	buffer[i+5] = b;
+	buffer[i+6] = c;
+	buffer[i+7] = d;
+	strings[slot] = s;
+    }
+
+    /**
+     * Start keeping events in a ring buffer, to be written to the specified
+     * file when the machine exits. Called by <tt>Machine</tt> when the
+     * <tt>Machine.traceFile</tt> key is set.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the file to write the events to.
+     * @param	size		the number of events to keep.
+     */
+    static void enable(Privilege privilege, String fileName, int size) {
+	Lib.assertTrue(size > 0);
+
+	Trace.privilege = privilege;
+	Trace.fileName = fileName;
+
+	capacity = size;
+	buffer = new int[capacity * recordSize];
+	strings = new String[capacity];
+	threadNames = new String[16];
+
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { dump(); }
+	    });
+
+	// a batch runs many machines in this JVM, and exits once they all have
+	if (!Batch.isRunning()) {
+	    privilege.doPrivileged(new PrivilegedAction<Object>() {
+		    public Object run() {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() { dump(); }
+			    });
+			return null;
+		    }
+		});
+	}
+    }
+
+    /**
+     * Set the statistics whose time events are recorded at.
+     *
+     * @param	stats	the machine's statistics.
+     */
+    static void setStats(Stats stats) {
+	Trace.stats = stats;
+    }
+
+    /** Write the ring buffer to the trace file, oldest event first. */
+    private static synchronized void dump() {
+	if (dumped)
+	    return;
+	dumped = true;
+
+	try {
+	    privilege.doPrivileged(new PrivilegedExceptionAction<Object>() {
+		    public Object run() throws IOException {
+			DataOutputStream out =
+			    new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(fileName)));
+
+			try {
+			    write(out);
+			}
+			finally {
+			    out.close();
+			}
+
+			return null;
+		    }
+		});
+	}
+	catch (PrivilegedActionException e) {
+	    System.out.println("Could not write trace to " + fileName + ": " +
+			       e.getException());
+	}
+    }
+
+    private static void write(DataOutputStream out) throws IOException {
+	out.writeInt(magic);
+	out.writeInt(version);
+
+	out.writeInt(numEvents);
+	for (int i=0; i<numEvents; i++) {
+	    out.writeChar(flags[i]);
+	    out.writeUTF(formats[i]);
+	}
+
+	int numThreads = 0;
+	for (int i=0; i<threadNames.length; i++) {
+	    if (threadNames[i] != null)
+		numThreads++;
+	}
+	out.writeInt(numThreads);
+	for (int i=0; i<threadNames.length; i++) {
+	    if (threadNames[i] != null) {
+		out.writeInt(i);
+		out.writeUTF(threadNames[i]);
+	    }
+	}
+
+	// each distinct string is written once, and records refer to it
+	IdentityHashMap<String,Integer> stringIDs =
+	    new IdentityHashMap<String,Integer>();
+	ArrayList<String> stringTable = new ArrayList<String>();
+	long total = written.get();
+	int count = (int) Math.min(total, capacity);
+	int[] stringRefs = new int[count];
+
+	int first = (int) ((total - count) % capacity);
+	for (int n=0; n<count; n++) {
+	    String s = strings[(first + n) % capacity];
+	    if (s == null) {
+		stringRefs[n] = -1;
+		continue;
+	    }
+
+	    Integer id = stringIDs.get(s);
+	    if (id == null) {
+		id = Integer.valueOf(stringTable.size());
+		stringIDs.put(s, id);
+		stringTable.add(s);
+	    }
+	    stringRefs[n] = id.intValue();
+	}
+
+	out.writeInt(stringTable.size());
+	for (int i=0; i<stringTable.size(); i++)
+	    out.writeUTF(stringTable.get(i));
+
+	out.writeInt(count);
+	for (int n=0; n<count; n++) {
+	    int i = ((first + n) % capacity) * recordSize;
+	    for (int j=0; j<recordSize; j++)
+		out.writeInt(buffer[i+j]);
+	    out.writeInt(stringRefs[n]);
+	}
+    }
+
+    /**
+     * Render an event as text.
+     */
+    private static String format(String format, int a, int b, int c, int d,
+				 String s, String thread, long time) {
+	String disassembly = null;
+	if (format.indexOf("%9$") != -1) {
+	    Processor.DecodedInstruction inst =
+		new Processor.DecodedInstruction();
+	    inst.decode(a);
+	    disassembly = Processor.disassemble(inst, c, null);
+	}
+
+	Object[] args = {
+	    Integer.valueOf(a), Integer.valueOf(b), Integer.valueOf(c),
+	    Integer.valueOf(d), s, thread, Long.valueOf(time),
+	    Long.valueOf(((long) a << 32) | (b & 0xFFFFFFFFL)), disassembly };
+
+	// String.format() would cost more than the rest of a live trace
+	StringBuffer line = new StringBuffer(format.length() + 32);
+	int i = 0;
+	while (i < format.length()) {
+	    char ch = format.charAt(i++);
+	    if (ch != '%' || i == format.length()) {
+		line.append(ch);
+		continue;
+	    }
+
+	    if (format.charAt(i) == '%') {
+		line.append('%');
+		i++;
+		continue;
+	    }
+
+	    int n = 0;
+	    while (Character.isDigit(format.charAt(i)))
+		n = n*10 + (format.charAt(i++) - '0');
+	    Lib.assertTrue(format.charAt(i++) == '$' && n >= 1 &&
+			   n <= args.length, "bad trace format: " + format);
+
+	    int width = 0;
+	    while (Character.isDigit(format.charAt(i)))
+		width = width*10 + (format.charAt(i++) - '0');
+
+	    Object arg = args[n-1];
+	    switch (format.charAt(i++)) {
+	    case 'X':
+		String hex = (arg instanceof Integer)
+		    ? Integer.toHexString(((Integer) arg).intValue())
+		    : Long.toHexString(((Long) arg).longValue());
+		for (int j=hex.length(); j<width; j++)
+		    line.append('0');
+		line.append(hex.toUpperCase());
+		break;
+	    case 'd':
+	    case 's':
+		line.append(arg);
+		break;
+	    default:
+		Lib.assertNotReached("bad trace format: " + format);
+	    }
+	}
+
+	return line.toString();
+    }
+
+    /**
+     * Print the events in a trace file.
+     *
+     * @param	args	the command line arguments.
+     */
+    public static void main(String[] args) {
+	if (args.length != 1) {
+	    System.err.println("usage: java nachos.machine.Trace <trace file>");
+	    System.exit(1);
+	}
+
+	try {
+	    DataInputStream in =
+		new DataInputStream(new BufferedInputStream(
+		    new FileInputStream(args[0])));
+
+	    if (in.readInt() != magic || in.readInt() != version) {
+		System.err.println(args[0] + " is not a trace file");
+		System.exit(1);
+	    }
+
+	    String[] formats = new String[in.readInt()];
+	    for (int i=0; i<formats.length; i++) {
+		in.readChar();
+		formats[i] = in.readUTF();
+	    }
+
+	    ArrayList<String> names = new ArrayList<String>();
+	    int numThreads = in.readInt();
+	    for (int i=0; i<numThreads; i++) {
+		int id = in.readInt();
+		while (names.size() <= id)
+		    names.add(null);
+		names.set(id, in.readUTF() + " (#" + id + ")");
+	    }
+
+	    String[] strings = new String[in.readInt()];
+	    for (int i=0; i<strings.length; i++)
+		strings[i] = in.readUTF();
+
+	    int count = in.readInt();
+	    int[] record = new int[recordSize];
+	    for (int n=0; n<count; n++) {
+		for (int j=0; j<recordSize; j++)
+		    record[j] = in.readInt();
+		int string = in.readInt();
+
+		int thread = record[1];
+		String name = (thread >= 0 && thread < names.size()) ?
+		    names.get(thread) : null;
+
+		System.out.println(format(formats[record[0]], record[4],
+					  record[5], record[6], record[7],
+					  string < 0 ? null : strings[string],
+					  name,
+					  ((long) record[2] << 32) |
+					  (record[3] & 0xFFFFFFFFL)));
+	    }
+
+	    in.close();
+	}
+	catch (EOFException e) {
+	    System.err.println(args[0] + " is truncated");
+	    System.exit(1);
+	}
+	catch (IOException e) {
+	    System.err.println("Could not read " + args[0] + ": " + e);
+	    System.exit(1);
+	}
+    }
+
+    private static char[] flags = new char[32];
+    private static String[] formats = new String[32];
+    private static int numEvents = 0;
+
+    /** The event that holds a message of <tt>Lib.debug()</tt>. */
+    private static final int messageEvent = define('+', "%5$s");
+
+    private static Privilege privilege = null;
+    private static Stats stats = null;
+    /** The core each Java thread runs, if it is a core's host thread. */
+    private static final ThreadLocal<Processor> core =
+	new ThreadLocal<Processor>();
+    private static String fileName;
+
+    /**
+     * The records, <tt>recordSize</tt> <tt>int</tt>s each: the event, the
+     * thread, the time, and the four arguments. <tt>null</tt> unless events
+     * are being buffered.
+     */
+    private static int[] buffer = null;
+    /** The string argument of each record. */
+    private static String[] strings;
+    private static int capacity;
+    /**
+     * The number of records ever written. The next goes at this index, modulo
+     * <tt>capacity</tt>.
+     */
+    private static final AtomicLong written = new AtomicLong();
+    private static boolean dumped = false;
+
+    private static int threadID = -1;
+    /** The names of the threads, indexed by thread. */
+    private static String[] threadNames;
+    private static String threadName = null;
+
+    private static final int recordSize = 8;
+
+    /** The first word of a trace file, "NTRC". */
+    private static final int magic = 0x4E545243;
+    private static final int version = 1;
+
+    /**
+     * Prevent instantiation.
+     */
+    private Trace() {
+    }
+}
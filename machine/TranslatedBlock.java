@@ -0,0 +1,99 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A basic block of MIPS code that has been compiled into a JVM class by a
+ * <tt>BlockTranslator</tt>. Generated blocks extend this class, and call its
+ * static methods for anything more involved than register arithmetic.
+ *
+ * <p>
+ * A block runs its instructions with the same effect as the interpreter,
+ * including delayed loads. Before each instruction that might raise an
+ * exception, the block stores that instruction's address in the PC register,
+ * so the processor state seen by the exception handler is exactly what the
+ * interpreter would have left.
+ */
+abstract class TranslatedBlock {
+    /**
+     * Execute this block, starting at virtual address <i>base</i>. The PC and
+     * nextPC registers are left pointing at the next instruction to execute.
+     *
+     * @param	processor	the processor executing this block.
+     * @param	registers	the processor's registers.
+     * @param	base		the virtual address of the first instruction.
+     * @return	the number of instructions executed, which is less than
+     *		<tt>length</tt> only if the block stored into its own code.
+     * @exception	Processor.MipsException	if an instruction raised an
+     *						exception.
+     */
+    abstract int run(Processor processor, int[] registers, int base)
+	throws Processor.MipsException;
+
+    /**
+     * Test whether this block was translated from the instructions currently
+     * stored at physical address <i>paddr</i>.
+     *
+     * @param	memory	the processor's main memory.
+     * @param	paddr	the physical address of the block.
+     * @return	<tt>true</tt> if the block is still valid.
+     */
+    boolean matches(PhysicalMemory memory, int paddr) {
+	for (int i=0; i<words.length; i++) {
+	    if (memory.load(paddr + i*4, 4) != words[i])
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Raise an overflow exception.
+     */
+    static void overflow(Processor processor) throws Processor.MipsException {
+	throw processor.new MipsException(Processor.exceptionOverflow);
+    }
+
+    /**
+     * Execute a <tt>mult</tt> or <tt>multu</tt> instruction.
+     */
+    static void multiply(Processor processor, int src1, int src2,
+			 boolean unsigned) {
+	if (unsigned)
+	    processor.multiply(src1 & 0xFFFFFFFFL, src2 & 0xFFFFFFFFL);
+	else
+	    processor.multiply(src1, src2);
+    }
+
+    /**
+     * Execute a <tt>div</tt> or <tt>divu</tt> instruction.
+     */
+    static void divide(Processor processor, int src1, int src2,
+		       boolean unsigned) throws Processor.MipsException {
+	if (unsigned)
+	    processor.divide(src1 & 0xFFFFFFFFL, src2 & 0xFFFFFFFFL);
+	else
+	    processor.divide(src1, src2);
+    }
+
+    /**
+     * Execute a store instruction, and report whether it wrote into the
+     * block that is running, in which case the block must stop so that the
+     * new code is fetched.
+     */
+    boolean store(Processor processor, int vaddr, int size, int value)
+	throws Processor.MipsException {
+	processor.writeMem(vaddr, size, value);
+
+	return translator.takeCodeModified();
+    }
+
+    /** The translator that compiled this block. */
+    BlockTranslator translator;
+    /** The instruction words this block was translated from. */
+    int[] words;
+    /** The number of instructions in this block. */
+    int length;
+    /** The translator's epoch when this block was last checked. */
+    long checked = -1;
+}
@@ -48,6 +48,7 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	asid = entry.asid;
     }
 
     /** The virtual page number. */
@@ -56,6 +57,12 @@ public final class TranslationEntry {
     /** The physical page number. */
     public int ppn;
 
+    /**
+     * The address space identifier. A TLB entry is only used while the
+     * processor's current ASID is the same. Ignored in page tables.
+     */
+    public int asid = 0;
+
     /**
      * If this flag is <tt>false</tt>, this translation entry is ignored.
      */
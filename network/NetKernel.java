@@ -78,6 +78,7 @@ public class NetKernel extends VMKernel {
 	MailMessage ack = postOffice.receive(0);
 	
 	long endTime = Machine.timer().getTime();
+	Metrics.packetRTT.record(endTime-startTime);
 
 	System.out.println("time=" + (endTime-startTime) + " ticks");	
     }
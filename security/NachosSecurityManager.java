@@ -49,7 +49,11 @@ public class NachosSecurityManager extends SecurityManager {
 	
 	doPrivileged(new Runnable() {
 	    public void run() {
-		System.setSecurityManager(NachosSecurityManager.this);
+		// in a batch, each machine's manager guards only its own threads
+		if (Batch.isRunning())
+		    Batch.enableSecurityManager(NachosSecurityManager.this);
+		else
+		    System.setSecurityManager(NachosSecurityManager.this);
 	    }
 	});
     }
@@ -69,9 +73,15 @@ public class NachosSecurityManager extends SecurityManager {
 	}
 
 	public void exit(int exitStatus) {
-	    invokeExitNotificationHandlers();
+	    // threads stopped by the first exit may try to exit again
+	    if (!exiting) {
+		exiting = true;
+		invokeExitNotificationHandlers();
+	    }
 	    NachosSecurityManager.this.exit(exitStatus);
 	}
+
+	private boolean exiting = false;
     }
 
     private void enablePrivilege() {
@@ -111,6 +121,8 @@ public class NachosSecurityManager extends SecurityManager {
 
     private void exit(int exitStatus) {
 	forcePrivilege();
+	if (Batch.isRunning())
+	    Batch.exit(exitStatus);
 	System.exit(exitStatus);
     }
 
@@ -147,8 +147,20 @@ public abstract class Privilege {
 	 * @param	type	a name for the type of interrupt being
 	 *			scheduled.
 	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle that can be passed to <tt>cancel()</tt> to
+	 *		retract the interrupt before it occurs.
 	 */
-	public void schedule(long when, String type, Runnable handler);
+	public long schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Cancel an interrupt that was scheduled but has not yet occurred.
+	 *
+	 * @param	handle	the handle returned by <tt>schedule()</tt>.
+	 * @return	<tt>true</tt> if the interrupt was still pending, or
+	 *		<tt>false</tt> if it had already occurred or been
+	 *		cancelled.
+	 */
+	public boolean cancel(long handle);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +170,27 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by several ticks at once. Pending
+	 * interrupts are only checked after the last tick, so the caller must
+	 * make sure that none of them falls due any earlier.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param count	the number of ticks to advance the simulated time by.
+	 */
+	public void tick(boolean inKernelMode, int count);
+
+	/**
+	 * Return the number of ticks that can pass before the next pending
+	 * interrupt falls due, or <tt>Long.MAX_VALUE</tt> if no interrupt is
+	 * pending.
+	 *
+	 * @return	the number of ticks until the next pending interrupt.
+	 */
+	public long ticksUntilNextInterrupt();
     }
 
     /**
@@ -140,8 +140,9 @@ public class KThread {
         Lib.assertTrue(status == statusNew);
         Lib.assertTrue(target != null);
         
-        Lib.debug(dbgThread,
-            "Forking thread: " + toString() + " Runnable: " + target);
+        if (Lib.test(dbgThread))
+            Lib.debug(dbgThread,
+                "Forking thread: " + toString() + " Runnable: " + target);
 
         boolean intStatus = Machine.interrupt().disable();
 
@@ -163,7 +164,7 @@ public class KThread {
     }
 
     private void begin() {
-        Lib.debug(dbgThread, "Beginning thread: " + toString());
+        Trace.record(trcBegin, id, name);
         
         Lib.assertTrue(this == currentThread);
 
@@ -183,7 +184,7 @@ public class KThread {
      * delete this thread.
      */
     public static void finish() {
-        Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+        Trace.record(trcFinish, currentThread.id, currentThread.name);
         
         
         Machine.interrupt().disable();
@@ -218,7 +219,7 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
-        Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+        Trace.record(trcYield, currentThread.id, currentThread.name);
         
         Lib.assertTrue(currentThread.status == statusRunning);
         
@@ -243,7 +244,7 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
-        Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+        Trace.record(trcSleep, currentThread.id, currentThread.name);
         
         Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -258,14 +259,16 @@ public class KThread {
      * ready queue.
      */
     public void ready() {
-        Lib.debug(dbgThread, "Ready thread: " + toString());
+        Trace.record(trcReady, id, name);
         
         Lib.assertTrue(Machine.interrupt().disabled());
         Lib.assertTrue(status != statusReady);
         
         status = statusReady;
-        if (this != idleThread)
+        if (this != idleThread) {
             readyQueue.waitForAccess(this);
+            numReady++;
+        }
         
         Machine.autoGrader().readyThread(this);
     }
@@ -278,7 +281,7 @@ public class KThread {
      */
     public void join() {
         //default calls
-        Lib.debug(dbgThread, "Joining to thread: " + toString());
+        Trace.record(trcJoin, id, name);
         Lib.assertTrue(this != currentThread);
 
         // check if the thread that is being joine has already completed or if it has already been joined
@@ -317,12 +320,24 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * When the ready set is empty, nothing can happen until an interrupt
+     * readies a thread, so the idle thread lets the machine skip ahead to the
+     * next interrupt.
      */
     private static void createIdleThread() {
         Lib.assertTrue(idleThread == null);
         
         idleThread = new KThread(new Runnable() {
-            public void run() { while (true) yield(); }
+            public void run() {
+                while (true) {
+                    if (numReady == 0)
+                        Machine.interrupt().idle();
+
+                    yield();
+                }
+            }
         });
         idleThread.setName("idle");
 
@@ -339,6 +354,8 @@ public class KThread {
         KThread nextThread = readyQueue.nextThread();
         if (nextThread == null)
             nextThread = idleThread;
+        else
+            numReady--;
 
         nextThread.run();
     }
@@ -370,8 +387,7 @@ public class KThread {
 
         currentThread.saveState();
 
-        Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-            + " to: " + toString());
+        Trace.record(trcSwitch, id, name);
 
         currentThread = this;
 
@@ -385,7 +401,8 @@ public class KThread {
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
      */
     protected void restoreState() {
-        Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+        Trace.setThread(currentThread.id, currentThread.name);
+        Trace.record(trcRunning, currentThread.id, currentThread.name);
         
         Lib.assertTrue(Machine.interrupt().disabled());
         Lib.assertTrue(this == currentThread);
@@ -655,6 +672,23 @@ public class KThread {
     
     private static final char dbgThread = 't';
 
+    private static final int trcBegin =
+        Trace.define(dbgThread, "Beginning thread: %5$s (#%1$d)");
+    private static final int trcFinish =
+        Trace.define(dbgThread, "Finishing thread: %5$s (#%1$d)");
+    private static final int trcYield =
+        Trace.define(dbgThread, "Yielding thread: %5$s (#%1$d)");
+    private static final int trcSleep =
+        Trace.define(dbgThread, "Sleeping thread: %5$s (#%1$d)");
+    private static final int trcReady =
+        Trace.define(dbgThread, "Ready thread: %5$s (#%1$d)");
+    private static final int trcJoin =
+        Trace.define(dbgThread, "Joining to thread: %5$s (#%1$d)");
+    private static final int trcSwitch =
+        Trace.define(dbgThread, "Switching from: %6$s to: %5$s (#%1$d)");
+    private static final int trcRunning =
+        Trace.define(dbgThread, "Running thread: %5$s (#%1$d)");
+
     /**
      * Additional state used by schedulers.
      *
@@ -693,6 +727,8 @@ public class KThread {
     private boolean joined = false;
 
     private static ThreadQueue readyQueue = null;
+    /** Number of threads in the ready queue. */
+    private static int numReady = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
@@ -25,6 +25,17 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps a FIFO list of waiting threads for each priority, and a
+ * bitmap of the priorities that have any, so the next thread is found with a
+ * single bit scan, however many threads are waiting. Each thread remembers its
+ * effective priority, and each queue that transfers priority remembers what it
+ * donates to its owner. When a priority changes, only the threads and queues
+ * it affects are updated, following the chain from a waiting thread to the
+ * owner of its queue, to the queue that owner waits on, and so on, and
+ * stopping as soon as nothing changes. A waiting thread whose effective
+ * priority changes goes to the back of the list for its new priority.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -142,8 +153,19 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    remove(next);
+	    next.waitingOn = null;
+	    updateDonation();
+
+	    next.acquire(this);
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +176,95 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    if (levels == 0)
+		return null;
+
+	    return heads[highestLevel(levels)];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int level=priorityMaximum; level>=priorityMinimum; level--) {
+		for (ThreadState state=heads[level]; state!=null;
+		     state=state.nextWaiter)
+		    System.out.print(state.thread + " (" + level + ") ");
+	    }
+	}
+
+	/**
+	 * Add a thread to the end of the list for its effective priority.
+	 */
+	void add(ThreadState state) {
+	    int level = state.effectivePriority;
+
+	    state.previousWaiter = tails[level];
+	    state.nextWaiter = null;
+	    if (tails[level] != null)
+		tails[level].nextWaiter = state;
+	    else
+		heads[level] = state;
+	    tails[level] = state;
+
+	    levels |= 1 << level;
+	}
+
+	/**
+	 * Remove a thread from the list for the specified priority, which is
+	 * the effective priority it was added with.
+	 */
+	void remove(ThreadState state, int level) {
+	    if (state.previousWaiter != null)
+		state.previousWaiter.nextWaiter = state.nextWaiter;
+	    else
+		heads[level] = state.nextWaiter;
+
+	    if (state.nextWaiter != null)
+		state.nextWaiter.previousWaiter = state.previousWaiter;
+	    else
+		tails[level] = state.previousWaiter;
+
+	    state.previousWaiter = state.nextWaiter = null;
+
+	    if (heads[level] == null)
+		levels &= ~(1 << level);
+	}
+
+	void remove(ThreadState state) {
+	    remove(state, state.effectivePriority);
+	}
+
+	/**
+	 * Make the specified thread the owner of this queue, taking this
+	 * queue's donation from the old owner and giving it to the new one.
+	 */
+	void setOwner(ThreadState state) {
+	    if (owner == state)
+		return;
+
+	    if (owner != null)
+		owner.changeDonation(donation, noDonation);
+	    owner = state;
+	    if (owner != null)
+		owner.changeDonation(noDonation, donation);
+	}
+
+	/**
+	 * Recompute what this queue donates, the highest effective priority of
+	 * the threads waiting on it, and pass any change on to the owner.
+	 */
+	void updateDonation() {
+	    int newDonation = noDonation;
+	    if (transferPriority && levels != 0)
+		newDonation = highestLevel(levels);
+
+	    if (newDonation == donation)
+		return;
+
+	    int oldDonation = donation;
+	    donation = newDonation;
+	    if (owner != null)
+		owner.changeDonation(oldDonation, newDonation);
 	}
 
 	/**
@@ -168,8 +272,29 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The first and last thread waiting at each priority. */
+	private ThreadState[] heads = new ThreadState[priorityMaximum+1];
+	private ThreadState[] tails = new ThreadState[priorityMaximum+1];
+	/** Bit <i>n</i> is set if any thread is waiting at priority <i>n</i>. */
+	private int levels = 0;
+
+	/** The thread that last acquired this queue, or <tt>null</tt>. */
+	private ThreadState owner = null;
+	/** The priority this queue donates to its owner. */
+	private int donation = noDonation;
+    }
+
+    /**
+     * Return the highest priority in a nonzero bitmap of priorities.
+     */
+    private static int highestLevel(int levels) {
+	return 31 - Integer.numberOfLeadingZeros(levels);
     }
 
+    /** The donation of a queue that donates nothing. */
+    private static final int noDonation = -1;
+
     /**
      * The scheduling state of a thread. This should include the thread's
      * priority, its effective priority, any objects it owns, and the queue
@@ -187,7 +312,8 @@ public class PriorityScheduler extends Scheduler {
 	public ThreadState(KThread thread) {
 	    this.thread = thread;
 	    
-	    setPriority(priorityDefault);
+	    this.priority = priorityDefault;
+	    this.effectivePriority = priorityDefault;
 	}
 
 	/**
@@ -205,8 +331,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +345,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +361,11 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+	    waitQueue.updateDonation();
 	}
 
 	/**
@@ -250,12 +379,71 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    waitQueue.setOwner(this);
 	}	
 
+	/**
+	 * Move a donation from one priority to another, where either can be
+	 * <tt>noDonation</tt>, because a queue owned by the associated thread
+	 * now donates something else, or changed hands.
+	 */
+	void changeDonation(int oldDonation, int newDonation) {
+	    if (oldDonation == newDonation)
+		return;
+
+	    if (oldDonation != noDonation &&
+		--donations[oldDonation] == 0)
+		donationLevels &= ~(1 << oldDonation);
+	    if (newDonation != noDonation &&
+		donations[newDonation]++ == 0)
+		donationLevels |= 1 << newDonation;
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective priority, the higher of the priority and
+	 * the highest donation, and if it changed, move the associated thread
+	 * to its new place in the queue it waits on, which may change what
+	 * that queue donates in turn.
+	 */
+	private void updateEffectivePriority() {
+	    int newPriority = priority;
+	    if (donationLevels != 0)
+		newPriority = Math.max(newPriority, highestLevel(donationLevels));
+
+	    if (newPriority == effectivePriority)
+		return;
+
+	    if (waitingOn != null)
+		waitingOn.remove(this, effectivePriority);
+
+	    effectivePriority = newPriority;
+
+	    if (waitingOn != null) {
+		waitingOn.add(this);
+		waitingOn.updateDonation();
+	    }
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The effective priority of the associated thread. */
+	protected int effectivePriority;
+
+	/** The queue the associated thread is waiting on, if any. */
+	PriorityQueue waitingOn = null;
+	/** The threads before and after this one in that queue's list. */
+	ThreadState previousWaiter = null;
+	ThreadState nextWaiter = null;
+
+	/**
+	 * The number of owned queues donating each priority, and a bitmap of
+	 * the priorities donated by any.
+	 */
+	private int[] donations = new int[priorityMaximum+1];
+	private int donationLevels = 0;
     }
 }
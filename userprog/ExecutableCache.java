@@ -0,0 +1,355 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers the executables that processes have run, so that running one
+ * again does not parse its headers or read its pages from the file system
+ * again. An executable is identified by its name, its modification time and
+ * its length, so a program that has been rebuilt or copied over is loaded
+ * afresh.
+ *
+ * <p>
+ * The cache keeps the parsed headers of each executable and an image of each
+ * of its pages. A page is only read from the executable file the first time
+ * any process touches it; after that it is copied from the image. The
+ * executables used least recently are forgotten once the images add up to
+ * more than <tt>UserKernel.executableCachePages</tt> pages (256 by
+ * default). Processes still running a forgotten executable keep its image
+ * until they exit.
+ *
+ * <p>
+ * Processes running the same cached executable also share the physical pages
+ * its sections are loaded into. A page stays in physical memory while any
+ * process maps it, and is freed when the last one exits. Nothing writes to a
+ * shared page, so a process must map it read-only, and copy a page of a
+ * writable section before writing to it.
+ *
+ * <p>
+ * Executables on a file system that does not record modification times, or
+ * loaded by the autograder's own loader, are never cached, but their pages
+ * are still loaded on first touch.
+ */
+public class ExecutableCache {
+    /**
+     * Allocate a new executable cache.
+     *
+     * @param	maxPages	the most pages of executable images to keep.
+     */
+    public ExecutableCache(int maxPages) {
+	Lib.assertTrue(maxPages >= 0);
+
+	this.maxPages = maxPages;
+	lock = new Lock();
+    }
+
+    /**
+     * Prepare to run the executable in the specified file. If the file is not
+     * a valid executable, it is closed.
+     *
+     * @param	file	the open executable, which becomes the property of the
+     *			returned object.
+     * @return	the executable, or <tt>null</tt> if the file is not a valid
+     *		executable.
+     */
+    public Executable open(OpenFile file) {
+	String key = file.getName();
+	long modified = file.lastModified();
+	int length = file.length();
+
+	lock.acquire();
+	Image image = images.get(key);
+	if (image != null &&
+	    (image.modified != modified || image.length != length)) {
+	    remove(key);
+	    image = null;
+	}
+	lock.release();
+
+	if (image != null) {
+	    Trace.record(trcHit, file.getName());
+	    return new Executable(image, new Coff(file, image.headers));
+	}
+
+	Trace.record(trcMiss, file.getName());
+
+	Coff headers;
+	try {
+	    headers = new Coff(file);
+	}
+	catch (EOFException e) {
+	    file.close();
+	    return null;
+	}
+
+	image = new Image(headers, modified, length);
+
+	if (modified == -1 || maxPages == 0 || !image.isCacheable())
+	    return new Executable(image, headers);
+
+	image.shared = true;
+
+	lock.acquire();
+	remove(key);
+	images.put(key, image);
+	numPages += image.pages.length;
+	evict();
+	lock.release();
+
+	return new Executable(image, new Coff(file, headers));
+    }
+
+    /**
+     * Forget the least recently used executables until the rest fit. Called
+     * with the lock held.
+     */
+    private void evict() {
+	Iterator<Image> i = images.values().iterator();
+	while (numPages > maxPages && i.hasNext()) {
+	    Image image = i.next();
+	    numPages -= image.pages.length;
+	    i.remove();
+	}
+    }
+
+    private void remove(String key) {
+	Image image = images.remove(key);
+	if (image != null)
+	    numPages -= image.pages.length;
+    }
+
+    /**
+     * An executable being run by one process, whose pages come from the
+     * shared image of the executable when they are there, and from the
+     * process's own open file when they are not.
+     */
+    public static class Executable {
+	private Executable(Image image, Coff coff) {
+	    this.image = image;
+	    this.coff = coff;
+	}
+
+	/**
+	 * Return the loader of this process's copy of the executable.
+	 *
+	 * @return	the loader.
+	 */
+	public Coff getCoff() {
+	    return coff;
+	}
+
+	/**
+	 * Test whether the specified virtual page is part of a section of the
+	 * executable.
+	 *
+	 * @param	vpn	the virtual page number.
+	 * @return	<tt>true</tt> if a section holds the page.
+	 */
+	public boolean hasPage(int vpn) {
+	    return vpn >= 0 && vpn < image.sections.length &&
+		image.sections[vpn] >= 0;
+	}
+
+	/**
+	 * Test whether this process shares the physical pages of the
+	 * executable with other processes running it.
+	 *
+	 * @return	<tt>true</tt> if the pages returned by
+	 *		<tt>mapPage()</tt> are shared.
+	 */
+	public boolean isShared() {
+	    return image.shared;
+	}
+
+	/**
+	 * Return a physical page holding the specified page of the
+	 * executable, loading it if no other process has it in memory. The
+	 * caller must give the page back with <tt>releasePage()</tt>.
+	 *
+	 * @param	vpn	the virtual page to map.
+	 * @return	the physical page, or -1 if physical memory is full.
+	 */
+	public int mapPage(int vpn) {
+	    Lib.assertTrue(hasPage(vpn));
+
+	    UserKernel kernel = (UserKernel) Kernel.kernel;
+
+	    image.lock.acquire();
+
+	    int ppn = image.frames[vpn];
+	    if (ppn != -1) {
+		kernel.shareFrame(ppn);
+	    }
+	    else {
+		ppn = kernel.allocateFrame();
+		if (ppn != -1) {
+		    loadPage(vpn, ppn);
+		    if (image.shared)
+			image.frames[vpn] = ppn;
+		}
+	    }
+
+	    image.lock.release();
+	    return ppn;
+	}
+
+	/**
+	 * Give back a physical page that this process mapped at the specified
+	 * virtual page, whether it came from <tt>mapPage()</tt> or is the
+	 * process's own.
+	 *
+	 * @param	vpn	the virtual page.
+	 * @param	ppn	the physical page mapped there.
+	 */
+	public void releasePage(int vpn, int ppn) {
+	    UserKernel kernel = (UserKernel) Kernel.kernel;
+
+	    image.lock.acquire();
+
+	    if (kernel.releaseFrame(ppn) && hasPage(vpn) &&
+		image.frames[vpn] == ppn)
+		image.frames[vpn] = -1;
+
+	    image.lock.release();
+	}
+
+	/**
+	 * Take a physical page that this process mapped at the specified
+	 * virtual page out of the image, so that processes running the
+	 * executable later do not share it. The caller then frees it with
+	 * <tt>UserKernel.releaseFrame()</tt> instead of <tt>releasePage()</tt>.
+	 *
+	 * @param	vpn	the virtual page.
+	 * @param	ppn	the physical page mapped there.
+	 */
+	public void keepPage(int vpn, int ppn) {
+	    image.lock.acquire();
+
+	    if (hasPage(vpn) && image.frames[vpn] == ppn)
+		image.frames[vpn] = -1;
+
+	    image.lock.release();
+	}
+
+	/**
+	 * Load a page of the executable into physical memory.
+	 *
+	 * @param	vpn	the virtual page to load.
+	 * @param	ppn	the physical page to load it into.
+	 */
+	public void loadPage(int vpn, int ppn) {
+	    Lib.assertTrue(hasPage(vpn));
+
+	    PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+	    int paddr = ppn*pageSize;
+
+	    byte[] page = image.pages[vpn];
+	    if (page != null) {
+		memory.write(paddr, page, 0, pageSize);
+		return;
+	    }
+
+	    CoffSection section = coff.getSection(image.sections[vpn]);
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+
+	    if (!image.shared)
+		return;
+
+	    page = new byte[pageSize];
+	    memory.read(paddr, page, 0, pageSize);
+	    image.pages[vpn] = page;
+	}
+
+	/**
+	 * Close this process's copy of the executable.
+	 */
+	public void close() {
+	    coff.close();
+	}
+
+	private Image image;
+	private Coff coff;
+    }
+
+    /**
+     * The parsed headers and loaded pages of an executable.
+     */
+    private static class Image {
+	Image(Coff headers, long modified, int length) {
+	    this.headers = headers;
+	    this.modified = modified;
+	    this.length = length;
+
+	    int numPages = 0;
+	    for (int s=0; s<headers.getNumSections(); s++) {
+		CoffSection section = headers.getSection(s);
+		numPages = Math.max(numPages,
+				    section.getFirstVPN() + section.getLength());
+	    }
+
+	    pages = new byte[numPages][];
+	    sections = new int[numPages];
+	    frames = new int[numPages];
+	    for (int vpn=0; vpn<numPages; vpn++) {
+		sections[vpn] = -1;
+		frames[vpn] = -1;
+	    }
+
+	    for (int s=0; s<headers.getNumSections(); s++) {
+		CoffSection section = headers.getSection(s);
+		for (int i=0; i<section.getLength(); i++)
+		    sections[section.getFirstVPN() + i] = s;
+	    }
+	}
+
+	/**
+	 * Test whether the pages of this executable can be shared, which is
+	 * only the case for sections read by the standard loader.
+	 */
+	boolean isCacheable() {
+	    for (int s=0; s<headers.getNumSections(); s++) {
+		if (headers.getSection(s).getClass() != CoffSection.class)
+		    return false;
+	    }
+
+	    return true;
+	}
+
+	Coff headers;
+	long modified;
+	int length;
+	/** True if the image is in the cache, and so worth filling in. */
+	boolean shared = false;
+
+	/** The image of each virtual page, or null if it is not loaded yet. */
+	byte[][] pages;
+	/** The section holding each virtual page, or -1 for none. */
+	int[] sections;
+	/** The shared physical page of each virtual page, or -1 for none. */
+	int[] frames;
+	/** Guards <tt>frames</tt>. */
+	Lock lock = new Lock();
+    }
+
+    private int maxPages;
+    private int numPages = 0;
+
+    /** The cached images by file name, least recently used first. */
+    private LinkedHashMap<String, Image> images =
+	new LinkedHashMap<String, Image>(16, 0.75f, true);
+
+    private Lock lock;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgProcess = 'a';
+
+    private static final int trcHit =
+	Trace.define(dbgProcess, "\texecutable cache hit: %5$s");
+    private static final int trcMiss =
+	Trace.define(dbgProcess, "\texecutable cache miss: %5$s");
+}
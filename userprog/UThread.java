@@ -28,10 +28,75 @@ public class UThread extends KThread {
 	process.initRegisters();
 	process.restoreState();
 
+	// on a multiprocessor, CPU 0 only runs the kernel
+	if (Machine.multiprocessor() != null)
+	    runOnOtherCores();
+
 	Machine.processor().run();
 	
 	Lib.assertNotReached();
     }
+
+    /**
+     * Run this thread's user code on the other cores of a multiprocessor,
+     * until the program exits. Each time, the thread takes a free core,
+     * moves its user registers there, starts the core, and waits on CPU 0.
+     * When the core raises an exception, the registers move back and the core
+     * is given up, so the exception is handled on CPU 0 exactly as if it had
+     * happened there. When the core's timer goes off, the core is stopped and
+     * given up the same way, and the thread yields before taking a core
+     * again, so that the programs waiting for one get their turn. Never
+     * returns.
+     */
+    private void runOnOtherCores() {
+	final Multiprocessor multiprocessor = Machine.multiprocessor();
+	Processor boot = Machine.processor();
+	UserKernel kernel = (UserKernel) Kernel.kernel;
+
+	final Semaphore trapped = new Semaphore(0);
+	Runnable trapHandler = new Runnable() {
+		public void run() { trapped.V(); }
+	    };
+
+	// Processor.run() would set this for a new program, but start() won't
+	boot.writeRegister(Processor.regNextPC,
+			   boot.readRegister(Processor.regPC) + 4);
+
+	while (true) {
+	    final int cpu = kernel.acquireCPU();
+	    Processor core = multiprocessor.processor(cpu);
+
+	    // an exception in the same window stops the core first
+	    Runnable timerHandler = new Runnable() {
+		    public void run() {
+			if (multiprocessor.isRunning(cpu)) {
+			    multiprocessor.stop(cpu);
+			    preempted = true;
+			    trapped.V();
+			}
+		    }
+		};
+
+	    core.setExceptionHandler(trapHandler);
+	    multiprocessor.setInterruptHandlers(cpu, timerHandler, null);
+	    core.setPageTable(process.pageTable);
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		core.writeRegister(i, boot.readRegister(i));
+
+	    preempted = false;
+	    multiprocessor.start(cpu);
+	    trapped.P();
+
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		boot.writeRegister(i, core.readRegister(i));
+	    kernel.releaseCPU(cpu);
+
+	    if (preempted)
+		KThread.yield();
+	    else
+		process.handleException(boot.readRegister(Processor.regCause));
+	}
+    }
     
     /**
      * Save state before giving up the processor to another thread.
@@ -72,4 +137,10 @@ public class UThread extends KThread {
      * The process to which this thread belongs.
      */
     public UserProcess process;
+
+    /**
+     * Set when the timer of the core running this thread's program stopped
+     * it, rather than an exception.
+     */
+    private boolean preempted;
 }
@@ -32,6 +32,10 @@ public class UserKernel extends ThreadedKernel {
 	
 		console = new SynchConsole(Machine.console());
 		
+		executableCache =
+		    new ExecutableCache(Config.getInteger("UserKernel.executableCachePages",
+							  256));
+		
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() { exceptionHandler(); }
 		});
@@ -42,7 +46,24 @@ public class UserKernel extends ThreadedKernel {
 			pageLinkedList.add(new TranslationEntry(0,i,false,false,false,false));
 		}
 		
+		frameReferences = new int[numberOfPages];
+		
 		lock = new Lock();
+		
+		// on a multiprocessor, user programs run on the other cores
+		Multiprocessor multiprocessor = Machine.multiprocessor();
+		if (multiprocessor != null) {
+			// only CPU 0's TLB is refilled by the kernel
+			Lib.assertTrue(!Machine.processor().hasTLB(),
+				       "user programs need page tables to run on other cores");
+			
+			freeCPUs = new LinkedList<Integer>();
+			for (int cpu = 1; cpu < multiprocessor.getNumCPUs(); cpu++)
+				freeCPUs.add(cpu);
+			
+			cpuSemaphore = new Semaphore(freeCPUs.size());
+			cpuLock = new Lock();
+		}
     }
 
     /**
@@ -111,7 +132,7 @@ public class UserKernel extends ThreadedKernel {
 		UserProcess process = UserProcess.newUserProcess();
 		
 		String shellProgram = Machine.getShellProgramName();	
-		Lib.assertTrue(process.execute(shellProgram, new String[] { }));
+		Lib.assertTrue(process.executeFromSnapshot(shellProgram, new String[] { }));
 	
 		KThread.currentThread().finish();
     }
@@ -137,12 +158,132 @@ public class UserKernel extends ThreadedKernel {
     		for(int i = 0; i < numberOfPages; i++){
     			pages[i] = pageLinkedList.remove();
     			pages[i].valid = true;
+    			frameReferences[pages[i].ppn] = 1;
+    		}
+    	}
+    	lock.release();
+		return pages;
+    }
+    
+    /**
+     * getPages(int[] ppns)
+     * Takes the specified physical pages off the free page list, such as
+     * the pages of a process restored from a snapshot
+     * @param ppns the physical page numbers to take
+     * @return the TranslationEntry array, or null if a page is not free
+     */
+    public TranslationEntry[] getPages(int[] ppns) {
+    	
+    	lock.acquire();
+    	TranslationEntry[] pages = new TranslationEntry[ppns.length];
+    	
+    	for(int i = 0; i < ppns.length; i++){
+    		for(TranslationEntry entry : pageLinkedList){
+    			if(entry.ppn == ppns[i]){
+    				pages[i] = entry;
+    				break;
+    			}
+    		}
+    		
+    		if(pages[i] == null){
+    			lock.release();
+    			return null;
     		}
     	}
+    	
+    	for(int i = 0; i < pages.length; i++){
+    		pageLinkedList.remove(pages[i]);
+    		pages[i].valid = true;
+    		frameReferences[pages[i].ppn] = 1;
+    	}
+    	
     	lock.release();
 		return pages;
     }
     
+    /**
+     * Take one free physical page, which the caller holds the only reference
+     * to.
+     *
+     * @return	the physical page number, or -1 if no page is free.
+     */
+    public int allocateFrame() {
+    	lock.acquire();
+    	
+    	int ppn = -1;
+    	if (!pageLinkedList.isEmpty()) {
+    		ppn = pageLinkedList.remove().ppn;
+    		frameReferences[ppn] = 1;
+    	}
+    	
+    	lock.release();
+    	return ppn;
+    }
+    
+    /**
+     * Take a free core of the multiprocessor to run user code on, waiting
+     * until one is free if they are all in use.
+     *
+     * @return	the number of the core.
+     */
+    public int acquireCPU() {
+    	cpuSemaphore.P();
+    	cpuLock.acquire();
+    	
+    	int cpu = freeCPUs.removeFirst();
+    	
+    	cpuLock.release();
+    	return cpu;
+    }
+    
+    /**
+     * Give back a core taken with <tt>acquireCPU()</tt>.
+     *
+     * @param	cpu	the number of the core.
+     */
+    public void releaseCPU(int cpu) {
+    	cpuLock.acquire();
+    	
+    	freeCPUs.add(cpu);
+    	
+    	cpuLock.release();
+    	cpuSemaphore.V();
+    }
+    
+    /**
+     * Add a reference to a physical page that is already in use, for another
+     * process that maps the same page.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void shareFrame(int ppn) {
+    	lock.acquire();
+    	
+    	Lib.assertTrue(frameReferences[ppn] > 0);
+    	frameReferences[ppn]++;
+    	
+    	lock.release();
+    }
+    
+    /**
+     * Drop a reference to a physical page, and free the page if it was the
+     * last one.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page was freed.
+     */
+    public boolean releaseFrame(int ppn) {
+    	lock.acquire();
+    	
+    	Lib.assertTrue(frameReferences[ppn] > 0);
+    	boolean freed = (--frameReferences[ppn] == 0);
+    	if (freed)
+    		pageLinkedList.add(new TranslationEntry(0,ppn,false,false,false,false));
+    	
+    	lock.release();
+    	return freed;
+    }
+    
     public void resetPages (TranslationEntry[] userPages) {
     	lock.acquire();
     	
@@ -175,6 +316,9 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
     
+    /** The executables that processes have run, shared between them. */
+    public static ExecutableCache executableCache;
+    
     public static int processCount;
     public static Semaphore pCountMutex;
 
@@ -182,6 +326,16 @@ public class UserKernel extends ThreadedKernel {
     private static Coff dummy1 = null;
     static int pid;
     
+    /** The number of page tables mapping each physical page. */
+    private int[] frameReferences;
+    
+    /** The cores not running user code, on a multiprocessor. */
+    private LinkedList<Integer> freeCPUs;
+    /** Counts the cores in <tt>freeCPUs</tt>. */
+    private Semaphore cpuSemaphore;
+    /** Guards <tt>freeCPUs</tt>. */
+    private Lock cpuLock;
+    
     public LinkedList<TranslationEntry> freePageList;
     public Lock pageLock;
 }
@@ -4,7 +4,12 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.NoSuchElementException;
@@ -31,6 +36,7 @@ public class UserProcess {
 		pageTable = new TranslationEntry[numPhysPages];
 		for (int i=0; i<numPhysPages; i++)
 		    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+		copyOnWrite = new boolean[numPhysPages];
         this.pid = UserKernel.pid;
         ++UserKernel.pid;
         this.fd = new OpenFile[16];
@@ -69,6 +75,170 @@ public class UserProcess {
 		return true;
     }
 
+    /**
+     * Like <tt>execute()</tt>, but resumes from the snapshot named by the
+     * <tt>Machine.snapshot</tt> key instead of loading the program, if there
+     * is one and it was taken of the same program, with the same arguments,
+     * since the executable was last modified. Otherwise the program is
+     * loaded, and if the key is set, a snapshot of the machine with the
+     * program loaded is saved for the next run.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @param	args	the arguments to pass to the executable.
+     * @return	<tt>true</tt> if the program was successfully executed.
+     */
+    public boolean executeFromSnapshot(String name, String[] args) {
+		byte[] state = Machine.openSnapshot();
+		
+		// rebuild this process first, so the machine resumes exactly where
+		// the snapshot was taken
+		if (state != null && restoreLoadedState(name, args, state)) {
+			Machine.restoreSnapshot();
+		}
+		else {
+			if (!load(name, args))
+			    return false;
+			
+			if (Config.getString("Machine.snapshot") != null) {
+			    // leave this process just as the restored one will be,
+			    // so that both runs go on to do exactly the same
+			    ownAllPages();
+			    Machine.saveSnapshot(saveLoadedState(name, args));
+			}
+		}
+		
+		new UThread(this).setName(name).fork();
+	
+		return true;
+    }
+
+    /**
+     * Save what <tt>load()</tt> set up, for a snapshot, along with what
+     * identifies the program that was loaded.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @param	args	the arguments passed to the executable.
+     * @return	the state of this process.
+     */
+    protected byte[] saveLoadedState(String name, String[] args) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		
+		try {
+			out.writeUTF(name);
+			out.writeInt(args.length);
+			for (int i = 0; i < args.length; i++)
+			    out.writeUTF(args[i]);
+			
+			// so a changed executable is loaded again
+			OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+			out.writeInt(file.length());
+			out.writeLong(file.lastModified());
+			file.close();
+			
+			out.writeInt(numPages);
+			out.writeInt(initialPC);
+			out.writeInt(initialSP);
+			out.writeInt(argc);
+			out.writeInt(argv);
+			
+			out.writeInt(pageTable.length);
+			for (int i = 0; i < pageTable.length; i++) {
+				out.writeInt(pageTable[i].vpn);
+				out.writeInt(pageTable[i].ppn);
+				out.writeBoolean(pageTable[i].readOnly);
+				out.writeBoolean(pageTable[i].used);
+				out.writeBoolean(pageTable[i].dirty);
+			}
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+		
+		return bytes.toByteArray();
+    }
+
+    /**
+     * Restore what <tt>saveLoadedState()</tt> saved, taking the same
+     * physical pages from the kernel. Fails if the state was saved for a
+     * different program, different arguments, or an executable that has
+     * changed since.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @param	args	the arguments to pass to the executable.
+     * @param	state	the state of this process.
+     * @return	<tt>true</tt> if the state was restored.
+     */
+    protected boolean restoreLoadedState(String name, String[] args,
+					 byte[] state) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+		
+		try {
+			boolean same = in.readUTF().equals(name) &&
+			    in.readInt() == args.length;
+			for (int i = 0; same && i < args.length; i++)
+			    same = in.readUTF().equals(args[i]);
+			
+			if (same) {
+				OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+				same = file != null &&
+				    in.readInt() == file.length() &&
+				    in.readLong() == file.lastModified();
+				if (file != null)
+				    file.close();
+			}
+			
+			if (!same) {
+				Lib.debug(dbgProcess, "\tsnapshot is of a different program");
+				return false;
+			}
+			
+			int numPages = in.readInt();
+			int initialPC = in.readInt();
+			int initialSP = in.readInt();
+			int argc = in.readInt();
+			int argv = in.readInt();
+			
+			int[] vpns = new int[in.readInt()];
+			int[] ppns = new int[vpns.length];
+			boolean[][] bits = new boolean[vpns.length][3];
+			for (int i = 0; i < vpns.length; i++) {
+				vpns[i] = in.readInt();
+				ppns[i] = in.readInt();
+				for (int j = 0; j < 3; j++)
+				    bits[i][j] = in.readBoolean();
+			}
+			
+			// Take the same pages the snapshot's process had
+			TranslationEntry[] pages = ((UserKernel)Kernel.kernel).getPages(ppns);
+			if (pages == null) {
+				Lib.debug(dbgProcess, "\tsnapshot pages are not free");
+				return false;
+			}
+			
+			for (int i = 0; i < pages.length; i++) {
+				pages[i].vpn = vpns[i];
+				pages[i].readOnly = bits[i][0];
+				pages[i].used = bits[i][1];
+				pages[i].dirty = bits[i][2];
+			}
+			
+			this.pageTable = pages;
+			this.copyOnWrite = new boolean[pages.length];
+			this.numPages = numPages;
+			this.initialPC = initialPC;
+			this.initialSP = initialSP;
+			this.argc = argc;
+			this.argv = argv;
+		}
+		catch (IOException e) {
+			Lib.debug(dbgProcess, "\tbad snapshot process state");
+			return false;
+		}
+		
+		return true;
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
@@ -84,6 +254,20 @@ public class UserProcess {
     	Machine.processor().setPageTable(pageTable);
     }
 
+    /**
+     * Transfer data between one page of this process's virtual memory and
+     * the specified array, stopping at the end of the page. The page must
+     * already have been touched, and copied if it is being written and was
+     * copied on write.
+     *
+     * @param	vaddr	the first byte of virtual memory to access.
+     * @param	data	the array to transfer data to or from.
+     * @param	offset	the first byte of the array to transfer.
+     * @param	length	the most bytes to transfer.
+     * @param	isRead	<tt>true</tt> to read virtual memory, or
+     *			<tt>false</tt> to write it.
+     * @return	the number of bytes successfully transferred.
+     */
     public int accessMemory(int vaddr, byte[] data, int offset, int length, boolean isRead){
         int vpn = vaddr / pageSize;
         int vOffset = vaddr % pageSize;
@@ -93,24 +277,26 @@ public class UserProcess {
     	
     	//Calculate the physical address and memory available
     	int addr = entry.ppn * pageSize + vOffset;
-    	byte[] memory = Machine.processor().getMemory();
+    	PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+    	int memoryLength = memory.getNumPages() * pageSize;
     	
     	//If the physical address is out of bounds return 0
-    	if(addr < 0 || addr > memory.length || !entry.valid)
+    	if(addr < 0 || addr > memoryLength || !entry.valid)
     		return 0;
     		
-    	//Set the amount of bytes accessed
-    	int amount = Math.min(length, memory.length - addr);
+    	//Set the amount of bytes accessed, up to the end of the page, since
+    	//the next virtual page need not be in the next frame
+    	int amount = Math.min(length, pageSize - vOffset);
     	//If the method is reading
     	if(isRead)
     		//Copy from memory into data
-    		System.arraycopy(memory, addr, data, offset, amount);
+    		memory.read(addr, data, offset, amount);
     	//If the method is writing
     	else
     		//And the page is not readOnly
     		if(!entry.readOnly)
     			//Copy into memory from data
-    			System.arraycopy(data, offset, memory, addr, amount);
+    			memory.write(addr, data, offset, amount);
     		else
     			//If if is read only return 0
     			return 0;
@@ -180,19 +366,21 @@ public class UserProcess {
     	// Acquire lock
     	lock.acquire();
     	
-		byte[] memory = Machine.processor().getMemory();
-		
-		// Initilize variables for return
-		int amtBytes = accessMemory(vaddr, data, offset, length, true);
-		int length1 = Math.min(length, pageSize - vaddr % pageSize);
-		int numOfPages = ((length + vaddr % pageSize) / pageSize) + 1;
-		
-		// Check if number of pages is greater than 1
-		if(numOfPages > 1){
-			// Loop through and add to amount
-			for(int i = 1; i < numOfPages; i++){
-				amtBytes += accessMemory((vaddr/pageSize + i * pageSize), data, offset + amtBytes, Math.min(length - amtBytes, pageSize), true);
-			}
+		// Access one page at a time, since each may be in any frame
+		int amtBytes = 0;
+		while (amtBytes < length) {
+			int vpn = (vaddr + amtBytes) / pageSize;
+			if (vaddr + amtBytes < 0 || vpn >= pageTable.length)
+				break;
+			
+			// Load the page if this is its first touch
+			loadPageOnFirstTouch(vpn);
+			
+			int amount = accessMemory(vaddr + amtBytes, data,
+				offset + amtBytes, length - amtBytes, true);
+			if (amount == 0)
+				break;
+			amtBytes += amount;
 		}
 		
 		// Release lock
@@ -235,20 +423,24 @@ public class UserProcess {
 		// Acquire lock
     	lock.acquire();
 	
-		byte[] memory = Machine.processor().getMemory();
-		
-		// Initialize variables for return
-		int amtBytes = accessMemory(vaddr, data, offset, length, false);
-		int length1 = Math.min(length, pageSize - vaddr % pageSize);
-		int numOfPages = ((length + vaddr % pageSize) / pageSize) + 1;
-		
-		// Check if number of pages is greater than 1
-		if(numOfPages > 1){
-			// Loop through and add to amount
-			for(int i = 1; i < numOfPages; i++){
-				amtBytes += accessMemory((vaddr / pageSize + i * pageSize), 
-                data, offset+amtBytes, Math.min(length - amtBytes, pageSize), false);
-			}
+		// Access one page at a time, since each may be in any frame
+		int amtBytes = 0;
+		while (amtBytes < length) {
+			int vpn = (vaddr + amtBytes) / pageSize;
+			if (vaddr + amtBytes < 0 || vpn >= pageTable.length)
+				break;
+			
+			// Load the page if this is its first touch, and give this
+			// process its own copy if it is shared
+			loadPageOnFirstTouch(vpn);
+			if (copyOnWrite[vpn])
+				copyPageOnWrite(vpn);
+			
+			int amount = accessMemory(vaddr + amtBytes, data,
+				offset + amtBytes, length - amtBytes, false);
+			if (amount == 0)
+				break;
+			amtBytes += amount;
 		}
 		
 		// Release Lock
@@ -269,29 +461,27 @@ public class UserProcess {
      * @return	<tt>true</tt> if the executable was successfully loaded.
      */
     private boolean load(String name, String[] args) {
-		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
+		Trace.record(trcLoad, name);
 		
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
+		OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+		if (file == null) {
 		    Lib.debug(dbgProcess, "\topen failed");
 		    return false;
 		}
 	
-		try {
-		    this.coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-		    executable.close();
+		this.executable = UserKernel.executableCache.open(file);
+		if (executable == null) {
 		    Lib.debug(dbgProcess, "\tcoff load failed");
 		    return false;
 		}
+		this.coff = executable.getCoff();
 	
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
 		for (int s=0; s<coff.getNumSections(); s++) {
 		    CoffSection section = coff.getSection(s);
 		    if (section.getFirstVPN() != numPages) {
-			coff.close();
+			executable.close();
 			Lib.debug(dbgProcess, "\tfragmented executable");
 			return false;
 		    }
@@ -307,7 +497,7 @@ public class UserProcess {
 		    argsSize += 4 + argv[i].length + 1;
 		}
 		if (argsSize > pageSize) {
-		    coff.close();
+		    executable.close();
 		    Lib.debug(dbgProcess, "\targuments too long");
 		    return false;
 		}
@@ -347,9 +537,13 @@ public class UserProcess {
     }
 
     /**
-     * Allocates memory for this process, and loads the COFF sections into
-     * memory. If this returns successfully, the process will definitely be
-     * run (this is the last step in process initialization that can fail).
+     * Allocates memory for this process, and prepares to load the COFF
+     * sections into it. Each page of a section is only loaded the first time
+     * it is touched, by the program or by the kernel on its behalf, and
+     * comes from the kernel's executable cache if another process has
+     * already loaded it. If this returns successfully, the process will
+     * definitely be run (this is the last step in process initialization
+     * that can fail).
      *
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
@@ -358,7 +552,7 @@ public class UserProcess {
     	// Check to see if there's enough memory to start a new process
 		if (numPages > Machine.processor().getNumPhysPages()) {
 			// Close the Coff
-			coff.close();
+			executable.close();
 			
 			// Print not enough memory to console
 		    System.out.println("Not Enough Memory!");
@@ -367,33 +561,38 @@ public class UserProcess {
 		    return false;
 		}
 		
-		// Store page table in variable
-		pageTable = ((UserKernel)Kernel.kernel).getPages(numPages);
+		pageTable = new TranslationEntry[numPages];
+		copyOnWrite = new boolean[numPages];
 		
-		if (pageTable == null) {
-			// Close the coff
-			coff.close();
-			
-			// Return false
-			return false;
-		}
+		// Only the stack and arguments get physical pages now; the
+		// sections' pages are mapped on first touch, so they start invalid
+		for (int vpn = 0; vpn < numPages; vpn++)
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
 		
-		for (int i = 0; i < pageTable.length; i++) {
-			pageTable[i].vpn = i;
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (executable.hasPage(vpn))
+				continue;
+			
+			int ppn = ((UserKernel)Kernel.kernel).allocateFrame();
+			if (ppn == -1) {
+				unloadSections();
+				return false;
+			}
+			
+			pageTable[vpn].ppn = ppn;
+			pageTable[vpn].valid = true;
 		}
 		
-		// Load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
 		    CoffSection section = coff.getSection(s);
 		    
-		    Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-			      + " section (" + section.getLength() + " pages)");
+		    Trace.record(trcSection, section.getLength(),
+				 section.getName());
 	
 		    for (int i = 0; i < section.getLength(); i++) {
 			int vpn = section.getFirstVPN()+i;
-	
-			// for now, just assume virtual addresses=physical addresses
-			section.loadPage(i, vpn);
+			
+			pageTable[vpn].readOnly = section.isReadOnly();
 		    }
 		}
 		
@@ -401,12 +600,122 @@ public class UserProcess {
 		return true;
     }
 
+    /**
+     * Map a page of the executable that has not been touched yet. If the
+     * executable is cached, the page is shared with the other processes
+     * running it: read-only, and copied on write if its section is writable.
+     *
+     * @param	vpn	the virtual page to load.
+     * @return	<tt>true</tt> if the page was loaded, or <tt>false</tt> if it
+     *		is not a page of the executable waiting to be loaded, or
+     *		physical memory is full.
+     */
+    protected boolean loadPageOnFirstTouch(int vpn) {
+		if (executable == null || !executable.hasPage(vpn) ||
+		    pageTable[vpn].valid)
+		    return false;
+		
+		int ppn = executable.mapPage(vpn);
+		if (ppn == -1)
+		    return false;
+		
+		TranslationEntry entry = pageTable[vpn];
+		if (executable.isShared()) {
+		    copyOnWrite[vpn] = !entry.readOnly;
+		    entry.readOnly = true;
+		}
+		entry.ppn = ppn;
+		entry.valid = true;
+		
+		return true;
+    }
+    
+    /**
+     * Give this process its own copy of a shared page that it is about to
+     * write to.
+     *
+     * @param	vpn	the virtual page to copy.
+     * @return	<tt>true</tt> if the page was copied, or <tt>false</tt> if it
+     *		is not copied on write, or physical memory is full.
+     */
+    protected boolean copyPageOnWrite(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		if (!copyOnWrite[vpn] || !entry.valid)
+		    return false;
+		
+		int ppn = ((UserKernel)Kernel.kernel).allocateFrame();
+		if (ppn == -1)
+		    return false;
+		
+		Trace.record(trcCopyOnWrite, vpn, entry.ppn, ppn, 0, null);
+		
+		Machine.processor().getPhysicalMemory().copyPage(entry.ppn, ppn);
+		executable.releasePage(vpn, entry.ppn);
+		
+		entry.ppn = ppn;
+		entry.readOnly = false;
+		copyOnWrite[vpn] = false;
+		
+		return true;
+    }
+
+    /**
+     * Load every page of the executable that has not been touched yet.
+     */
+    protected void loadAllPages() {
+		for (int vpn = 0; vpn < pageTable.length; vpn++)
+		    loadPageOnFirstTouch(vpn);
+    }
+
+    /**
+     * Load every page of the executable, and then let go of the executable,
+     * keeping its pages as this process's own. Afterwards this process does
+     * not load or copy pages on first touch, like a process restored from a
+     * snapshot. Must only be called when no other process is running the
+     * executable.
+     */
+    protected void ownAllPages() {
+		loadAllPages();
+		
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+		    TranslationEntry entry = pageTable[vpn];
+		    if (!entry.valid || !executable.hasPage(vpn))
+			continue;
+		    
+		    // no one else maps the page, so it can be written in place
+		    executable.keepPage(vpn, entry.ppn);
+		    if (copyOnWrite[vpn]) {
+			entry.readOnly = false;
+			copyOnWrite[vpn] = false;
+		    }
+		}
+		
+		executable.close();
+		executable = null;
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-    	// Release the page table
-    	((UserKernel)Kernel.kernel).releasePageTable(pageTable);
+		// Release each physical page, which frees it unless another
+		// process shares it
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+		    TranslationEntry entry = pageTable[vpn];
+		    if (!entry.valid)
+			continue;
+		    
+		    if (executable != null)
+			executable.releasePage(vpn, entry.ppn);
+		    else
+			((UserKernel)Kernel.kernel).releaseFrame(entry.ppn);
+		    entry.valid = false;
+		}
+		
+		if (executable != null) {
+		    executable.close();
+		    executable = null;
+		}
     }    
 
     /**
@@ -635,7 +944,7 @@ public class UserProcess {
 
     private int handleClose(int file){
         if (file < 0 || file > 15) {
-            Lib.debug(dbgProcess, "HandleClose: Trying to close the file " + file + " which is outside of range");
+            Trace.record(trcCloseRange, file);
             return -1;
         }
         OpenFile thisFile = this.fd[file];
@@ -677,7 +986,7 @@ public class UserProcess {
         //}    
         
         if (file < 0 || file == 1 || file > 15) {
-            Lib.debug(dbgProcess, "HandleRead: Trying to read from the file " + file + " which is outside of range");
+            Trace.record(trcReadRange, file);
             return -1;
         }
         OpenFile f = this.fd[file];
@@ -752,12 +1061,12 @@ public class UserProcess {
             return -1;
         }
         if (file < 1 || file > 15){
-            Lib.debug(dbgProcess, "HandleWrite: Trying to write to file " + file + " which is outside of range");
+            Trace.record(trcWriteRange, file);
             return -1;
         }
         OpenFile f = this.fd[file];
         if (f == null){
-            Lib.debug(dbgProcess, "HandleWrite: Trying to write to file " + file + " which does not exist");
+            Trace.record(trcWriteMissing, file);
             return -1;
         }
 
@@ -903,6 +1212,30 @@ public class UserProcess {
 		    processor.writeRegister(Processor.regV0, result);
 		    processor.advancePC();
 		    break;				       
+		    
+		case Processor.exceptionPageFault:
+		    int vaddr = processor.readRegister(Processor.regBadVAddr);
+		    int vpn = Processor.pageFromAddress(vaddr);
+		    if (loadPageOnFirstTouch(vpn))
+			break;
+		    if (outOfMemory(vpn))
+			break;
+		    // not a page of the executable, so a real fault
+		    Lib.debug(dbgProcess, "Page fault at 0x" + Lib.toHexString(vaddr));
+		    Lib.assertNotReached("Unexpected exception");
+		    break;
+		    
+		case Processor.exceptionReadOnly:
+		    vaddr = processor.readRegister(Processor.regBadVAddr);
+		    vpn = Processor.pageFromAddress(vaddr);
+		    if (copyPageOnWrite(vpn))
+			break;
+		    if (outOfMemory(vpn))
+			break;
+		    // a write to a read-only section
+		    Lib.debug(dbgProcess, "Read-only fault at 0x" + Lib.toHexString(vaddr));
+		    Lib.assertNotReached("Unexpected exception");
+		    break;
 					       
 		default:
 		    Lib.debug(dbgProcess, "Unexpected exception: " +
@@ -911,6 +1244,25 @@ public class UserProcess {
 		}
     }
     
+    /**
+     * Kill this process if a page it faulted on could not be given a
+     * physical page because memory is full.
+     *
+     * @param	vpn	the virtual page that faulted.
+     * @return	<tt>true</tt> if the process was killed.
+     */
+    private boolean outOfMemory(int vpn) {
+		if (vpn < 0 || vpn >= pageTable.length ||
+		    (pageTable[vpn].valid && !copyOnWrite[vpn]) ||
+		    (!pageTable[vpn].valid &&
+		     (executable == null || !executable.hasPage(vpn))))
+		    return false;
+		
+		Lib.debug(dbgProcess, "Out of memory at page " + vpn);
+		handleExit(-1);
+		return true;
+    }
+    
     public void decProcessCount(){
     	UserKernel.pCountMutex.P();
     	
@@ -924,9 +1276,13 @@ public class UserProcess {
 
     /** The program being run by this process. */
     protected Coff coff;
+    /** The executable, which loads the pages of <tt>coff</tt>. */
+    protected ExecutableCache.Executable executable;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
+    /** Which pages are shared read-only until this process writes them. */
+    protected boolean[] copyOnWrite;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
@@ -939,6 +1295,21 @@ public class UserProcess {
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
 
+    private static final int trcLoad =
+	Trace.define(dbgProcess, "UserProcess.load(\"%5$s\")");
+    private static final int trcSection =
+	Trace.define(dbgProcess, "\tinitializing %5$s section (%1$d pages)");
+    private static final int trcCopyOnWrite =
+	Trace.define(dbgProcess, "\tcopy on write: page %1$d from %2$d to %3$d");
+    private static final int trcCloseRange =
+	Trace.define(dbgProcess, "HandleClose: Trying to close the file %1$d which is outside of range");
+    private static final int trcReadRange =
+	Trace.define(dbgProcess, "HandleRead: Trying to read from the file %1$d which is outside of range");
+    private static final int trcWriteRange =
+	Trace.define(dbgProcess, "HandleWrite: Trying to write to file %1$d which is outside of range");
+    private static final int trcWriteMissing =
+	Trace.define(dbgProcess, "HandleWrite: Trying to write to file %1$d which does not exist");
+
     
     
     protected OpenFile[] fd;